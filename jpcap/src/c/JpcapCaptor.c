@@ -31,6 +31,7 @@
 #include<netinet/ip.h>
 
 #include<string.h>
+#include<stdlib.h>
 //#include<string>
 
 #include"Jpcap_sub.h"
@@ -152,6 +153,20 @@ int jpcap_protocol_filter(JNIEnv *, char *);
 int isEmpty(JNIEnv *, jobject);
 int doFilter(JNIEnv *, jobject *);
 
+//Batch capture, raw frames are copied into a direct ByteBuffer
+#define BATCH_RECORD_HEADER_LEN 24
+#define BATCH_ALIGN(len) (((len)+7)&~7)
+
+jfieldID batchEndID;
+jfieldID packetResultID;
+u_char *batch_pending[MAX_NUMBER_OF_INSTANCE];
+int batch_pending_size[MAX_NUMBER_OF_INSTANCE];
+int batch_has_pending[MAX_NUMBER_OF_INSTANCE];
+struct pcap_pkthdr batch_pending_header[MAX_NUMBER_OF_INSTANCE];
+
+int write_batch_record(u_char *,int,const struct pcap_pkthdr *,const u_char *);
+int keep_batch_pending(int,const struct pcap_pkthdr *,const u_char *);
+
 
 
 int getJpcapID(JNIEnv *env,jobject obj)
@@ -453,6 +468,10 @@ Java_jpcap_JpcapCaptor_nativeClose(JNIEnv *env,jobject obj)
   int id=getJpcapID(env,obj);
   if(pcds[id]!=NULL) pcap_close(pcds[id]);
   pcds[id]=NULL;
+  if(batch_pending[id]!=NULL) free(batch_pending[id]);
+  batch_pending[id]=NULL;
+  batch_pending_size[id]=0;
+  batch_has_pending[id]=0;
 }
 
 
@@ -509,6 +528,7 @@ Java_jpcap_JpcapCaptor_getPacket(JNIEnv *env,jobject obj)
   int res;
   initJpcapFilter(env,obj);
   res=pcap_next_ex(pcds[id],&header,(const u_char **)&data);
+  (*env)->SetIntField(env,obj,packetResultID,res);
 
   switch(res){
 	  case 0: //timeout
@@ -528,6 +548,119 @@ Java_jpcap_JpcapCaptor_getPacket(JNIEnv *env,jobject obj)
   return packet;
 }
 
+/**
+Capture Packets into a direct ByteBuffer, one JNI call per batch
+**/
+JNIEXPORT jint JNICALL
+Java_jpcap_JpcapCaptor_nativeCaptureBatch(JNIEnv *env,jobject obj,jobject buffer,
+				jint offset,jint limit,jint cnt)
+{
+  struct pcap_pkthdr *header;
+  const u_char *data;
+  u_char *base;
+  int id=getJpcapID(env,obj);
+  int pos=offset;
+  int pkt_cnt=0;
+  int written;
+  int res;
+
+  base=(u_char *)(*env)->GetDirectBufferAddress(env,buffer);
+  if(base==NULL){
+	Throw(IOException,"capture batch buffer must be a direct buffer");
+	return -1;
+  }
+
+  //the frame which didn't fit into the previous batch goes first
+  if(batch_has_pending[id]){
+	written=write_batch_record(base+pos,limit-pos,&batch_pending_header[id],batch_pending[id]);
+	if(!written){
+	  Throw(IOException,"capture batch buffer is too small to hold a single frame");
+	  return -1;
+	}
+	pos+=written;
+	pkt_cnt++;
+	batch_has_pending[id]=0;
+  }
+
+  while(pkt_cnt<cnt){
+	res=pcap_next_ex(pcds[id],&header,&data);
+	if(res==0) break; //timeout
+	if(res<0){ //error, EOF or breakloop
+	  if(pkt_cnt==0){
+		(*env)->SetIntField(env,obj,batchEndID,pos);
+		return res;
+	  }
+	  break;
+	}
+	if(data==NULL) continue;
+	written=write_batch_record(base+pos,limit-pos,header,data);
+	if(!written){
+	  if(pos==offset){
+		Throw(IOException,"capture batch buffer is too small to hold a single frame");
+		return -1;
+	  }
+	  if(!keep_batch_pending(id,header,data)){
+		Throw(IOException,"cannot allocate memory for pending frame");
+		return -1;
+	  }
+	  break;
+	}
+	pos+=written;
+	pkt_cnt++;
+  }
+
+  (*env)->SetIntField(env,obj,batchEndID,pos);
+  return pkt_cnt;
+}
+
+//write record header and frame, return the record length, or 0 if no enough space
+int write_batch_record(u_char *dest,int remaining,const struct pcap_pkthdr *header,const u_char *data)
+{
+  jlong sec=(jlong)header->ts.tv_sec;
+  jint usec=(jint)header->ts.tv_usec;
+  jint caplen=(jint)header->caplen;
+  jint len=(jint)header->len;
+  jint record_len=BATCH_RECORD_HEADER_LEN+BATCH_ALIGN(caplen);
+
+  if(record_len>remaining) return 0;
+  //buffer offset given by java may be unaligned, so use memcpy
+  memcpy(dest,&sec,8);
+  memcpy(dest+8,&usec,4);
+  memcpy(dest+12,&caplen,4);
+  memcpy(dest+16,&len,4);
+  memcpy(dest+20,&record_len,4);
+  memcpy(dest+BATCH_RECORD_HEADER_LEN,data,caplen);
+  return record_len;
+}
+
+//keep a copy of the frame, as data is only valid until next pcap_next_ex call
+int keep_batch_pending(int id,const struct pcap_pkthdr *header,const u_char *data)
+{
+  if(batch_pending_size[id]<(int)header->caplen){
+	if(batch_pending[id]!=NULL) free(batch_pending[id]);
+	batch_pending[id]=(u_char *)malloc(header->caplen);
+	if(batch_pending[id]==NULL){
+	  batch_pending_size[id]=0;
+	  return 0;
+	}
+	batch_pending_size[id]=header->caplen;
+  }
+  memcpy(batch_pending[id],data,header->caplen);
+  batch_pending_header[id]=*header;
+  batch_has_pending[id]=1;
+  return 1;
+}
+
+/**
+Get Datalink Type
+**/
+JNIEXPORT jint JNICALL
+Java_jpcap_JpcapCaptor_getDatalinkType(JNIEnv *env,jobject obj)
+{
+  int id=getJpcapID(env,obj);
+  return linktypes[id];
+}
+
 /*
  * Class:     jpcap_JpcapCaptor
  * Method:    dispatchPacket
@@ -1080,6 +1213,8 @@ void set_Java_env(JNIEnv *env){
   isListEmptyMID=(*env)->GetMethodID(env,JpcapFilter,"isEmpty","(Ljava/util/List;)I");
   
   jpcapID=(*env)->GetFieldID(env,Jpcap,"ID","I");
+  batchEndID=(*env)->GetFieldID(env,Jpcap,"batchEnd","I");
+  packetResultID=(*env)->GetFieldID(env,Jpcap,"packetResult","I");
 
   if((*env)->ExceptionCheck(env)==JNI_TRUE){
 	  (*env)->ExceptionDescribe(env);
@@ -122,6 +122,22 @@ JNIEXPORT void JNICALL Java_jpcap_JpcapCaptor_setFilter
 JNIEXPORT void JNICALL Java_jpcap_JpcapCaptor_setJpcapFilter
   (JNIEnv *, jobject, jobject);
 
+/*
+ * Class:     jpcap_JpcapCaptor
+ * Method:    nativeCaptureBatch
+ * Signature: (Ljava/nio/ByteBuffer;III)I
+ */
+JNIEXPORT jint JNICALL Java_jpcap_JpcapCaptor_nativeCaptureBatch
+  (JNIEnv *, jobject, jobject, jint, jint, jint);
+
+/*
+ * Class:     jpcap_JpcapCaptor
+ * Method:    getDatalinkType
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_jpcap_JpcapCaptor_getDatalinkType
+  (JNIEnv *, jobject);
+
 /*
  * Class:     jpcap_JpcapCaptor
  * Method:    updateStat
@@ -5,6 +5,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import jpcap.packet.Packet;
 
@@ -28,6 +29,22 @@ public class JpcapCaptor extends JpcapInstance {
 
 	private JpcapFilter jpcapFilter;
 
+	/**
+	 * Length of the header in front of every frame written by
+	 * {@link #captureBatch(ByteBuffer, int)}
+	 */
+	public static final int BATCH_RECORD_HEADER_LEN = 24;
+
+	/*
+	 * the end offset of the last batch, set by native code
+	 */
+	private int batchEnd;
+
+	/*
+	 * the result of pcap_next_ex of the last getPacket call, set by native code
+	 */
+	private int packetResult;
+
 	public JpcapFilter getJpcapFilter() {
 		return jpcapFilter;
 	}
@@ -117,9 +134,23 @@ public class JpcapCaptor extends JpcapInstance {
 	 * @return a captured packet. <br>
 	 * null if an error occured or timeout has elapsed. <br>
 	 * Packet.EOF is EOF was reached when reading from a offline file.
+	 * @see #getLastPacketResult()
 	 */
 	public native Packet getPacket();
 
+	/**
+	 * Returns the result of the last {@link #getPacket()}, so that a null
+	 * packet of an elapsed timeout could be told from an error.
+	 * 
+	 * @return 1 if a packet is read, even if it is dropped by jpcap filter, 0
+	 *         if timeout expires, -1 if an error occurs, -2 if EOF was
+	 *         reached when reading from a offline file or {@link #breakLoop()}
+	 *         was called
+	 */
+	public int getLastPacketResult() {
+		return packetResult;
+	}
+
 	/**
 	 * Captures the specified number of packets consecutively.<br/>
 	 * 
@@ -154,6 +185,67 @@ public class JpcapCaptor extends JpcapInstance {
 	 */
 	public native int loopPacket(int count, PacketReceiver handler);
 
+	/**
+	 * Captures up to the specified number of packets and copies their raw
+	 * frames into the given direct buffer with a single native call, instead
+	 * of creating one Java packet object and calling back one
+	 * {@link PacketReceiver} per frame.<br/>
+	 * 
+	 * Frames are written from the buffer's position, and the position is
+	 * moved to the end of the last record when this method returns. Every
+	 * record is laid out in the native byte order as below, and records are
+	 * aligned to 8 bytes:
+	 * 
+	 * <pre>
+	 * offset 0  long  timestamp (sec)
+	 * offset 8  int   timestamp (micro sec)
+	 * offset 12 int   captured length
+	 * offset 16 int   length of this packet
+	 * offset 20 int   record length, including this header and padding
+	 * offset 24 byte[captured length] raw frame, starting with datalink header
+	 * </pre>
+	 * 
+	 * This method returns when the buffer is full, the count is reached or
+	 * the read timeout of {@link #openDevice(NetworkInterface, int, boolean, int)}
+	 * expires. A frame which doesn't fit into the remaining buffer is kept
+	 * and returned first by the next call. Jpcap level filter
+	 * {@link #setJpcapFilter(JpcapFilter)} is not applied to batches, please
+	 * use {@link #setFilter(String, boolean)}.
+	 * 
+	 * @param buffer
+	 *            a direct buffer, its byte order should be
+	 *            {@link java.nio.ByteOrder#nativeOrder()} to read the record
+	 *            headers
+	 * @param count
+	 *            Max number of packets to be captured
+	 * @return Number of captured packets, 0 if timeout expires, -1 if an
+	 *         error occurs, -2 if EOF was reached when reading from a offline
+	 *         file or {@link #breakLoop()} was called
+	 * @exception java.io.IOException
+	 *                Raised if the buffer is not direct or too small to hold a
+	 *                single frame
+	 */
+	public int captureBatch(ByteBuffer buffer, int count) throws IOException {
+		if (!buffer.isDirect()) {
+			throw new IOException("capture batch buffer must be a direct buffer");
+		}
+		batchEnd = buffer.position();
+		int captured = nativeCaptureBatch(buffer, buffer.position(), buffer.limit(), count);
+		buffer.position(batchEnd);
+		return captured;
+	}
+
+	private native int nativeCaptureBatch(ByteBuffer buffer, int offset, int limit, int count) throws IOException;
+
+	/**
+	 * Returns the datalink type of the opened interface or dump file, which
+	 * is needed to decode the raw frames captured by
+	 * {@link #captureBatch(ByteBuffer, int)}
+	 * 
+	 * @return datalink type, the value is the same as DLT_* defined in pcap
+	 */
+	public native int getDatalinkType();
+
 	/**
 	 * Same as <a href="#processPacket(int, jpcap.PacketReceiver)">processPacket()</a>
 	 */
@@ -3,7 +3,10 @@ package jpcap;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class is used to do a very simple filtering setting for packets, all of
@@ -21,6 +24,8 @@ public class JpcapFilter {
 	private List<String> srcPorts = new ArrayList<String>();
 	private List<String> destPorts = new ArrayList<String>();
 	private List<Protocol> protocols = new ArrayList<Protocol>();
+	private Map<String, byte[]> resolvedHosts = new HashMap<String, byte[]>();
+	private Map<String, Integer> parsedPorts = new HashMap<String, Integer>();
 
 	/**
 	 * get the host ip in the filter, either src host or dest host
@@ -204,28 +209,50 @@ public class JpcapFilter {
 	public int compareAddress(List<String> containedAddr, byte[] address){
 		int match = 0;
 		for(String addr:containedAddr){
-			try {
-				if(InetAddress.getByName(addr).equals(InetAddress.getByAddress(address))){
-					match = 1;
-					break;
-				}
-			} catch (UnknownHostException e) {
+			byte[] resolved = resolve(addr);
+			if(resolved != null && Arrays.equals(resolved, address)){
+				match = 1;
+				break;
 			}
 		}
 		return match;
 	}
+
 	//A tool used by JNI to compare the port
 	// Signature: (Ljava/util/List;I)I
 	public int comparePort(List<String> containdPorts, int port){
+		//native code passes the port as a signed short
+		port = port & 0xffff;
 		int match = 0;
 		for(String pt: containdPorts){
-			if(pt.equals(port + "")){
+			Integer value = parsedPorts.get(pt);
+			if(value == null){
+				value = Integer.valueOf(pt);
+				parsedPorts.put(pt, value);
+			}
+			if(value.intValue() == port){
 				match = 1;
 				break;
 			}
 		}
 		return match;
 	}
+
+	/*
+	 * host names are resolved only once, rather than for every packet
+	 */
+	private byte[] resolve(String addr){
+		byte[] resolved = resolvedHosts.get(addr);
+		if(resolved == null && !resolvedHosts.containsKey(addr)){
+			try {
+				resolved = InetAddress.getByName(addr).getAddress();
+			} catch (UnknownHostException e) {
+			}
+			resolvedHosts.put(addr, resolved);
+		}
+		return resolved;
+	}
+
 	//A tool use by JNI to judge whether a list is empty.
 	//Signature: (Ljava/util/List;)I
 	public int isEmpty(List array){
@@ -0,0 +1,46 @@
+package com.mexhee.benchmark;
+
+/**
+ * One benchmark case run by {@link BenchmarkRunner}. The runner repeatedly
+ * calls {@link #prepare()} and {@link #run()}, only {@link #run()} is timed
+ * and profiled, so those inputs which are consumed by one run, such as tcp
+ * packets whose sequence numbers are updated into a connection, should be
+ * built in {@link #prepare()}.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * called once before warming up
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * build the inputs of next {@link #run()}, it is not measured
+	 */
+	public void prepare() throws Exception {
+	}
+
+	/**
+	 * the measured code
+	 *
+	 * @return how many operations are done, such as packets picked
+	 */
+	public abstract int run() throws Exception;
+
+	/**
+	 * called once after measuring
+	 */
+	public void tearDown() throws Exception {
+	}
+}
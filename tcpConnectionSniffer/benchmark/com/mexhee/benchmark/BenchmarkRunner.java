@@ -0,0 +1,234 @@
+package com.mexhee.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A small benchmark harness, every benchmark is warmed up and then measured
+ * in several fixed time iterations. Besides time per operation, it profiles
+ * bytes allocated by the benchmark thread and garbage collections during the
+ * measured iterations. Results could be saved into a csv file, and compared
+ * with a previous csv file as the baseline.
+ */
+public class BenchmarkRunner {
+
+	private int warmupIterations = 3;
+	private int measureIterations = 5;
+	private long iterationMillis = 1000;
+	private List<Pattern> includes = new ArrayList<Pattern>();
+	private Map<String, Result> baseline = new HashMap<String, Result>();
+	private List<Result> results = new ArrayList<Result>();
+
+	/**
+	 * <pre>
+	 * -w n        warm up iterations, default 3
+	 * -i n        measured iterations, default 5
+	 * -t millis   time of one iteration, default 1000
+	 * -out file   save results into a csv file
+	 * -baseline file  compare results with a csv file saved before
+	 * regex ...   only run those benchmarks whose names match
+	 * </pre>
+	 */
+	public static void main(String[] args) throws Exception {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		String out = null;
+		for (int i = 0; i < args.length; i++) {
+			if ("-w".equals(args[i])) {
+				runner.warmupIterations = Integer.parseInt(args[++i]);
+			} else if ("-i".equals(args[i])) {
+				runner.measureIterations = Integer.parseInt(args[++i]);
+			} else if ("-t".equals(args[i])) {
+				runner.iterationMillis = Long.parseLong(args[++i]);
+			} else if ("-out".equals(args[i])) {
+				out = args[++i];
+			} else if ("-baseline".equals(args[i])) {
+				runner.loadBaseline(args[++i]);
+			} else {
+				runner.includes.add(Pattern.compile(args[i]));
+			}
+		}
+		runner.runAll(Benchmarks.all());
+		if (out != null) {
+			runner.save(out);
+		}
+	}
+
+	public void runAll(List<Benchmark> benchmarks) throws Exception {
+		System.out.println(String.format(Locale.US, "%-36s %14s %12s %12s %8s %8s %10s", "benchmark", "ops/s",
+				"ns/op", "B/op", "gc", "gc ms", "vs base"));
+		for (Benchmark benchmark : benchmarks) {
+			if (isIncluded(benchmark.getName())) {
+				Result result = run(benchmark);
+				results.add(result);
+				System.out.println(format(result));
+			}
+		}
+	}
+
+	private boolean isIncluded(String name) {
+		if (includes.isEmpty()) {
+			return true;
+		}
+		for (Pattern pattern : includes) {
+			if (pattern.matcher(name).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Result run(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			for (int i = 0; i < warmupIterations; i++) {
+				iterate(benchmark);
+			}
+			Result total = new Result(benchmark.getName());
+			for (int i = 0; i < measureIterations; i++) {
+				Result result = iterate(benchmark);
+				total.operations += result.operations;
+				total.nanos += result.nanos;
+				total.allocatedBytes += result.allocatedBytes;
+				total.gcCount += result.gcCount;
+				total.gcMillis += result.gcMillis;
+			}
+			return total;
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	private Result iterate(Benchmark benchmark) throws Exception {
+		Result result = new Result(benchmark.getName());
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		while (result.nanos < iterationMillis * 1000000L) {
+			benchmark.prepare();
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			result.operations += benchmark.run();
+			result.nanos += System.nanoTime() - start;
+			result.allocatedBytes += allocatedBytes() - allocated;
+		}
+		// collections caused by preparing are counted as well
+		result.gcCount = gcCount() - gcCount;
+		result.gcMillis = gcMillis() - gcMillis;
+		return result;
+	}
+
+	/*
+	 * bytes allocated by current thread, 0 if the jvm doesn't support it
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, bean.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, bean.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private String format(Result result) {
+		String change = "";
+		Result base = baseline.get(result.name);
+		if (base != null && base.getNanosPerOperation() > 0) {
+			change = String.format(Locale.US, "%+.1f%%",
+					(result.getNanosPerOperation() / base.getNanosPerOperation() - 1) * 100);
+		}
+		return String.format(Locale.US, "%-36s %14.0f %12.1f %12.1f %8d %8d %10s", result.name,
+				result.getOperationsPerSecond(), result.getNanosPerOperation(), result.getBytesPerOperation(),
+				result.gcCount, result.gcMillis, change);
+	}
+
+	private void loadBaseline(String filename) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(",");
+				Result result = new Result(fields[0]);
+				result.operations = Long.parseLong(fields[1]);
+				result.nanos = Long.parseLong(fields[2]);
+				result.allocatedBytes = Long.parseLong(fields[3]);
+				result.gcCount = Long.parseLong(fields[4]);
+				result.gcMillis = Long.parseLong(fields[5]);
+				baseline.put(result.name, result);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void save(String filename) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(filename));
+		try {
+			writer.println("benchmark,operations,nanos,allocatedBytes,gcCount,gcMillis");
+			for (Result result : results) {
+				writer.println(result.name + "," + result.operations + "," + result.nanos + ","
+						+ result.allocatedBytes + "," + result.gcCount + "," + result.gcMillis);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * measured result of one benchmark
+	 */
+	public static class Result {
+
+		private final String name;
+		private long operations;
+		private long nanos;
+		private long allocatedBytes;
+		private long gcCount;
+		private long gcMillis;
+
+		Result(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getOperationsPerSecond() {
+			return nanos == 0 ? 0 : operations * 1000000000d / nanos;
+		}
+
+		public double getNanosPerOperation() {
+			return operations == 0 ? 0 : (double) nanos / operations;
+		}
+
+		public double getBytesPerOperation() {
+			return operations == 0 ? 0 : (double) allocatedBytes / operations;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.mexhee.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mexhee.io.StreamBenchmarks;
+import com.mexhee.tcp.connection.PacketReceiverBenchmarks;
+
+/**
+ * All benchmarks run by {@link BenchmarkRunner}, run it from the project root
+ * directory, so that those captures under tcpConnectionSniffer/test/dump could
+ * be found, for example:
+ *
+ * <pre>
+ * java -cp ... com.mexhee.benchmark.BenchmarkRunner -out baseline.csv
+ * java -cp ... com.mexhee.benchmark.BenchmarkRunner -baseline baseline.csv pick
+ * </pre>
+ */
+public class Benchmarks {
+
+	public static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(PacketReceiverBenchmarks.all());
+		benchmarks.addAll(StreamBenchmarks.all());
+		return benchmarks;
+	}
+}
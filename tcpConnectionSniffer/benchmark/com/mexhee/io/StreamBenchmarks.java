@@ -0,0 +1,142 @@
+package com.mexhee.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mexhee.benchmark.Benchmark;
+
+/**
+ * Benchmarks of connection streams, appending payloads like a packet receiver
+ * and reading them like a connection handler.
+ */
+public class StreamBenchmarks {
+
+	private static final int[] PAYLOAD_LENGTHS = { 64, 1460, 16 * 1024 };
+
+	public static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int length : PAYLOAD_LENGTHS) {
+			benchmarks.add(new AppendReadBenchmark("stream.appendRead." + length, length));
+		}
+		for (int length : PAYLOAD_LENGTHS) {
+			benchmarks.add(new AppendThenDrainBenchmark("stream.appendThenDrain." + length, length));
+		}
+		benchmarks.add(new ChunkedDecodeBenchmark("chunked.decode.1460", 1460));
+		return benchmarks;
+	}
+
+	private static byte[] payload(int length) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) ('a' + i % 26);
+		}
+		return payload;
+	}
+
+	/**
+	 * append one payload and read it back at once, the reader keeps up with
+	 * the receiver, one operation is one payload
+	 */
+	static class AppendReadBenchmark extends Benchmark {
+
+		private static final int PAYLOADS = 1000;
+		private final byte[] payload;
+		private final byte[] buffer = new byte[8192];
+		private DynamicByteArrayInputStream stream;
+
+		AppendReadBenchmark(String name, int length) {
+			super(name);
+			this.payload = payload(length);
+		}
+
+		@Override
+		public void prepare() {
+			stream = new DynamicByteArrayInputStream();
+		}
+
+		@Override
+		public int run() throws Exception {
+			for (int i = 0; i < PAYLOADS; i++) {
+				stream.append(payload);
+				int remaining = payload.length;
+				while (remaining > 0) {
+					remaining -= stream.read(buffer, 0, Math.min(buffer.length, remaining));
+				}
+			}
+			return PAYLOADS;
+		}
+	}
+
+	/**
+	 * append payloads up to about 1m bytes before reading any of them, the
+	 * reader falls behind the receiver, one operation is one payload
+	 */
+	static class AppendThenDrainBenchmark extends Benchmark {
+
+		private final byte[] payload;
+		private final int payloads;
+		private final byte[] buffer = new byte[8192];
+		private DynamicByteArrayInputStream stream;
+
+		AppendThenDrainBenchmark(String name, int length) {
+			super(name);
+			this.payload = payload(length);
+			this.payloads = 1024 * 1024 / length;
+		}
+
+		@Override
+		public void prepare() {
+			stream = new DynamicByteArrayInputStream();
+		}
+
+		@Override
+		public int run() throws Exception {
+			for (int i = 0; i < payloads; i++) {
+				stream.append(payload);
+			}
+			int remaining = payloads * payload.length;
+			while (remaining > 0) {
+				remaining -= stream.read(buffer, 0, Math.min(buffer.length, remaining));
+			}
+			return payloads;
+		}
+	}
+
+	/**
+	 * decode a chunked body, one operation is one chunk
+	 */
+	static class ChunkedDecodeBenchmark extends Benchmark {
+
+		private static final int CHUNKS = 200;
+		private final byte[] body;
+		private final byte[] buffer = new byte[8192];
+		private DynamicByteArrayInputStream stream;
+
+		ChunkedDecodeBenchmark(String name, int chunkLength) {
+			super(name);
+			StringBuffer sb = new StringBuffer();
+			String chunk = new String(payload(chunkLength));
+			for (int i = 0; i < CHUNKS; i++) {
+				sb.append(Integer.toHexString(chunkLength) + "\r\n");
+				sb.append(chunk + "\r\n");
+			}
+			sb.append("0\r\n\r\n");
+			body = sb.toString().getBytes();
+		}
+
+		@Override
+		public void prepare() throws Exception {
+			stream = new DynamicByteArrayInputStream();
+			stream.append(body);
+			stream.finish(false);
+		}
+
+		@Override
+		public int run() throws Exception {
+			ChunkedInputStream chunked = new ChunkedInputStream(stream);
+			while (chunked.read(buffer) > 0) {
+			}
+			return CHUNKS;
+		}
+	}
+}
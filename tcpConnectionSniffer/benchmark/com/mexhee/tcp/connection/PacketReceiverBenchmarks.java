@@ -0,0 +1,239 @@
+package com.mexhee.tcp.connection;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.mexhee.benchmark.Benchmark;
+import com.mexhee.packet.pcap.PcapFileReader;
+import com.mexhee.tcp.packet.TCPPacket;
+
+/**
+ * Benchmarks of packets processing, from picking a packet to appending its
+ * payload into connection stream.
+ */
+public class PacketReceiverBenchmarks {
+
+	private static final int CONNECTIONS = 200;
+	private static final int SEGMENTS = 8;
+	private static final int MSS = 1460;
+
+	public static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new PickBenchmark("pick.inOrder", false));
+		benchmarks.add(new PickBenchmark("pick.reordered", true));
+		benchmarks.add(new CaptureReplayBenchmark("pick.capture"));
+		benchmarks.add(new ConnectionDetailLookupBenchmark("connectionDetail.hashMapLookup"));
+		benchmarks.add(new FlowKeyLookupBenchmark("flowKey.tableLookup"));
+		benchmarks.add(new PacketsBufferBenchmark("packetsBuffer.insertPickup"));
+		return benchmarks;
+	}
+
+	/**
+	 * pick packets of concurrent synthetic connections, one operation is one
+	 * packet
+	 */
+	static class PickBenchmark extends Benchmark {
+
+		private final boolean reordered;
+		private final SyntheticTraffic traffic = new SyntheticTraffic(SEGMENTS, SEGMENTS, MSS);
+		private List<TCPPacket> packets;
+		private Queue<TCPConnection> established;
+		private PacketReceiverImpl receiver;
+
+		PickBenchmark(String name, boolean reordered) {
+			super(name);
+			this.reordered = reordered;
+		}
+
+		@Override
+		public void prepare() {
+			packets = traffic.connections(CONNECTIONS, 10000, reordered);
+			established = new ConcurrentLinkedQueue<TCPConnection>();
+			receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		}
+
+		@Override
+		public int run() throws Exception {
+			for (TCPPacket packet : packets) {
+				receiver.pick(packet);
+			}
+			if (established.size() != CONNECTIONS) {
+				throw new IllegalStateException(established.size() + " connections established");
+			}
+			return packets.size();
+		}
+	}
+
+	/**
+	 * pick packets of the captures under test/dump, decoded by
+	 * {@link PcapFileReader}, one operation is one packet
+	 */
+	static class CaptureReplayBenchmark extends Benchmark {
+
+		private List<String> files = new ArrayList<String>();
+		private List<TCPPacket> packets = new ArrayList<TCPPacket>();
+		private PacketReceiverImpl receiver;
+
+		CaptureReplayBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public void setUp() {
+			File[] captures = new File("tcpConnectionSniffer/test/dump").listFiles();
+			if (captures == null) {
+				throw new IllegalStateException("run benchmarks from the project root directory");
+			}
+			for (File capture : captures) {
+				if (capture.getName().endsWith(".pcap")) {
+					files.add(capture.getAbsolutePath());
+				}
+			}
+		}
+
+		@Override
+		public void prepare() throws Exception {
+			packets.clear();
+			for (String file : files) {
+				PcapFileReader reader = new PcapFileReader(file);
+				TCPPacket packet = null;
+				while ((packet = reader.nextPacket()) != null) {
+					packets.add(packet.detach());
+				}
+				reader.close();
+			}
+			receiver = new PacketReceiverImpl(new ConnectionFilter());
+		}
+
+		@Override
+		public int run() throws Exception {
+			for (TCPPacket packet : packets) {
+				receiver.pick(packet);
+			}
+			return packets.size();
+		}
+	}
+
+	/**
+	 * look up connections by {@link ConnectionDetail} in a hash map, one
+	 * operation is one lookup
+	 */
+	static class ConnectionDetailLookupBenchmark extends Benchmark {
+
+		private Map<ConnectionDetail, Integer> connections = new HashMap<ConnectionDetail, Integer>();
+		private List<ConnectionDetail> lookups = new ArrayList<ConnectionDetail>();
+		private int sink;
+
+		ConnectionDetailLookupBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public void setUp() {
+			SyntheticTraffic traffic = new SyntheticTraffic(1, 1, 1);
+			for (int i = 0; i < CONNECTIONS * 10; i++) {
+				List<TCPPacket> packets = traffic.connection(10000 + i, false);
+				connections.put(packets.get(0).getConnectionDetail(), i);
+				// the reverse direction, a new detail instance every time
+				lookups.add(packets.get(1).getConnectionDetail());
+			}
+		}
+
+		@Override
+		public int run() {
+			for (ConnectionDetail detail : lookups) {
+				sink += connections.get(detail);
+			}
+			return lookups.size();
+		}
+	}
+
+	/**
+	 * look up connections by {@link FlowKey} in a {@link ConnectionTable},
+	 * one operation is one lookup
+	 */
+	static class FlowKeyLookupBenchmark extends Benchmark {
+
+		private ConnectionTable<Integer> connections = new ConnectionTable<Integer>();
+		private List<FlowKey> lookups = new ArrayList<FlowKey>();
+		private int sink;
+
+		FlowKeyLookupBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public void setUp() {
+			SyntheticTraffic traffic = new SyntheticTraffic(1, 1, 1);
+			for (int i = 0; i < CONNECTIONS * 10; i++) {
+				List<TCPPacket> packets = traffic.connection(10000 + i, false);
+				connections.put(packets.get(0).getFlowKey(), i);
+				lookups.add(packets.get(1).getFlowKey());
+			}
+		}
+
+		@Override
+		public int run() {
+			for (FlowKey key : lookups) {
+				sink += connections.get(key);
+			}
+			return lookups.size();
+		}
+	}
+
+	/**
+	 * put the data packets of one direction into {@link PacketsBuffer} in
+	 * reverse order, then pick up all of them, one operation is one packet
+	 */
+	static class PacketsBufferBenchmark extends Benchmark {
+
+		private static final int PACKETS = 64;
+		private final SyntheticTraffic traffic = new SyntheticTraffic(PACKETS, 0, MSS);
+		private TCPConnectionImpl connection;
+		private List<TCPPacket> packets = new ArrayList<TCPPacket>();
+
+		PacketsBufferBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public void prepare() {
+			List<TCPPacket> all = traffic.connection(10000, false);
+			connection = new TCPConnectionImpl(all.get(0).getConnectionDetail());
+			connection.setState(TCPConnectionState.Established);
+			packets.clear();
+			for (int i = PACKETS + 2; i > 2; i--) {
+				TCPPacket packet = all.get(i);
+				packet.detectPacketFlowDirection(connection.getConnectionDetail());
+				packets.add(packet);
+			}
+			// the first data packet is the next one expected
+			TCPPacket first = packets.get(packets.size() - 1);
+			connection.getSequenceNumCounter().clientCounter.seq = first.getSequence();
+			connection.getSequenceNumCounter().clientCounter.ack = first.getAckNum();
+		}
+
+		@Override
+		public int run() throws Exception {
+			PacketsBuffer buffer = connection.getPacketsBuffer();
+			for (TCPPacket packet : packets) {
+				buffer.addToCSTemporaryStoredDataPackets(packet);
+			}
+			int picked = 0;
+			TCPPacket packet = null;
+			while ((packet = buffer.pickupPacket()) != null) {
+				connection.getSequenceNumCounter().updateClientCounter(packet);
+				picked++;
+			}
+			if (picked != PACKETS) {
+				throw new IllegalStateException(picked + " packets picked up");
+			}
+			return picked;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.mexhee.tcp.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mexhee.tcp.packet.TCPPacket;
+
+/**
+ * Builds the packets of complete http like connections with
+ * {@link TCPPacketBuilder}: 3 handshakes, request segments, response segments
+ * and 4 way close. Every connection uses its own client port.
+ */
+class SyntheticTraffic {
+
+	private static final long CLIENT_ISN = 1000;
+	private static final long SERVER_ISN = 500000;
+
+	private final int requestSegments;
+	private final int responseSegments;
+	private final byte[] payload;
+
+	/**
+	 * @param requestSegments
+	 *            client to server data packets of one connection
+	 * @param responseSegments
+	 *            server to client data packets of one connection
+	 * @param payloadLength
+	 *            payload length of every data packet
+	 */
+	SyntheticTraffic(int requestSegments, int responseSegments, int payloadLength) {
+		this.requestSegments = requestSegments;
+		this.responseSegments = responseSegments;
+		this.payload = new byte[payloadLength];
+		for (int i = 0; i < payloadLength; i++) {
+			payload[i] = (byte) ('a' + i % 26);
+		}
+	}
+
+	/**
+	 * @param clientPort
+	 *            client port of the connection
+	 * @param reordered
+	 *            whether to swap every 2 adjacent data packets of one
+	 *            direction
+	 */
+	List<TCPPacket> connection(int clientPort, boolean reordered) {
+		TCPPacketBuilder builder = new TCPPacketBuilder(clientPort, 80, "192.168.1.101", "192.168.1.1");
+		List<TCPPacket> packets = new ArrayList<TCPPacket>();
+		long c = CLIENT_ISN;
+		long s = SERVER_ISN;
+		packets.add(builder.localToServer().syn().setSeqAckNum(c, 0).build());
+		packets.add(builder.serverToLocal().syn().ack().setSeqAckNum(s, c + 1).build());
+		c++;
+		s++;
+		packets.add(builder.localToServer().ack().setSeqAckNum(c, s).build());
+		List<TCPPacket> segments = new ArrayList<TCPPacket>();
+		for (int i = 0; i < requestSegments; i++) {
+			segments.add(builder.localToServer().ack().data(payload).setSeqAckNum(c, s).build());
+			c += payload.length;
+		}
+		addSegments(packets, segments, reordered);
+		segments.clear();
+		for (int i = 0; i < responseSegments; i++) {
+			segments.add(builder.serverToLocal().ack().data(payload).setSeqAckNum(s, c).build());
+			s += payload.length;
+		}
+		addSegments(packets, segments, reordered);
+		packets.add(builder.localToServer().ack().fin().setSeqAckNum(c, s).build());
+		packets.add(builder.serverToLocal().ack().fin().setSeqAckNum(s, c + 1).build());
+		packets.add(builder.localToServer().ack().setSeqAckNum(c + 1, s + 1).build());
+		return packets;
+	}
+
+	private void addSegments(List<TCPPacket> packets, List<TCPPacket> segments, boolean reordered) {
+		for (int i = 0; i < segments.size(); i++) {
+			if (reordered && i % 2 == 0 && i + 1 < segments.size()) {
+				packets.add(segments.get(i + 1));
+				packets.add(segments.get(i));
+				i++;
+			} else {
+				packets.add(segments.get(i));
+			}
+		}
+	}
+
+	/**
+	 * packets of several connections, connections are interleaved packet by
+	 * packet, like concurrent connections on the wire
+	 */
+	List<TCPPacket> connections(int count, int firstClientPort, boolean reordered) {
+		List<List<TCPPacket>> connections = new ArrayList<List<TCPPacket>>();
+		int longest = 0;
+		for (int i = 0; i < count; i++) {
+			List<TCPPacket> packets = connection(firstClientPort + i, reordered);
+			longest = Math.max(longest, packets.size());
+			connections.add(packets);
+		}
+		List<TCPPacket> packets = new ArrayList<TCPPacket>();
+		for (int i = 0; i < longest; i++) {
+			for (List<TCPPacket> connection : connections) {
+				if (i < connection.size()) {
+					packets.add(connection.get(i));
+				}
+			}
+		}
+		return packets;
+	}
+}
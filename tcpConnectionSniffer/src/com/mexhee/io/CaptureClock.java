@@ -0,0 +1,28 @@
+package com.mexhee.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A clock driven by packet capture time, it shows the latest capture time of
+ * those packets processed so far, and never goes backwards, so packets which
+ * are processed out of order or by several threads don't move it back. It is
+ * {@link Clock#NOT_STARTED} until the first packet is processed, as the wall
+ * clock could be far from the capture time of a file being replayed.
+ */
+public class CaptureClock implements Clock {
+
+	private final AtomicLong nanos = new AtomicLong(NOT_STARTED);
+
+	@Override
+	public long currentTimeNanos() {
+		return nanos.get();
+	}
+
+	@Override
+	public void advance(long captureNanos) {
+		long current = nanos.get();
+		while (captureNanos > current && !nanos.compareAndSet(current, captureNanos)) {
+			current = nanos.get();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.mexhee.io;
+
+/**
+ * The time source of timeout, idle and stream time logic, so that a capture
+ * file could be replayed faster than real time and still get the same results
+ * as live capture, see {@link CaptureClock}.
+ */
+public interface Clock {
+
+	/**
+	 * returned by {@link #currentTimeNanos()} when the clock doesn't know the
+	 * time yet, such as a {@link CaptureClock} before the first packet
+	 */
+	long NOT_STARTED = Long.MIN_VALUE;
+
+	/**
+	 * the wall clock, which doesn't follow packets
+	 */
+	Clock SYSTEM = new Clock() {
+
+		@Override
+		public long currentTimeNanos() {
+			return System.currentTimeMillis() * 1000000L;
+		}
+
+		@Override
+		public void advance(long nanos) {
+		}
+	};
+
+	/**
+	 * @return current time, nanoseconds since epoch, or {@link #NOT_STARTED}
+	 */
+	long currentTimeNanos();
+
+	/**
+	 * tell the clock that a packet captured at the given time is being
+	 * processed, a clock which keeps its own time ignores it
+	 * 
+	 * @param nanos
+	 *            capture time, nanoseconds since epoch
+	 */
+	void advance(long nanos);
+}
@@ -1,14 +1,35 @@
 package com.mexhee.io;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Use byte array to store temporary data, it supports appending data into
- * stream dynamically, also supports mark stream EOF, and beginning to generate
- * next new input stream.
+ * Use a list of byte array segments to store temporary data, it supports
+ * appending data into stream dynamically, also supports mark stream EOF, and
+ * beginning to generate next new input stream.
+ * 
+ * Appending never copies those data already in the stream, small data is
+ * copied into the free space of the last chunk, and a big byte array is kept
+ * as a segment itself. Reading walks through segments, and those segments
+ * which are read completely are released. All positions, including stream
+ * marks, are logical offsets since the stream is created, so they never need
+ * to be moved when segments are released.
+ * 
+ * When a spill cache is set, those data beyond the memory threshold is copied
+ * into slots of the {@link FixLengthStreamFileCache} rather than heap chunks,
+ * reading walks through memory and disk segments the same way, and a slot is
+ * freed as soon as its data is read, see
+ * {@link #setSpillCache(FixLengthStreamFileCache, int)}.
+ * 
+ * Readers wait on a {@link ReentrantLock} condition rather than an object
+ * monitor, so a virtual thread blocked on reading doesn't pin its carrier
+ * thread, and an idle connection costs nothing but its buffers.
  * 
  * A sample:
  * 
@@ -33,43 +54,91 @@ import java.util.List;
  */
 public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStream {
 
-	private byte[] buf;
-	// current stream cursor position
-	private int pos = 0;
-	// current stream length
-	private int count = 0;
-	// total buffer size
-	private int bufferSize = 0;
+	/*
+	 * segments[firstSegment] is the first segment still kept, those before it
+	 * are released and set to null
+	 */
+	private List<Segment> segments = new ArrayList<Segment>();
+	private int firstSegment = 0;
+	// logical offset of the first byte in segments[firstSegment]
+	private long firstSegmentOffset = 0;
+	// current stream cursor, the segment and the position in that segment
+	private int readSegment = 0;
+	private int readSegmentPos = 0;
+	// current stream cursor logical position
+	private long pos = 0;
+	// logical position where current stream begins
+	private long streamBeginPos = 0;
+	// total appended data size
+	private long bufferSize = 0;
+	// size of next chunk allocated for copied data
+	private int chunkSize = MIN_CHUNK_SIZE;
 	private boolean isFinished = false;
-	private boolean blocking = true;
+	private volatile boolean blocking = true;
+	private final ReentrantLock lock = new ReentrantLock();
+	// signalled when data is appended or the stream is finished
+	private final Condition dataArrived = lock.newCondition();
+	// where the changes of kept bytes are charged, could be null
+	private MemoryAccount memoryAccount;
+	// kept bytes which are already charged into memoryAccount
+	private long chargedBytes = 0;
+	// where data beyond spillThreshold is kept, could be null
+	private FixLengthStreamFileCache spillCache;
+	private FixLengthStreamFileCache.Owner spillOwner;
+	private int spillThreshold;
+	// data bytes of kept segments in the spill cache
+	private long spilledBytes = 0;
 
-	private Date currentStreamStartTime = new Date();
+	// the time of finishing streams without a given end time
+	private Clock clock = Clock.SYSTEM;
+	// nanoseconds since epoch
+	private long currentStreamStartNanos = System.currentTimeMillis() * 1000000L;
 
 	private List<StreamMark> newInputStreamMarks = new ArrayList<StreamMark>();
 
+	// gaps not passed by the cursor yet, in position order
+	private List<Gap> gaps = new ArrayList<Gap>(0);
+	private long lostBytes = 0;
+
+	// the key of the selector which this stream is registered with, or null
+	private StreamKey selectionKey;
+
 	private final static int READ_TIMEOUT = 300000;
 	private final static int MAX_BUFFER_SIZE = 2000 * 1024;
+	/*
+	 * chunks grow from the min size to the max size, so that a small stream
+	 * doesn't hold a big chunk
+	 */
+	private final static int MIN_CHUNK_SIZE = 1024;
+	private final static int MAX_CHUNK_SIZE = 16 * 1024;
+	/*
+	 * appended byte array which is not smaller than this size is kept as a
+	 * segment itself without copying
+	 */
+	private final static int ADOPT_SIZE = 4 * 1024;
 
 	/*
 	 * used to support mark & rest action in input stream, if current read
 	 * exceed readLimit, then we needn't keep the buffer
 	 */
 	private int readLimit = -1;
-	private int markedPos = -1;
+	private long markedPos = -1;
 
 	/**
 	 * initialize with data in buff
 	 * 
 	 * @param buff
 	 *            create a new stream, and add those data in buff into current
-	 *            stream
+	 *            stream, the array is kept by the stream without copying
 	 * @param startTime
 	 *            the first stream start time
 	 */
 	public DynamicByteArrayInputStream(byte[] buff, Date startTime) {
-		this.buf = buff;
-		this.count = this.bufferSize = buff.length;
-		this.currentStreamStartTime = startTime;
+		if (buff.length > 0) {
+			this.segments.add(new Segment(buff, buff.length, false));
+			this.bufferSize = buff.length;
+		}
+		this.currentStreamStartNanos = startTime.getTime() * 1000000L;
 	}
 
 	/**
@@ -79,7 +148,7 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	 *            the first stream start time
 	 */
 	public DynamicByteArrayInputStream(Date startTime) {
-		this.currentStreamStartTime = startTime;
+		this.currentStreamStartNanos = startTime.getTime() * 1000000L;
 	}
 
 	/**
@@ -89,19 +158,15 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	public DynamicByteArrayInputStream() {
 	}
 
-	private boolean addMarkPos(Date endTime) {
+	private boolean addMarkPos(long endNanos) {
+		long lastEndPos = newInputStreamMarks.isEmpty() ? streamBeginPos : newInputStreamMarks.get(
+				newInputStreamMarks.size() - 1).getEndPos();
 		/**
-		 * to avoid duplicated marking
+		 * to avoid duplicated marking, there should be new data since last
+		 * mark
 		 */
-		if (bufferSize > 0) {
-			/**
-			 * avoid duplicating mark
-			 */
-			if (!newInputStreamMarks.isEmpty()
-					&& bufferSize == newInputStreamMarks.get(newInputStreamMarks.size() - 1).endPos) {
-				return false;
-			}
-			newInputStreamMarks.add(new StreamMark(currentStreamStartTime, endTime, bufferSize));
+		if (bufferSize > lastEndPos) {
+			newInputStreamMarks.add(new StreamMark(currentStreamStartNanos, endNanos, bufferSize));
 			return true;
 		}
 		return false;
@@ -119,29 +184,47 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	 *            this object, set stream into finish state, and cannot append
 	 *            new data any more, if using {@link #append(byte[])} to add a
 	 *            new data, AlreadyFinishedStreamException will be thrown.
-	 * @param endTime
-	 *            the marking end stream end time.
+	 * @param endNanos
+	 *            the marking end stream end time, nanoseconds since epoch
 	 */
-	public synchronized boolean finish(boolean markFinish, Date endTime) {
-		boolean success = addMarkPos(endTime);
-		if (!markFinish) {
-			this.isFinished = true;
-		}
-		if (blocking) {
-			this.notifyAll();
+	public boolean finish(boolean markFinish, long endNanos) {
+		lock.lock();
+		try {
+			boolean success = addMarkPos(endNanos);
+			if (!markFinish) {
+				this.isFinished = true;
+			}
+			if (blocking) {
+				dataArrived.signalAll();
+			}
+			if (!markFinish) {
+				signal(StreamKey.OP_EOF);
+			} else if (success) {
+				signal(StreamKey.OP_MESSAGE_END);
+			}
+			return success;
+		} finally {
+			lock.unlock();
 		}
-		return success;
 	}
 
 	/**
-	 * Use current date time as the marking end stream's end time.
+	 * @see #finish(boolean, long)
+	 */
+	public boolean finish(boolean markFinish, Date endTime) {
+		return finish(markFinish, endTime.getTime() * 1000000L);
+	}
+
+	/**
+	 * Use current time of the clock as the marking end stream's end time, see
+	 * {@link #setClock(Clock)}.
 	 * 
 	 * @return whether add mark successfully, duplicating adding will lead to a
 	 *         skip
-	 * @see #finish(boolean, Date)
+	 * @see #finish(boolean, long)
 	 */
-	public synchronized boolean finish(boolean markFinish) {
-		return finish(markFinish, new Date());
+	public boolean finish(boolean markFinish) {
+		return finish(markFinish, clock.currentTimeNanos());
 	}
 
 	/**
@@ -151,21 +234,64 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	 * @return boolean
 	 */
 	@Override
-	public synchronized boolean isFinished() {
-		return this.isFinished;
+	public boolean isFinished() {
+		lock.lock();
+		try {
+			return this.isFinished;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
 	 * clear all data in this stream, clean buffer, set cursor to 0, and set
 	 * isFinished flag to false
 	 */
-	public synchronized void closeWholeStream() {
-		this.buf = null;
-		this.pos = 0;
-		this.count = 0;
-		this.isFinished = false;
-		this.newInputStreamMarks.clear();
-		this.bufferSize = 0;
+	public void closeWholeStream() {
+		lock.lock();
+		try {
+			for (int i = firstSegment; i < segments.size(); i++) {
+				freeSegment(segments.get(i));
+			}
+			this.segments.clear();
+			this.firstSegment = 0;
+			this.firstSegmentOffset = 0;
+			this.readSegment = 0;
+			this.readSegmentPos = 0;
+			this.pos = 0;
+			this.streamBeginPos = 0;
+			this.chunkSize = MIN_CHUNK_SIZE;
+			this.isFinished = false;
+			this.newInputStreamMarks.clear();
+			this.bufferSize = 0;
+			this.markedPos = -1;
+			this.gaps.clear();
+			charge();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * clear the stream as a new one, so that it could be reused by another
+	 * connection, it should be called only when nobody reads the stream. The
+	 * clock, memory account and spill cache are kept.
+	 */
+	public void recycle() {
+		lock.lock();
+		try {
+			closeWholeStream();
+			this.lostBytes = 0;
+			this.readLimit = -1;
+			this.blocking = true;
+			if (selectionKey != null) {
+				selectionKey.cancel();
+				selectionKey = null;
+			}
+			this.currentStreamStartNanos = clock.currentTimeNanos();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -178,19 +304,33 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	}
 
 	@Override
-	public synchronized void reset() throws IOException {
-		if (this.markedPos == -1) {
-			throw new IOException("cannot reset due to the connect has been finished or no marker.");
+	public void reset() throws IOException {
+		lock.lock();
+		try {
+			if (this.markedPos == -1) {
+				throw new IOException("cannot reset due to the connect has been finished or no marker.");
+			}
+			// walk from the first segment, those segments after mark are kept
+			this.readSegment = firstSegment;
+			this.readSegmentPos = 0;
+			this.pos = firstSegmentOffset;
+			move(null, 0, this.markedPos - firstSegmentOffset);
+			this.markedPos = -1;
+		} finally {
+			lock.unlock();
 		}
-		this.pos = this.markedPos;
-		this.markedPos = -1;
 	}
 
 	@Override
-	public synchronized void mark(int readlimit) {
-		if (readlimit > 0) {
-			this.readLimit = readlimit;
-			this.markedPos = this.pos;
+	public void mark(int readlimit) {
+		lock.lock();
+		try {
+			if (readlimit > 0) {
+				this.readLimit = readlimit;
+				this.markedPos = this.pos;
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -199,6 +339,72 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 		this.blocking = blocking;
 	}
 
+	/**
+	 * set an account where the changes of buffered bytes are charged, those
+	 * bytes already buffered are charged immediately. Bytes are charged when
+	 * they are appended, and released when they are read and cannot be read
+	 * again by reset.
+	 * 
+	 * @param memoryAccount
+	 *            the account, null to stop charging
+	 */
+	public void setMemoryAccount(MemoryAccount memoryAccount) {
+		lock.lock();
+		try {
+			if (this.memoryAccount != null && chargedBytes != 0) {
+				this.memoryAccount.charge(-chargedBytes);
+			}
+			this.memoryAccount = memoryAccount;
+			this.chargedBytes = 0;
+			charge();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * the clock used when the time of the stream is not given, such as
+	 * {@link #finish(boolean)}, the wall clock by default. The start time of
+	 * the current stream is reset to its current time, so it should be set
+	 * before appending data.
+	 */
+	public void setClock(Clock clock) {
+		lock.lock();
+		try {
+			this.clock = clock;
+			this.currentStreamStartNanos = clock.currentTimeNanos();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * keep those data beyond the memory threshold in the spill cache, so that
+	 * a large stream doesn't hit the max buffer size, nor take much heap.
+	 * Spilled bytes are not charged into the memory account. It should be set
+	 * before appending data.
+	 * 
+	 * @param spillCache
+	 *            the cache, it could be shared by many streams, null to keep
+	 *            all data in memory
+	 * @param memoryThreshold
+	 *            max bytes kept in memory, appended data is spilled when those
+	 *            bytes not read yet exceed it
+	 */
+	public void setSpillCache(FixLengthStreamFileCache spillCache, int memoryThreshold) {
+		lock.lock();
+		try {
+			if (spilledBytes > 0) {
+				throw new IllegalStateException("some data is already spilled");
+			}
+			this.spillCache = spillCache;
+			this.spillOwner = spillCache == null ? null : spillCache.newOwner(this);
+			this.spillThreshold = memoryThreshold;
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	/**
 	 * return max buffer size
 	 * 
@@ -209,14 +415,20 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	}
 
 	@Override
-	public synchronized void assertNewInputStream() {
-		if (this.pos != 0) {
-			throw new AssertionError("Not a new inputstream");
+	public void assertNewInputStream() {
+		lock.lock();
+		try {
+			if (this.pos != this.streamBeginPos) {
+				throw new AssertionError("Not a new inputstream");
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	/**
-	 * append data into buffer
+	 * append data into buffer, a big array is kept by the stream without
+	 * copying, so it should not be modified after appended
 	 * 
 	 * @param newBytes
 	 *            data to be added into buffer
@@ -224,81 +436,255 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	 *             if {@link #isFinished} is true BufferFullException if adding
 	 *             this data into buffer will exceed {@link #capacity()} size
 	 */
-	public synchronized void append(byte[] newBytes) throws AlreadyFinishedStreamException, BufferFullException {
+	public void append(byte[] newBytes) throws AlreadyFinishedStreamException, BufferFullException {
+		lock.lock();
+		try {
+			append(newBytes, null, newBytes.length);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * append the data between position and limit of given buffer, the data is
+	 * copied, and the position of given buffer is kept unchanged
+	 * 
+	 * @param newBytes
+	 *            data to be added into buffer
+	 * @throws AlreadyFinishedStreamException
+	 *             if {@link #isFinished} is true
+	 * @throws BufferFullException
+	 *             if adding this data into buffer will exceed
+	 *             {@link #capacity()} size
+	 */
+	public void append(ByteBuffer newBytes) throws AlreadyFinishedStreamException, BufferFullException {
+		lock.lock();
+		try {
+			append(null, newBytes, newBytes.remaining());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * exactly one of newBytes and newBuffer is not null
+	 */
+	private void append(byte[] newBytes, ByteBuffer newBuffer, int length) throws AlreadyFinishedStreamException,
+			BufferFullException {
 		if (isFinished) {
 			throw new AlreadyFinishedStreamException("stream is already finished!");
 		}
-		if (markedPos >= 0 && pos - markedPos <= readLimit) {
-			appendOnly(newBytes);
-		} else {
-			appendAndShrink(newBytes);
+		release();
+		// those data which is not read yet, or could be read again by reset
+		long kept = this.bufferSize - (markedPos >= 0 ? markedPos : pos);
+		boolean spill = spillCache != null && kept - spilledBytes + length > spillThreshold;
+		if (!spill && kept + length > MAX_BUFFER_SIZE) {
+			throw new BufferFullException(this.toString() + " is full, capacity is " + (MAX_BUFFER_SIZE / 1024) + "k");
+		}
+		if (spill) {
+			spill(newBytes, newBuffer, length);
+		} else if (newBytes != null && length >= ADOPT_SIZE) {
+			segments.add(new Segment(newBytes, length, false));
+		} else if (length > 0) {
+			copy(newBytes, newBuffer, length);
+		}
+		this.bufferSize += length;
+		charge();
+		dataArrived.signalAll();
+		if (length > 0) {
+			signal(StreamKey.OP_DATA);
 		}
-		this.notifyAll();
 	}
 
 	/*
-	 * due to support mark in current stream, cannot clear the buffer, so just
-	 * append it
+	 * copy data into the free space of the last chunk, and new chunks
 	 */
-	private void appendOnly(byte[] newBytes) throws BufferFullException {
-		int newSize = this.bufferSize + newBytes.length;
-		if (newSize > MAX_BUFFER_SIZE) {
-			throw new BufferFullException(this.toString() + " is full, capacity is " + (MAX_BUFFER_SIZE / 1024) + "k");
+	private void copy(byte[] newBytes, ByteBuffer newBuffer, int length) {
+		int position = newBuffer == null ? 0 : newBuffer.position();
+		int copied = 0;
+		Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		while (copied < length) {
+			if (tail == null || !tail.owned || tail.isSpilled() || tail.length == tail.bytes.length) {
+				tail = new Segment(new byte[chunkSize], 0, true);
+				segments.add(tail);
+				chunkSize = Math.min(MAX_CHUNK_SIZE, chunkSize * 2);
+			}
+			int size = Math.min(length - copied, tail.bytes.length - tail.length);
+			if (newBytes != null) {
+				System.arraycopy(newBytes, copied, tail.bytes, tail.length, size);
+			} else {
+				newBuffer.get(tail.bytes, tail.length, size);
+			}
+			tail.length += size;
+			copied += size;
 		}
-		byte[] b = new byte[newSize];
-		if (bufferSize > 0) {
-			System.arraycopy(buf, 0, b, 0, bufferSize);
+		if (newBuffer != null) {
+			newBuffer.position(position);
 		}
-		System.arraycopy(newBytes, 0, b, bufferSize, newBytes.length);
-		this.buf = b;
-		this.bufferSize = newSize;
-		if (this.count == 0 || this.newInputStreamMarks.size() == 0) {
-			this.count = this.bufferSize;
+	}
+
+	/*
+	 * copy data into the free space of the last spilled segment, and new
+	 * slots of the spill cache
+	 */
+	private void spill(byte[] newBytes, ByteBuffer newBuffer, int length) throws BufferFullException {
+		int position = newBuffer == null ? 0 : newBuffer.position();
+		int copied = 0;
+		Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		try {
+			while (copied < length) {
+				if (tail == null || !tail.isSpilled() || tail.length == tail.slot.size()) {
+					tail = new Segment(spillCache.allocate(spillOwner));
+					segments.add(tail);
+				}
+				int size = Math.min(length - copied, tail.slot.size() - tail.length);
+				tail.write(newBytes, copied, newBuffer, size);
+				tail.length += size;
+				copied += size;
+			}
+		} catch (BufferFullException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new BufferFullException(e.getMessage());
+		} finally {
+			// the appended length is counted by the caller only if all is copied
+			spilledBytes += copied;
+			if (copied < length) {
+				rollbackSpill(copied);
+			}
+			if (newBuffer != null) {
+				newBuffer.position(position);
+			}
 		}
 	}
 
 	/*
-	 * append buffer and shrink the buffer
+	 * drop those bytes copied by a failed spilling from the tail
 	 */
-	private void appendAndShrink(byte[] newBytes) throws BufferFullException {
-		int available = this.bufferSize - this.pos;
-		int newSize = available + newBytes.length;
-		if (newSize > MAX_BUFFER_SIZE) {
-			throw new BufferFullException(this.toString() + " is full, capacity is " + (MAX_BUFFER_SIZE / 1024) + "k");
+	private void rollbackSpill(int copied) {
+		while (copied > 0) {
+			Segment tail = segments.get(segments.size() - 1);
+			int size = Math.min(copied, tail.length);
+			tail.length -= size;
+			spilledBytes -= size;
+			copied -= size;
+			if (tail.length == 0) {
+				freeSegment(segments.remove(segments.size() - 1));
+			}
 		}
-		/*
-		 * removed pos bytes data, so the count and newInputStreamMarks should
-		 * be minus those pos, and the new value should be greater than 0
-		 */
-		this.count -= this.pos;
-		moveForwardMarks(pos);
-		if (available > 0) {
-			byte[] b = new byte[newSize];
-			System.arraycopy(buf, pos, b, 0, available);
-			System.arraycopy(newBytes, 0, b, available, newBytes.length);
-			this.buf = null;
-			this.buf = b;
-		} else {
-			this.buf = null;
-			this.buf = newBytes;
+	}
+
+	/*
+	 * return the slot of a spilled segment to the spill cache
+	 */
+	private void freeSegment(Segment segment) {
+		if (segment != null && segment.isSpilled()) {
+			spilledBytes -= segment.length;
+			spillCache.free(spillOwner, segment.slot);
 		}
-		this.pos = 0;
-		this.bufferSize = this.buf.length;
-		if (this.count == 0 || this.newInputStreamMarks.size() == 0) {
-			this.count = this.bufferSize;
+	}
+
+	/*
+	 * move the cursor forward len bytes, and copy those bytes into b if it is
+	 * not null
+	 */
+	private void move(byte[] b, int off, long len) {
+		move(b, off, null, len);
+	}
+
+	/*
+	 * move the cursor forward len bytes, and copy those bytes into b or dst if
+	 * either is not null
+	 */
+	private void move(byte[] b, int off, ByteBuffer dst, long len) {
+		pos += len;
+		while (len > 0) {
+			Segment segment = segments.get(readSegment);
+			int size = (int) Math.min(len, segment.length - readSegmentPos);
+			if (size == 0) {
+				readSegment++;
+				readSegmentPos = 0;
+				continue;
+			}
+			if (b != null) {
+				segment.read(readSegmentPos, b, off, size);
+				off += size;
+			} else if (dst != null) {
+				segment.read(readSegmentPos, dst, size);
+			}
+			readSegmentPos += size;
+			len -= size;
 		}
 	}
 
-	private void moveForwardMarks(int pos) {
-		for (int i = 0; i < newInputStreamMarks.size(); i++) {
-			newInputStreamMarks.set(i, newInputStreamMarks.get(i).moveEndPosForward(pos));
+	/*
+	 * release those segments before the cursor, unless they could be read
+	 * again by reset
+	 */
+	private void release() {
+		if (markedPos >= 0 && pos - markedPos > readLimit) {
+			markedPos = -1;
 		}
-		if (!newInputStreamMarks.isEmpty()
-				&& newInputStreamMarks.get(newInputStreamMarks.size() - 1).getEndPos() > this.bufferSize) {
-			throw new IndexOutOfBoundsException();
+		long keptPos = markedPos >= 0 ? markedPos : pos;
+		if (keptPos == bufferSize && !segments.isEmpty()) {
+			// all data is read, reuse the last chunk from its beginning
+			Segment tail = segments.get(segments.size() - 1);
+			for (int i = firstSegment; i < segments.size() - 1; i++) {
+				freeSegment(segments.get(i));
+			}
+			segments.clear();
+			if (tail.isSpilled()) {
+				// don't hold a slot while there is no data
+				freeSegment(tail);
+			} else if (tail.owned) {
+				tail.length = 0;
+				segments.add(tail);
+			}
+			firstSegment = 0;
+			firstSegmentOffset = bufferSize;
+			readSegment = 0;
+			readSegmentPos = 0;
+			charge();
+			return;
+		}
+		while (firstSegment < readSegment && firstSegmentOffset + segments.get(firstSegment).length <= keptPos) {
+			firstSegmentOffset += segments.get(firstSegment).length;
+			freeSegment(segments.get(firstSegment));
+			segments.set(firstSegment++, null);
+		}
+		// remove those released slots once they are the most of the list
+		if (firstSegment >= 16 && firstSegment * 2 >= segments.size()) {
+			segments.subList(0, firstSegment).clear();
+			readSegment -= firstSegment;
+			firstSegment = 0;
+		}
+		charge();
+	}
+
+	/*
+	 * charge the change of those bytes which are not read yet, or could be
+	 * read again by reset
+	 */
+	private void charge() {
+		if (memoryAccount == null) {
+			return;
+		}
+		long kept = this.bufferSize - (markedPos >= 0 ? markedPos : pos);
+		// spilled data doesn't take heap
+		kept = Math.max(0, kept - spilledBytes);
+		if (kept != chargedBytes) {
+			memoryAccount.charge(kept - chargedBytes);
+			chargedBytes = kept;
 		}
 	}
 
+	/*
+	 * the end position of current stream
+	 */
+	private long getCount() {
+		return newInputStreamMarks.isEmpty() ? bufferSize : newInputStreamMarks.get(0).getEndPos();
+	}
+
 	private boolean isCurrentStreamFinished() {
 		if (newInputStreamMarks.size() > 0 && this.pos >= newInputStreamMarks.get(0).getEndPos()) {
 			shrinkToNextInputStream();
@@ -316,52 +702,71 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	 * @see java.io.InputStream#read()
 	 */
 	@Override
-	public synchronized int read() throws IOException {
-		if (pos < count) {
-			return (buf[pos++] & 0xff);
-		} else if (!isCurrentStreamFinished() && blocking) {
-			try {
-				long start = System.currentTimeMillis();
-				this.wait(READ_TIMEOUT);
-				if ((System.currentTimeMillis() - start) >= READ_TIMEOUT) {
-					throw new RuntimeException("Read timeout");
+	public int read() throws IOException {
+		lock.lock();
+		try {
+			if (pos < getCount()) {
+				Segment segment = segments.get(readSegment);
+				while (readSegmentPos == segment.length) {
+					segment = segments.get(++readSegment);
+					readSegmentPos = 0;
 				}
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
+				pos++;
+				return (segment.get(readSegmentPos++) & 0xff);
+			} else if (!isCurrentStreamFinished() && blocking) {
+				awaitData();
+				return read();
+			} else {
+				return -1;
 			}
-			return read();
-		} else {
-			return -1;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * wait until new data is appended or the stream is finished, the lock
+	 * should be held
+	 */
+	private void awaitData() {
+		try {
+			if (!dataArrived.await(READ_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				throw new RuntimeException("Read timeout");
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
 	@Override
-	public synchronized boolean hasMoreInputStream() {
-		return this.newInputStreamMarks.size() > 0 || this.pos < this.bufferSize;
+	public boolean hasMoreInputStream() {
+		lock.lock();
+		try {
+			return this.newInputStreamMarks.size() > 0 || this.pos < this.bufferSize;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
-	public synchronized void finishCurrentInputStream() {
-		this.pos = this.count;
-		shrinkToNextInputStream();
+	public void finishCurrentInputStream() {
+		lock.lock();
+		try {
+			move(null, 0, getCount() - this.pos);
+			shrinkToNextInputStream();
+			release();
+		} finally {
+			lock.unlock();
+		}
 	}
 
-	private synchronized void shrinkToNextInputStream() {
+	private void shrinkToNextInputStream() {
 		if (newInputStreamMarks.isEmpty()) {
 			return;
 		}
-		int newSize = this.bufferSize - this.pos;
-		byte[] b = new byte[newSize];
-		System.arraycopy(buf, pos, b, 0, newSize);
-		this.buf = null;
-		this.buf = b;
-		this.bufferSize = this.buf.length;
-		newInputStreamMarks.remove(0);
-		moveForwardMarks(pos);
-		this.count = this.newInputStreamMarks.size() > 0 ? this.newInputStreamMarks.get(0).getEndPos()
-				: this.bufferSize;
-		this.pos = 0;
+		this.streamBeginPos = newInputStreamMarks.remove(0).getEndPos();
 		this.markedPos = -1;
+		release();
 	}
 
 	/**
@@ -370,39 +775,164 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	 * @see java.io.InputStream#read(byte[], int, int)
 	 */
 	@Override
-	public synchronized int read(byte b[], int off, int len) {
-		if (b == null) {
-			throw new NullPointerException();
-		} else if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) {
-			throw new IndexOutOfBoundsException();
-		}
-		if (pos >= count) {
-			if (!isCurrentStreamFinished() && blocking) {
-				try {
-					long start = System.currentTimeMillis();
-					this.wait(READ_TIMEOUT);
-					if ((System.currentTimeMillis() - start) >= READ_TIMEOUT) {
-						throw new RuntimeException("Read timeout");
-					}
-				} catch (InterruptedException e) {
-					throw new RuntimeException(e);
+	public int read(byte b[], int off, int len) {
+		lock.lock();
+		try {
+			if (b == null) {
+				throw new NullPointerException();
+			} else if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) {
+				throw new IndexOutOfBoundsException();
+			}
+			long count = getCount();
+			if (pos >= count) {
+				if (!isCurrentStreamFinished() && blocking) {
+					awaitData();
+					return read(b, off, len);
+				} else {
+					return -1;
 				}
-				return read(b, off, len);
-			} else {
-				return -1;
 			}
+			len = readableLength(count, len);
+			if (len <= 0) {
+				return 0;
+			}
+			move(b, off, len);
+			release();
+			return len;
+		} finally {
+			lock.unlock();
 		}
-		if (pos + len > count) {
-			len = count - pos;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) {
+		lock.lock();
+		try {
+			long count = getCount();
+			if (pos >= count) {
+				return isCurrentStreamFinished() ? -1 : 0;
+			}
+			int len = readableLength(count, dst.remaining());
+			if (len <= 0) {
+				return 0;
+			}
+			move(null, 0, dst, len);
+			release();
+			return len;
+		} finally {
+			lock.unlock();
 		}
-		if (len <= 0) {
-			return 0;
+	}
+
+	/*
+	 * bytes could be read by one read, not beyond the end of current stream
+	 * or the next gap
+	 */
+	private int readableLength(long count, int len) {
+		long gapPos = nextGapPosition();
+		if (gapPos > pos && gapPos < count) {
+			count = gapPos;
+		}
+		if (pos + len > count) {
+			len = (int) (count - pos);
 		}
-		System.arraycopy(buf, pos, b, off, len);
-		pos += len;
 		return len;
 	}
 
+	@Override
+	public StreamKey register(StreamSelector selector, Object attachment) {
+		lock.lock();
+		try {
+			if (selectionKey != null) {
+				selectionKey.cancel();
+			}
+			selectionKey = selector.newKey(this, attachment);
+			int ops = 0;
+			if (pos < bufferSize) {
+				ops |= StreamKey.OP_DATA;
+			}
+			if (!newInputStreamMarks.isEmpty()) {
+				ops |= StreamKey.OP_MESSAGE_END;
+			}
+			if (isFinished) {
+				ops |= StreamKey.OP_EOF;
+			}
+			signal(ops);
+			return selectionKey;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * report the change to the selector if this stream is registered
+	 */
+	private void signal(int ops) {
+		if (selectionKey == null || ops == 0) {
+			return;
+		}
+		if (selectionKey.isCancelled()) {
+			selectionKey = null;
+			return;
+		}
+		selectionKey.selector().ready(selectionKey, ops);
+	}
+
+	/**
+	 * mark that some data are lost after those data already appended, the
+	 * data appended next follows the gap
+	 * 
+	 * @param length
+	 *            lost bytes
+	 */
+	public void markGap(long length) {
+		lock.lock();
+		try {
+			if (length <= 0) {
+				return;
+			}
+			Gap last = gaps.isEmpty() ? null : gaps.get(gaps.size() - 1);
+			if (last != null && last.position == bufferSize) {
+				last.length += length;
+			} else {
+				gaps.add(new Gap(bufferSize, length));
+			}
+			lostBytes += length;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getGapBeforeNextByte() {
+		lock.lock();
+		try {
+			return nextGapPosition() == pos ? gaps.get(0).length : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getLostBytes() {
+		lock.lock();
+		try {
+			return lostBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * position of the first gap which is not passed by the cursor, or -1
+	 */
+	private long nextGapPosition() {
+		while (!gaps.isEmpty() && gaps.get(0).position < pos) {
+			gaps.remove(0);
+		}
+		return gaps.isEmpty() ? -1 : gaps.get(0).position;
+	}
+
 	/**
 	 * whether is the mark supported, it is true
 	 */
@@ -417,72 +947,187 @@ public class DynamicByteArrayInputStream extends TimeMeasurableCombinedInputStre
 	 * @see java.io.InputStream#skip(long)
 	 */
 	@Override
-	public synchronized long skip(long n) {
-		if (pos + n > count) {
-			n = count - pos;
-		}
-		if (n < 0) {
-			return 0;
+	public long skip(long n) {
+		lock.lock();
+		try {
+			long count = getCount();
+			if (pos + n > count) {
+				n = count - pos;
+			}
+			if (n < 0) {
+				return 0;
+			}
+			move(null, 0, n);
+			release();
+			return n;
+		} finally {
+			lock.unlock();
 		}
-		pos += n;
-		return n;
 	}
 
 	public void markStreamStartTime(Date startTime) {
-		this.currentStreamStartTime = startTime;
+		markStreamStartNanos(startTime.getTime() * 1000000L);
+	}
+
+	/**
+	 * mark the start time of the stream which is being appended
+	 * 
+	 * @param startNanos
+	 *            nanoseconds since epoch
+	 */
+	public void markStreamStartNanos(long startNanos) {
+		lock.lock();
+		try {
+			this.currentStreamStartNanos = startNanos;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getCurrentInputStreamStartNanos() {
+		lock.lock();
+		try {
+			/*
+			 * if there is a marker, then it means current reading/operating stream
+			 * should be in the marker buffer
+			 */
+			if (newInputStreamMarks.size() > 0) {
+				return newInputStreamMarks.get(0).getStartNanos();
+			}
+			return currentStreamStartNanos;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
-	public Date getCurrentInputStreamStartTime() {
+	public long getCurrentInputStreamEndNanos() {
+		lock.lock();
+		try {
+			if (newInputStreamMarks.size() > 0) {
+				return newInputStreamMarks.get(0).getEndNanos();
+			}
+			return -1;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * a byte array or a slot of the spill cache, whose first length bytes are
+	 * data, only those chunks allocated by the stream itself are owned and
+	 * could be written
+	 */
+	private static class Segment {
+		// null if the segment is spilled
+		private final byte[] bytes;
+		private int length;
+		private final boolean owned;
+		// null if the segment is in memory
+		private final FixLengthStreamFileCache.Slot slot;
+
+		Segment(byte[] bytes, int length, boolean owned) {
+			this.bytes = bytes;
+			this.length = length;
+			this.owned = owned;
+			this.slot = null;
+		}
+
+		Segment(FixLengthStreamFileCache.Slot slot) {
+			this.bytes = null;
+			this.length = 0;
+			this.owned = true;
+			this.slot = slot;
+		}
+
+		boolean isSpilled() {
+			return slot != null;
+		}
+
+		byte get(int index) {
+			return bytes != null ? bytes[index] : slot.buffer.get(index);
+		}
+
+		void read(int index, byte[] b, int off, int size) {
+			if (bytes != null) {
+				System.arraycopy(bytes, index, b, off, size);
+			} else {
+				slot.buffer.clear();
+				slot.buffer.position(index);
+				slot.buffer.get(b, off, size);
+			}
+		}
+
+		void read(int index, ByteBuffer dst, int size) {
+			if (bytes != null) {
+				dst.put(bytes, index, size);
+			} else {
+				slot.buffer.clear();
+				slot.buffer.position(index);
+				slot.buffer.limit(index + size);
+				dst.put(slot.buffer);
+			}
+		}
+
 		/*
-		 * if there is a marker, then it means current reading/operating stream
-		 * should be in the marker buffer
+		 * write size bytes after the data of a spilled segment, from src at
+		 * off, or from srcBuffer whose position is moved
 		 */
-		if (newInputStreamMarks.size() > 0) {
-			return newInputStreamMarks.get(0).getStartTime();
+		void write(byte[] src, int off, ByteBuffer srcBuffer, int size) {
+			slot.buffer.clear();
+			slot.buffer.position(length);
+			if (src != null) {
+				slot.buffer.put(src, off, size);
+			} else {
+				ByteBuffer part = srcBuffer.duplicate();
+				part.limit(part.position() + size);
+				slot.buffer.put(part);
+				srcBuffer.position(srcBuffer.position() + size);
+			}
 		}
-		return currentStreamStartTime;
 	}
 
-	@Override
-	public Date getCurrentInputStreamEndTime() {
-		if (newInputStreamMarks.size() > 0) {
-			return newInputStreamMarks.get(0).getEndTime();
+	/*
+	 * length bytes are lost before the byte at position
+	 */
+	private static class Gap {
+		private final long position;
+		private long length;
+
+		Gap(long position, long length) {
+			this.position = position;
+			this.length = length;
 		}
-		return null;
 	}
 
 	class StreamMark {
-		private Date startTime;
-		private Date endTime;
-		private int endPos;
+		private long startNanos;
+		private long endNanos;
+		// logical position since the stream is created
+		private long endPos;
 
-		StreamMark(Date startTime, Date endTime, int endPos) {
-			this.startTime = startTime;
-			this.endTime = endTime;
+		StreamMark(long startNanos, long endNanos, long endPos) {
+			this.startNanos = startNanos;
+			this.endNanos = endNanos;
 			this.endPos = endPos;
 		}
 
-		StreamMark moveEndPosForward(int delta) {
-			endPos -= delta;
-			return this;
-		}
-
-		int getEndPos() {
+		long getEndPos() {
 			return endPos;
 		}
 
-		void markEndPos(int endPos, Date endTime) {
+		void markEndPos(long endPos, long endNanos) {
 			this.endPos = endPos;
-			this.endTime = endTime;
+			this.endNanos = endNanos;
 		}
 
-		Date getStartTime() {
-			return startTime;
+		long getStartNanos() {
+			return startNanos;
 		}
 
-		Date getEndTime() {
-			return endTime;
+		long getEndNanos() {
+			return endNanos;
 		}
 	}
 }
@@ -3,148 +3,227 @@ package com.mexhee.io;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
- * Put a fix length stream content into random access file, provide a simple
- * store and retrieve feature
- * 
+ * A disk tier for stream data which doesn't fit in memory, see
+ * {@link DynamicByteArrayInputStream#setSpillCache(FixLengthStreamFileCache, int)}
+ * . Data is kept in fix length slots of memory mapped files, every file is
+ * pre-allocated with a number of slots and mapped once, so writing and reading
+ * a slot is a memory copy, without seeking or any system call. A freed slot is
+ * reused by the next allocation, and a new file is added only when all slots
+ * are in use, until the max slots count is reached.
+ *
+ * Slots are owned by streams, a stream frees its slots when their data is
+ * read. Slots of a stream which is garbage collected without being read are
+ * reclaimed by later allocations.
+ *
+ * Files are deleted when the cache is closed or the jvm exits.
  */
-public class FixLengthStreamFileCache implements Serializable {
+public class FixLengthStreamFileCache {
 
-	private static final long serialVersionUID = 8393250212216603174L;
-	/*
-	 * it has 20k header, after that is the data content, so the max content
-	 * items count should be 20*1024
+	/**
+	 * default bytes of one slot
+	 */
+	public static final int DEFAULT_SLOT_SIZE = 1024 * 1024;
+	/**
+	 * default slots count of one file
+	 */
+	public static final int DEFAULT_SLOTS_PER_FILE = 64;
+	/**
+	 * default max slots count of the cache, 1g bytes with the default slot
+	 * size
 	 */
-	private transient RandomAccessFile tempFile;
-	private Map<String, Cursor> dataCursors = new HashMap<String, Cursor>(2000);
+	public static final int DEFAULT_MAX_SLOTS = 1024;
 
-	private long headerLen = 20 * 1024;
+	private final File folder;
+	private final int slotSize;
+	private final int slotsPerFile;
+	private final int maxSlots;
 
-	private long cacheFileLen = headerLen;
+	private final List<File> files = new ArrayList<File>();
+	private final ArrayDeque<Slot> freeSlots = new ArrayDeque<Slot>();
+	private int createdSlots = 0;
+	private boolean closed = false;
+
+	// owners whose streams are not collected yet
+	private final Set<Owner> owners = new HashSet<Owner>();
+	private final ReferenceQueue<Object> collectedStreams = new ReferenceQueue<Object>();
 
 	public FixLengthStreamFileCache(String folder) throws IOException {
-		final String filename = folder + File.separator + "mexhee-stream.cache";
-		tempFile = new RandomAccessFile(filename, "rw");
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			public void run() {
-				try {
-					tempFile.close();
-					new File(filename).delete();
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-			}
-		});
+		this(folder, DEFAULT_SLOT_SIZE, DEFAULT_SLOTS_PER_FILE, DEFAULT_MAX_SLOTS);
 	}
 
-	public synchronized String allocate(int size) throws IOException {
-		Cursor newAllocation = new Cursor(cacheFileLen, size);
-		String uuid = UUID.randomUUID().toString();
-		dataCursors.put(uuid, newAllocation);
-		tempFile.writeInt(size);
-		cacheFileLen += 4;
-		return uuid;
+	/**
+	 * @param folder
+	 *            where the cache files are created
+	 * @param slotSize
+	 *            bytes of one slot
+	 * @param slotsPerFile
+	 *            slots count of one file, a file should be smaller than 2g
+	 *            bytes
+	 * @param maxSlots
+	 *            max slots count of all files
+	 */
+	public FixLengthStreamFileCache(String folder, int slotSize, int slotsPerFile, int maxSlots) throws IOException {
+		if (slotSize <= 0 || slotsPerFile <= 0 || maxSlots <= 0) {
+			throw new IllegalArgumentException("slot size, slots per file and max slots should be positive");
+		}
+		if ((long) slotSize * slotsPerFile > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("cache file should be smaller than 2g bytes");
+		}
+		this.folder = new File(folder);
+		if (!this.folder.isDirectory()) {
+			throw new IOException(folder + " is not a folder");
+		}
+		this.slotSize = slotSize;
+		this.slotsPerFile = slotsPerFile;
+		this.maxSlots = maxSlots;
 	}
 
-	public synchronized void write(String uuid, byte[] data) throws IOException {
-		if (data == null || data.length == 0) {
-			return;
-		}
-		Cursor cursor = getCursor(uuid);
-		tempFile.seek(cursor.writePos);
-		tempFile.write(data);
-		int len = data.length;
-		cursor.moveWriteForward(len);
-		cacheFileLen += len;
+	/**
+	 * create the owner of those slots allocated by a stream
+	 */
+	synchronized Owner newOwner(Object stream) {
+		Owner owner = new Owner(stream, collectedStreams);
+		owners.add(owner);
+		return owner;
 	}
 
-	public synchronized int read(String uuid, byte[] data) throws IOException {
-		Cursor cursor = getCursor(uuid);
-		tempFile.seek(cursor.startPos);
-		int contentLen = tempFile.readInt();
-		if (contentLen != cursor.dataLen) {
-			throw new IOException("data may be broken");
+	/**
+	 * allocate a slot, a freed slot is reused first
+	 *
+	 * @throws BufferFullException
+	 *             if all slots are in use
+	 */
+	synchronized Slot allocate(Owner owner) throws IOException {
+		if (closed) {
+			throw new IOException("cache is already closed");
 		}
-		int readLen = data.length;
-		if (cursor.readPos + readLen >= cursor.getEndPos()) {
-			readLen = (int) (cursor.getEndPos() - cursor.readPos);
-			if (readLen <= 0) {
-				return 0;
+		reclaim();
+		if (freeSlots.isEmpty()) {
+			if (createdSlots >= maxSlots) {
+				throw new BufferFullException("stream file cache is full, " + maxSlots + " slots are in use");
 			}
+			addFile();
 		}
-		cursor.moveReadForward(readLen);
-		return tempFile.read(data, 0, readLen);
+		Slot slot = freeSlots.poll();
+		owner.slots.add(slot);
+		return slot;
 	}
 
-	public int getDataLength(String uuid) throws IOException {
-		Cursor cursor = getCursor(uuid);
-		return cursor.dataLen;
+	/**
+	 * return the slot to the cache, so that it could be reused
+	 */
+	synchronized void free(Owner owner, Slot slot) {
+		if (owner.slots.remove(slot) && !closed) {
+			freeSlots.push(slot);
+		}
 	}
 
-	public boolean isContentFull(String uuid) throws IOException {
-		return getCursor(uuid).isFull();
+	/*
+	 * free slots of those streams which are garbage collected
+	 */
+	private void reclaim() {
+		Reference<?> reference = null;
+		while ((reference = collectedStreams.poll()) != null) {
+			Owner owner = (Owner) reference;
+			owners.remove(owner);
+			for (Slot slot : owner.slots) {
+				freeSlots.push(slot);
+			}
+			owner.slots.clear();
+		}
 	}
 
-	private Cursor getCursor(String uuid) throws IOException {
-		Cursor cursor = dataCursors.get(uuid);
-		if (cursor == null) {
-			throw new IOException("incorrect uuid, has not allocate space.");
+	private void addFile() throws IOException {
+		int slots = Math.min(slotsPerFile, maxSlots - createdSlots);
+		File file = File.createTempFile("mexhee-stream", ".cache", folder);
+		file.deleteOnExit();
+		files.add(file);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			// the mapping is still valid after the file is closed
+			MappedByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					(long) slotSize * slots);
+			for (int i = 0; i < slots; i++) {
+				mapped.limit((i + 1) * slotSize);
+				mapped.position(i * slotSize);
+				freeSlots.add(new Slot(mapped.slice()));
+			}
+			createdSlots += slots;
+		} finally {
+			randomAccessFile.close();
 		}
-		return cursor;
 	}
 
-	private class Cursor implements Serializable {
+	public int getSlotSize() {
+		return slotSize;
+	}
 
-		private static final long serialVersionUID = -59030187445465549L;
+	public int getMaxSlots() {
+		return maxSlots;
+	}
 
-		long startPos;
-		int dataLen;
-		long writePos;
-		long readPos;
+	/**
+	 * slots count which are allocated and not freed yet
+	 */
+	public synchronized int getUsedSlots() {
+		reclaim();
+		return createdSlots - freeSlots.size();
+	}
 
-		Cursor(long startPos, int dataLen) {
-			this.startPos = startPos;
-			this.dataLen = dataLen;
-			this.writePos = startPos + 4;
-			this.readPos = startPos + 4;
+	/**
+	 * delete cache files, streams which still have data in the cache should
+	 * not be read any more
+	 */
+	public synchronized void close() {
+		closed = true;
+		freeSlots.clear();
+		owners.clear();
+		for (File file : files) {
+			file.delete();
 		}
+		files.clear();
+	}
 
-		long moveReadForward(int len) throws IOException {
-			/*
-			 * exceed the allocated range
-			 */
-			if (getEndPos() < readPos + len) {
-				throw new IOException("exceed the allocated range");
-			}
-			readPos += len;
-			return readPos;
-		}
+	/**
+	 * a fix length region of a mapped file, the buffer position is used only by
+	 * the owner stream with its lock held
+	 */
+	static final class Slot {
 
-		long moveWriteForward(int len) throws IOException {
-			/*
-			 * exceed the allocated range
-			 */
-			if (getEndPos() < writePos + len) {
-				throw new IOException("exceed the allocated range");
-			}
-			writePos += len;
-			return writePos;
+		final ByteBuffer buffer;
+
+		Slot(ByteBuffer buffer) {
+			this.buffer = buffer;
 		}
 
-		/*
-		 * 4 byte int to indicate the data content length
-		 */
-		long getEndPos() {
-			return startPos + dataLen + 4;
+		int size() {
+			return buffer.capacity();
 		}
+	}
+
+	/**
+	 * slots allocated by one stream, it is enqueued when the stream is garbage
+	 * collected, the slots are guarded by the cache lock
+	 */
+	static final class Owner extends WeakReference<Object> {
+
+		private final List<Slot> slots = new ArrayList<Slot>();
 
-		boolean isFull() {
-			return writePos >= startPos + dataLen + 2;
+		Owner(Object stream, ReferenceQueue<Object> queue) {
+			super(stream, queue);
 		}
 	}
 }
@@ -0,0 +1,16 @@
+package com.mexhee.io;
+
+/**
+ * Receives changes of the bytes buffered by a stream, so that the memory held
+ * by many streams could be bounded as a whole, see
+ * {@link DynamicByteArrayInputStream#setMemoryAccount(MemoryAccount)}.
+ */
+public interface MemoryAccount {
+
+	/**
+	 * @param bytes
+	 *            positive when more bytes are buffered, negative when buffered
+	 *            bytes are released
+	 */
+	void charge(long bytes);
+}
@@ -0,0 +1,115 @@
+package com.mexhee.io;
+
+/**
+ * A token representing the registration of a stream with a
+ * {@link StreamSelector}, it is returned by
+ * {@link TimeMeasurableCombinedInputStream#register(StreamSelector, Object)}.
+ *
+ * Readiness is edge triggered, a key is selected once when the stream changes,
+ * so the consumer should read the stream with
+ * {@link TimeMeasurableCombinedInputStream#read(java.nio.ByteBuffer)} until it
+ * returns 0, otherwise the left data is not reported again until more data
+ * arrives.
+ */
+public final class StreamKey {
+
+	/**
+	 * new data is appended into the stream
+	 */
+	public static final int OP_DATA = 1;
+	/**
+	 * the current message of the stream is ended, such as the client finishes
+	 * a request and the server begins to respond
+	 */
+	public static final int OP_MESSAGE_END = 2;
+	/**
+	 * the whole stream is finished, no more data will be appended
+	 */
+	public static final int OP_EOF = 4;
+
+	private final StreamSelector selector;
+	private final TimeMeasurableCombinedInputStream stream;
+	private final Object attachment;
+	// operations not selected yet, guarded by the selector
+	private int pendingOps;
+	// operations reported by the last selection
+	private volatile int readyOps;
+	private volatile boolean cancelled;
+
+	StreamKey(StreamSelector selector, TimeMeasurableCombinedInputStream stream, Object attachment) {
+		this.selector = selector;
+		this.stream = stream;
+		this.attachment = attachment;
+	}
+
+	public StreamSelector selector() {
+		return selector;
+	}
+
+	public TimeMeasurableCombinedInputStream stream() {
+		return stream;
+	}
+
+	/**
+	 * the object given when the stream is registered
+	 */
+	public Object attachment() {
+		return attachment;
+	}
+
+	/**
+	 * operations reported by the last selection, combination of
+	 * {@link #OP_DATA}, {@link #OP_MESSAGE_END} and {@link #OP_EOF}
+	 */
+	public int readyOps() {
+		return readyOps;
+	}
+
+	public boolean isData() {
+		return (readyOps & OP_DATA) != 0;
+	}
+
+	public boolean isMessageEnd() {
+		return (readyOps & OP_MESSAGE_END) != 0;
+	}
+
+	public boolean isEOF() {
+		return (readyOps & OP_EOF) != 0;
+	}
+
+	/**
+	 * stop reporting the stream, it is not selected any more
+	 */
+	public void cancel() {
+		cancelled = true;
+		selector.cancel(this);
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/*
+	 * called by the selector with its lock held
+	 */
+	boolean addPendingOps(int ops) {
+		boolean added = pendingOps == 0;
+		pendingOps |= ops;
+		return added;
+	}
+
+	/*
+	 * called by the selector with its lock held
+	 */
+	void select() {
+		readyOps = pendingOps;
+		pendingOps = 0;
+	}
+
+	/*
+	 * called by the selector with its lock held
+	 */
+	void clearPendingOps() {
+		pendingOps = 0;
+	}
+}
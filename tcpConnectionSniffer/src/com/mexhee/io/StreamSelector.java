@@ -0,0 +1,136 @@
+package com.mexhee.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reports those streams which have new data, message boundaries or EOF, so
+ * that one thread could service many streams without blocking on any of them.
+ * Streams are registered by
+ * {@link TimeMeasurableCombinedInputStream#register(StreamSelector, Object)},
+ * and read by the non-blocking
+ * {@link TimeMeasurableCombinedInputStream#read(java.nio.ByteBuffer)}.
+ *
+ * A sample:
+ *
+ * <pre>
+ * StreamSelector selector = new StreamSelector();
+ * connection.getClientInputStream().register(selector, connection);
+ * ByteBuffer buffer = ByteBuffer.allocate(4096);
+ * while (running) {
+ * 	for (StreamKey key : selector.select(1000)) {
+ * 		int size = 0;
+ * 		while ((size = key.stream().read(buffer)) &gt; 0) {
+ * 			// consume buffer
+ * 		}
+ * 		if (key.isEOF()) {
+ * 			key.cancel();
+ * 		}
+ * 	}
+ * }
+ * </pre>
+ *
+ * Streams are written by packet receiver threads, and only signal the
+ * selector, they are never blocked by the selecting thread.
+ */
+public class StreamSelector {
+
+	// keys which have pending operations, in the order they became ready
+	private List<StreamKey> readyKeys = new ArrayList<StreamKey>();
+	private boolean wakenUp = false;
+
+	/**
+	 * select those ready streams, waiting until at least one stream is ready,
+	 * or the timeout elapses, or {@link #wakeup()} is called
+	 *
+	 * @param timeoutMillis
+	 *            max milliseconds to wait, 0 to wait without timeout
+	 * @return ready keys, empty if none is ready
+	 * @throws InterruptedException
+	 *             if the selecting thread is interrupted
+	 */
+	public synchronized List<StreamKey> select(long timeoutMillis) throws InterruptedException {
+		if (readyKeys.isEmpty() && !wakenUp) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long wait = timeoutMillis;
+			while (readyKeys.isEmpty() && !wakenUp) {
+				this.wait(wait);
+				if (timeoutMillis > 0) {
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						break;
+					}
+				}
+			}
+		}
+		return selectNow();
+	}
+
+	/**
+	 * select those ready streams without waiting
+	 *
+	 * @return ready keys, empty if none is ready
+	 */
+	public synchronized List<StreamKey> selectNow() {
+		wakenUp = false;
+		if (readyKeys.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<StreamKey> selected = readyKeys;
+		readyKeys = new ArrayList<StreamKey>();
+		for (StreamKey key : selected) {
+			key.select();
+		}
+		return selected;
+	}
+
+	/**
+	 * make the blocked {@link #select(long)} return immediately, or the next
+	 * one if no thread is selecting
+	 */
+	public synchronized void wakeup() {
+		wakenUp = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * register a stream, it is a convenience wrapper of
+	 * {@link TimeMeasurableCombinedInputStream#register(StreamSelector, Object)}
+	 */
+	public StreamKey register(TimeMeasurableCombinedInputStream stream, Object attachment) {
+		return stream.register(this, attachment);
+	}
+
+	/**
+	 * create a key, called by streams when they are registered
+	 */
+	StreamKey newKey(TimeMeasurableCombinedInputStream stream, Object attachment) {
+		return new StreamKey(this, stream, attachment);
+	}
+
+	/**
+	 * signal that the stream of the key is ready, called by streams
+	 *
+	 * @param ops
+	 *            combination of {@link StreamKey#OP_DATA},
+	 *            {@link StreamKey#OP_MESSAGE_END} and {@link StreamKey#OP_EOF}
+	 */
+	synchronized void ready(StreamKey key, int ops) {
+		if (key.isCancelled()) {
+			return;
+		}
+		if (key.addPendingOps(ops)) {
+			readyKeys.add(key);
+			if (readyKeys.size() == 1) {
+				this.notifyAll();
+			}
+		}
+	}
+
+	synchronized void cancel(StreamKey key) {
+		if (readyKeys.remove(key)) {
+			key.clearPendingOps();
+		}
+	}
+}
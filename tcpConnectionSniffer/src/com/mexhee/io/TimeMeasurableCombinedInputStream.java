@@ -1,6 +1,7 @@
 package com.mexhee.io;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 /**
@@ -11,6 +12,7 @@ import java.util.Date;
  * 
  * @see #hasMoreInputStream()
  * @see #getCurrentInputStreamStartTime()
+ * @see StreamSelector
  */
 public abstract class TimeMeasurableCombinedInputStream extends InputStream {
 
@@ -54,16 +56,85 @@ public abstract class TimeMeasurableCombinedInputStream extends InputStream {
 	/**
 	 * get the time when the current input stream is beginning
 	 * 
-	 * @return Date
+	 * @return nanoseconds since epoch
 	 */
-	public abstract Date getCurrentInputStreamStartTime();
+	public abstract long getCurrentInputStreamStartNanos();
 
 	/**
-	 * get the time when the current input stream is ended, return null when
+	 * get the time when the current input stream is ended, return -1 when
 	 * current input stream has not been ended
 	 * 
+	 * @return nanoseconds since epoch, or -1
+	 */
+	public abstract long getCurrentInputStreamEndNanos();
+
+	/**
+	 * get the bytes lost right before the next byte to be read. Those lost
+	 * bytes are never received, such as a packet dropped by kernel, and they
+	 * are skipped so that following data could still be read. Reading never
+	 * returns data across a gap, so the gap could be checked before every
+	 * read.
+	 * 
+	 * @return lost bytes, 0 if the next byte follows the byte read last
+	 */
+	public abstract long getGapBeforeNextByte();
+
+	/**
+	 * get the total bytes lost in gaps of this stream
+	 * 
+	 * @return lost bytes
+	 * @see #getGapBeforeNextByte()
+	 */
+	public abstract long getLostBytes();
+
+	/**
+	 * read data of the current stream into the buffer without blocking,
+	 * whatever the blocking model is. Like {@link #read(byte[])}, it returns
+	 * -1 at the end of the current stream, and the next read returns data of
+	 * the next stream if there is, and it never reads data across a gap.
+	 * 
+	 * @param dst
+	 *            data is put from its position, and the position is moved
+	 * @return bytes read, 0 if no data is available now, or -1 if the current
+	 *         stream is ended
+	 */
+	public abstract int read(ByteBuffer dst);
+
+	/**
+	 * register this stream with a selector, the selector reports the stream
+	 * when new data arrives, the current stream is ended, or the whole stream
+	 * is finished. A stream is registered with one selector at most, the
+	 * previous key is cancelled. The stream is reported immediately if it
+	 * already has data to be read.
+	 * 
+	 * @param selector
+	 *            the selector
+	 * @param attachment
+	 *            any object, such as the connection of this stream, it could
+	 *            be got by {@link StreamKey#attachment()}
+	 * @return the key of this registration
+	 */
+	public abstract StreamKey register(StreamSelector selector, Object attachment);
+
+	/**
+	 * get the time when the current input stream is beginning, it is a
+	 * convenience wrapper of {@link #getCurrentInputStreamStartNanos()}
+	 * 
 	 * @return Date
 	 */
+	public Date getCurrentInputStreamStartTime() {
+		return new Date(getCurrentInputStreamStartNanos() / 1000000);
+	}
 
-	public abstract Date getCurrentInputStreamEndTime();
+	/**
+	 * get the time when the current input stream is ended, return null when
+	 * current input stream has not been ended, it is a convenience wrapper of
+	 * {@link #getCurrentInputStreamEndNanos()}
+	 * 
+	 * @return Date
+	 */
+	public Date getCurrentInputStreamEndTime() {
+		long endNanos = getCurrentInputStreamEndNanos();
+		return endNanos < 0 ? null : new Date(endNanos / 1000000);
+	}
 }
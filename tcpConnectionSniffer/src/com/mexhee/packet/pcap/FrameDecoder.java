@@ -0,0 +1,212 @@
+package com.mexhee.packet.pcap;
+
+import java.nio.ByteBuffer;
+
+import com.mexhee.tcp.packet.ByteBufferTCPPacket;
+import com.mexhee.tcp.packet.TCPPacket;
+
+/**
+ * Decode a captured frame (datalink header, IPv4/IPv6 header and tcp header)
+ * directly from its raw bytes into a {@link TCPPacket}, without the jpcap
+ * native library. Supported datalink types are ethernet (including 802.1Q vlan
+ * tags and pppoe session frames), linux cooked capture, BSD loopback and raw
+ * ip. Non tcp frames, ip fragments and truncated headers are skipped.
+ * 
+ * Nothing is copied or allocated when decoding, the returned packet is a
+ * {@link ByteBufferTCPPacket} view over the frame bytes, which is reused by
+ * the next decoding, so call {@link TCPPacket#detach()} if it has to be kept.
+ */
+public class FrameDecoder {
+
+	public static final int LINKTYPE_NULL = 0;
+	public static final int LINKTYPE_ETHERNET = 1;
+	public static final int LINKTYPE_RAW = 101;
+	public static final int LINKTYPE_LOOP = 108;
+	public static final int LINKTYPE_LINUX_SLL = 113;
+	public static final int LINKTYPE_IPV4 = 228;
+	public static final int LINKTYPE_IPV6 = 229;
+
+	private static final int ETHERTYPE_IP = 0x0800;
+	private static final int ETHERTYPE_IPV6 = 0x86dd;
+	private static final int ETHERTYPE_VLAN = 0x8100;
+	private static final int ETHERTYPE_QINQ = 0x88a8;
+	private static final int ETHERTYPE_QINQ_OLD = 0x9100;
+	private static final int ETHERTYPE_PPPOE_SESSION = 0x8864;
+	private static final int PPP_IP = 0x0021;
+	private static final int PPP_IPV6 = 0x0057;
+
+	private static final int IPPROTO_TCP = 6;
+	private static final int IPPROTO_HOPOPTS = 0;
+	private static final int IPPROTO_ROUTING = 43;
+	private static final int IPPROTO_FRAGMENT = 44;
+	private static final int IPPROTO_AH = 51;
+	private static final int IPPROTO_DSTOPTS = 60;
+
+	private static final int TCP_HEADER_LEN = 20;
+
+	private final ByteBufferTCPPacket packet = new ByteBufferTCPPacket();
+
+	/**
+	 * decode the frame stored at <code>frame[offset, offset + caplen)</code>
+	 *
+	 * @param frame
+	 *            buffer holding the frame, its position and byte order are
+	 *            not used
+	 * @param offset
+	 *            absolute index of the first datalink header byte
+	 * @param caplen
+	 *            captured length of the frame
+	 * @param linkType
+	 *            pcap datalink type of the frame
+	 * @param captureNanos
+	 *            capture time, nanoseconds since epoch
+	 * @return the decoded tcp packet, or null if the frame doesn't carry a
+	 *         complete tcp header, the packet is only valid until next
+	 *         decoding
+	 */
+	public TCPPacket decode(ByteBuffer frame, int offset, int caplen, int linkType, long captureNanos) {
+		int end = offset + caplen;
+		int networkType;
+		int ipOffset;
+		switch (linkType) {
+		case LINKTYPE_ETHERNET:
+			if (caplen < 14) {
+				return null;
+			}
+			ipOffset = offset + 14;
+			networkType = u16(frame, offset + 12);
+			while ((networkType == ETHERTYPE_VLAN || networkType == ETHERTYPE_QINQ || networkType == ETHERTYPE_QINQ_OLD)
+					&& ipOffset + 4 <= end) {
+				networkType = u16(frame, ipOffset + 2);
+				ipOffset += 4;
+			}
+			if (networkType == ETHERTYPE_PPPOE_SESSION) {
+				if (ipOffset + 8 > end) {
+					return null;
+				}
+				int pppProtocol = u16(frame, ipOffset + 6);
+				networkType = pppProtocol == PPP_IP ? ETHERTYPE_IP : (pppProtocol == PPP_IPV6 ? ETHERTYPE_IPV6 : -1);
+				ipOffset += 8;
+			}
+			break;
+		case LINKTYPE_LINUX_SLL:
+			if (caplen < 16) {
+				return null;
+			}
+			networkType = u16(frame, offset + 14);
+			ipOffset = offset + 16;
+			break;
+		case LINKTYPE_NULL:
+		case LINKTYPE_LOOP:
+			if (caplen < 4) {
+				return null;
+			}
+			/*
+			 * the address family is written in the capturing host byte order
+			 * (or network order for LOOP), so accept both orders
+			 */
+			int family = (int) u32(frame, offset);
+			if (family > 0xffff) {
+				family = Integer.reverseBytes(family);
+			}
+			networkType = family == 2 ? ETHERTYPE_IP : ((family == 24 || family == 28 || family == 30) ? ETHERTYPE_IPV6
+					: -1);
+			ipOffset = offset + 4;
+			break;
+		case LINKTYPE_RAW:
+		case LINKTYPE_IPV4:
+		case LINKTYPE_IPV6:
+			if (caplen < 1) {
+				return null;
+			}
+			int version = (frame.get(offset) & 0xf0) >> 4;
+			networkType = version == 4 ? ETHERTYPE_IP : (version == 6 ? ETHERTYPE_IPV6 : -1);
+			ipOffset = offset;
+			break;
+		default:
+			return null;
+		}
+		if (networkType == ETHERTYPE_IP) {
+			return decodeIPv4(frame, ipOffset, end, captureNanos);
+		} else if (networkType == ETHERTYPE_IPV6) {
+			return decodeIPv6(frame, ipOffset, end, captureNanos);
+		}
+		return null;
+	}
+
+	private TCPPacket decodeIPv4(ByteBuffer frame, int ipOffset, int end, long captureNanos) {
+		if (ipOffset + 20 > end) {
+			return null;
+		}
+		int headerLen = (frame.get(ipOffset) & 0x0f) << 2;
+		int totalLen = u16(frame, ipOffset + 2);
+		int fragment = u16(frame, ipOffset + 6);
+		// more fragments flag or fragment offset, ip reassembly is not
+		// supported
+		if ((fragment & 0x3fff) != 0 || frame.get(ipOffset + 9) != IPPROTO_TCP || headerLen < 20) {
+			return null;
+		}
+		int ipEnd = totalLen == 0 ? end : Math.min(end, ipOffset + totalLen);
+		return decodeTCP(frame, ipOffset + 12, 4, ipOffset + headerLen, ipEnd, captureNanos);
+	}
+
+	private TCPPacket decodeIPv6(ByteBuffer frame, int ipOffset, int end, long captureNanos) {
+		if (ipOffset + 40 > end) {
+			return null;
+		}
+		int payloadLen = u16(frame, ipOffset + 4);
+		int ipEnd = payloadLen == 0 ? end : Math.min(end, ipOffset + 40 + payloadLen);
+		int nextHeader = frame.get(ipOffset + 6) & 0xff;
+		int headerOffset = ipOffset + 40;
+		while (nextHeader != IPPROTO_TCP) {
+			if (headerOffset + 8 > ipEnd) {
+				return null;
+			}
+			switch (nextHeader) {
+			case IPPROTO_HOPOPTS:
+			case IPPROTO_ROUTING:
+			case IPPROTO_DSTOPTS:
+				nextHeader = frame.get(headerOffset) & 0xff;
+				headerOffset += ((frame.get(headerOffset + 1) & 0xff) + 1) << 3;
+				break;
+			case IPPROTO_AH:
+				nextHeader = frame.get(headerOffset) & 0xff;
+				headerOffset += ((frame.get(headerOffset + 1) & 0xff) + 2) << 2;
+				break;
+			case IPPROTO_FRAGMENT:
+				// fragment offset or more fragments flag
+				if ((u16(frame, headerOffset + 2) & 0xfff9) != 0) {
+					return null;
+				}
+				nextHeader = frame.get(headerOffset) & 0xff;
+				headerOffset += 8;
+				break;
+			default:
+				return null;
+			}
+		}
+		return decodeTCP(frame, ipOffset + 8, 16, headerOffset, ipEnd, captureNanos);
+	}
+
+	private TCPPacket decodeTCP(ByteBuffer frame, int addressOffset, int addressLen, int tcpOffset, int ipEnd,
+			long captureNanos) {
+		if (tcpOffset + TCP_HEADER_LEN > ipEnd) {
+			return null;
+		}
+		int headerLen = ((frame.get(tcpOffset + 12) & 0xf0) >> 4) << 2;
+		if (headerLen < TCP_HEADER_LEN || tcpOffset + headerLen > ipEnd) {
+			return null;
+		}
+		return packet.wrap(frame, addressOffset, addressLen, tcpOffset, tcpOffset + headerLen, ipEnd - tcpOffset
+				- headerLen, captureNanos);
+	}
+
+	static int u16(ByteBuffer buffer, int index) {
+		return ((buffer.get(index) & 0xff) << 8) | (buffer.get(index + 1) & 0xff);
+	}
+
+	static long u32(ByteBuffer buffer, int index) {
+		return ((long) (buffer.get(index) & 0xff) << 24) | ((buffer.get(index + 1) & 0xff) << 16)
+				| ((buffer.get(index + 2) & 0xff) << 8) | (buffer.get(index + 3) & 0xff);
+	}
+}
@@ -0,0 +1,355 @@
+package com.mexhee.packet.pcap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mexhee.tcp.packet.TCPPacket;
+
+/**
+ * A pure java reader of libpcap (.pcap) and pcapng (.pcapng) capture files.
+ * The file is memory mapped window by window through
+ * {@link FileChannel#map(FileChannel.MapMode, long, long)}, so files bigger
+ * than 2G could be read as well, and every frame is decoded by
+ * {@link FrameDecoder} directly, without jpcap native library.
+ *
+ * A sample to replay a capture file:
+ *
+ * <pre>
+ * PcapFileReader reader = new PcapFileReader(&quot;c:/dump/http.pcap&quot;);
+ * TCPPacket packet = null;
+ * while ((packet = reader.nextPacket()) != null) {
+ * 	receiver.pick(packet);
+ * }
+ * reader.close();
+ * </pre>
+ */
+public class PcapFileReader implements Closeable {
+
+	private static final int PCAP_MAGIC = 0xa1b2c3d4;
+	private static final int PCAP_NANO_MAGIC = 0xa1b23c4d;
+	private static final int PCAPNG_SECTION_HEADER = 0x0a0d0d0a;
+	private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+	private static final int PCAPNG_INTERFACE_DESCRIPTION = 1;
+	private static final int PCAPNG_PACKET = 2;
+	private static final int PCAPNG_SIMPLE_PACKET = 3;
+	private static final int PCAPNG_ENHANCED_PACKET = 6;
+	private static final int PCAPNG_OPTION_TSRESOL = 9;
+
+	private static final int PCAP_HEADER_LEN = 24;
+	private static final int PCAP_RECORD_HEADER_LEN = 16;
+	/*
+	 * a single record or block cannot be bigger than this size, otherwise the
+	 * file is regarded as broken
+	 */
+	private static final int MAX_RECORD_LEN = 16 * 1024 * 1024;
+	private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+	private final String filename;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long fileSize;
+
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long position;
+
+	private ByteOrder order;
+	private boolean pcapng;
+	// libpcap format settings
+	private int linkType;
+	private long unitsPerSecond;
+	// pcapng format settings, one entry per interface description block
+	private List<PcapInterface> interfaces = new ArrayList<PcapInterface>();
+
+	private final FrameDecoder decoder = new FrameDecoder();
+
+	private long framesRead;
+
+	/**
+	 * open a pcap or pcapng file, the format is detected from the file header
+	 *
+	 * @param filename
+	 *            capture file name
+	 * @throws IOException
+	 *             the file cannot be opened or it is not a capture file
+	 */
+	public PcapFileReader(String filename) throws IOException {
+		this.filename = filename;
+		this.file = new RandomAccessFile(filename, "r");
+		this.channel = file.getChannel();
+		this.fileSize = channel.size();
+		try {
+			readFileHeader();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void readFileHeader() throws IOException {
+		if (fileSize < 4) {
+			throw new IOException(filename + " is not a pcap or pcapng file");
+		}
+		map(0, Math.min(fileSize, PCAP_HEADER_LEN));
+		int magic = window.order(ByteOrder.BIG_ENDIAN).getInt(0);
+		if (magic == PCAPNG_SECTION_HEADER) {
+			pcapng = true;
+			return;
+		}
+		if (fileSize < PCAP_HEADER_LEN) {
+			throw new IOException(filename + " is not a pcap or pcapng file");
+		}
+		order = ByteOrder.BIG_ENDIAN;
+		if (magic != PCAP_MAGIC && magic != PCAP_NANO_MAGIC) {
+			order = ByteOrder.LITTLE_ENDIAN;
+			magic = Integer.reverseBytes(magic);
+			if (magic != PCAP_MAGIC && magic != PCAP_NANO_MAGIC) {
+				throw new IOException(filename + " is not a pcap or pcapng file");
+			}
+		}
+		unitsPerSecond = magic == PCAP_NANO_MAGIC ? 1000000000L : 1000000L;
+		window.order(order);
+		linkType = window.getInt(20) & 0x0fffffff;
+		position = PCAP_HEADER_LEN;
+	}
+
+	/**
+	 * read the next tcp packet from the file, those frames which doesn't carry
+	 * a tcp segment will be skipped. The returned packet is a view over the
+	 * mapped file, it is reused when reading next packet, see
+	 * {@link TCPPacket#detach()}
+	 *
+	 * @return next tcp packet, or null if reaches the end of file
+	 * @throws IOException
+	 *             the file is broken
+	 */
+	public TCPPacket nextPacket() throws IOException {
+		while (true) {
+			TCPPacket packet = null;
+			if (pcapng) {
+				if (!hasMore(8)) {
+					return null;
+				}
+				packet = readBlock();
+			} else {
+				if (!hasMore(PCAP_RECORD_HEADER_LEN)) {
+					return null;
+				}
+				packet = readRecord();
+			}
+			if (packet != null) {
+				return packet;
+			}
+			if (position < 0) {
+				// reached a truncated record at the end of file
+				return null;
+			}
+		}
+	}
+
+	private TCPPacket readRecord() throws IOException {
+		ensure(position, PCAP_RECORD_HEADER_LEN);
+		int index = index(position);
+		long seconds = window.getInt(index) & 0xffffffffL;
+		long fraction = window.getInt(index + 4) & 0xffffffffL;
+		int caplen = window.getInt(index + 8);
+		if (caplen < 0 || caplen > MAX_RECORD_LEN) {
+			throw new IOException(filename + " is broken at position " + position);
+		}
+		long frameStart = position + PCAP_RECORD_HEADER_LEN;
+		if (!hasMore(PCAP_RECORD_HEADER_LEN + caplen)) {
+			position = -1;
+			return null;
+		}
+		position = frameStart + caplen;
+		return decode(frameStart, caplen, linkType, toNanos(seconds, fraction, unitsPerSecond));
+	}
+
+	private TCPPacket readBlock() throws IOException {
+		ensure(position, 8);
+		int type = window.order(order == null ? ByteOrder.BIG_ENDIAN : order).getInt(index(position));
+		if (type == PCAPNG_SECTION_HEADER) {
+			if (!hasMore(28)) {
+				position = -1;
+				return null;
+			}
+			readSectionHeader();
+			return null;
+		}
+		if (order == null) {
+			throw new IOException(filename + " doesn't start with a section header block");
+		}
+		int blockLen = window.getInt(index(position) + 4);
+		if (blockLen < 12 || blockLen > MAX_RECORD_LEN || (blockLen & 3) != 0) {
+			throw new IOException(filename + " is broken at position " + position);
+		}
+		long blockStart = position;
+		if (!hasMore(blockLen)) {
+			position = -1;
+			return null;
+		}
+		position += blockLen;
+		ensure(blockStart, blockLen);
+		int index = index(blockStart);
+		switch (type) {
+		case PCAPNG_INTERFACE_DESCRIPTION:
+			readInterfaceDescription(index, blockLen);
+			return null;
+		case PCAPNG_ENHANCED_PACKET:
+		case PCAPNG_PACKET: {
+			int interfaceId = type == PCAPNG_PACKET ? window.getShort(index + 8) & 0xffff : window.getInt(index + 8);
+			PcapInterface pcapInterface = getInterface(interfaceId);
+			long timestamp = ((window.getInt(index + 12) & 0xffffffffL) << 32) | (window.getInt(index + 16) & 0xffffffffL);
+			int caplen = Math.min(window.getInt(index + 20), blockLen - 32);
+			return decode(blockStart + 28, caplen, pcapInterface.linkType, toNanos(timestamp
+					/ pcapInterface.unitsPerSecond, timestamp % pcapInterface.unitsPerSecond,
+					pcapInterface.unitsPerSecond));
+		}
+		case PCAPNG_SIMPLE_PACKET: {
+			PcapInterface pcapInterface = getInterface(0);
+			int caplen = Math.min(window.getInt(index + 8), blockLen - 16);
+			// simple packet block has no timestamp
+			return decode(blockStart + 12, caplen, pcapInterface.linkType, 0);
+		}
+		default:
+			// statistics, name resolution and custom blocks are not used
+			return null;
+		}
+	}
+
+	private void readSectionHeader() throws IOException {
+		ensure(position, 12);
+		int index = index(position);
+		int byteOrderMagic = window.order(ByteOrder.BIG_ENDIAN).getInt(index + 8);
+		if (byteOrderMagic == PCAPNG_BYTE_ORDER_MAGIC) {
+			order = ByteOrder.BIG_ENDIAN;
+		} else if (Integer.reverseBytes(byteOrderMagic) == PCAPNG_BYTE_ORDER_MAGIC) {
+			order = ByteOrder.LITTLE_ENDIAN;
+		} else {
+			throw new IOException(filename + " has an incorrect section header at position " + position);
+		}
+		int blockLen = window.order(order).getInt(index + 4);
+		if (blockLen < 28 || blockLen > MAX_RECORD_LEN) {
+			throw new IOException(filename + " is broken at position " + position);
+		}
+		// interface ids are scoped in one section
+		interfaces.clear();
+		position += blockLen;
+	}
+
+	private void readInterfaceDescription(int index, int blockLen) {
+		PcapInterface pcapInterface = new PcapInterface();
+		pcapInterface.linkType = window.getShort(index + 8) & 0xffff;
+		pcapInterface.unitsPerSecond = 1000000L;
+		int optionIndex = index + 16;
+		int optionsEnd = index + blockLen - 4;
+		while (optionIndex + 4 <= optionsEnd) {
+			int code = window.getShort(optionIndex) & 0xffff;
+			int len = window.getShort(optionIndex + 2) & 0xffff;
+			if (code == 0) {
+				break;
+			}
+			if (code == PCAPNG_OPTION_TSRESOL && len >= 1) {
+				int resolution = window.get(optionIndex + 4) & 0xff;
+				if ((resolution & 0x80) == 0) {
+					pcapInterface.unitsPerSecond = pow(10, resolution);
+				} else {
+					pcapInterface.unitsPerSecond = pow(2, resolution & 0x7f);
+				}
+			}
+			optionIndex += 4 + ((len + 3) & ~3);
+		}
+		interfaces.add(pcapInterface);
+	}
+
+	private PcapInterface getInterface(int interfaceId) throws IOException {
+		if (interfaceId < 0 || interfaceId >= interfaces.size()) {
+			throw new IOException(filename + " refers to an undefined interface " + interfaceId);
+		}
+		return interfaces.get(interfaceId);
+	}
+
+	private TCPPacket decode(long frameStart, int caplen, int frameLinkType, long captureNanos) throws IOException {
+		framesRead++;
+		if (caplen <= 0) {
+			return null;
+		}
+		ensure(frameStart, caplen);
+		return decoder.decode(window, index(frameStart), caplen, frameLinkType, captureNanos);
+	}
+
+	private static long toNanos(long seconds, long fraction, long unitsPerSecond) {
+		if (unitsPerSecond <= 1000000000L && 1000000000L % unitsPerSecond == 0) {
+			return seconds * 1000000000L + fraction * (1000000000L / unitsPerSecond);
+		}
+		return seconds * 1000000000L + (long) (fraction * (1000000000d / unitsPerSecond));
+	}
+
+	private static long pow(int base, int exponent) {
+		long result = 1;
+		for (int i = 0; i < exponent && result < Long.MAX_VALUE / base; i++) {
+			result *= base;
+		}
+		return result;
+	}
+
+	private boolean hasMore(long len) {
+		return position >= 0 && position + len <= fileSize;
+	}
+
+	private int index(long filePosition) {
+		return (int) (filePosition - windowStart);
+	}
+
+	/*
+	 * make sure file range [start, start + len) is in current mapped window
+	 */
+	private void ensure(long start, int len) throws IOException {
+		if (window == null || start < windowStart || start + len > windowStart + window.capacity()) {
+			map(start, Math.min(fileSize - start, Math.max(WINDOW_SIZE, len)));
+		}
+	}
+
+	private void map(long start, long size) throws IOException {
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		if (order != null) {
+			window.order(order);
+		}
+		windowStart = start;
+	}
+
+	/**
+	 * return how many frames have been read from the file, including those non
+	 * tcp frames
+	 */
+	public long getFramesRead() {
+		return framesRead;
+	}
+
+	/**
+	 * return whether the file is in pcapng format
+	 */
+	public boolean isPcapng() {
+		return pcapng;
+	}
+
+	/**
+	 * close the capture file
+	 */
+	@Override
+	public void close() throws IOException {
+		window = null;
+		file.close();
+	}
+
+	private static class PcapInterface {
+		int linkType;
+		long unitsPerSecond;
+	}
+}
@@ -0,0 +1,135 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of established connections waiting to be accepted. It could
+ * be consumed by many threads, waiting threads are parked by the lock of the
+ * queue and every new connection wakes up one of them, so no wakeup is lost.
+ *
+ * When the queue is full, one connection is rejected according to the
+ * {@link OverflowPolicy}, so a burst of new connections doesn't grow memory
+ * without bound while acceptors are behind. Packet receivers put connections
+ * by {@link #enqueue(TCPConnectionImpl)}, a connection put by other methods of
+ * the queue is not subject to the policy.
+ */
+public class AcceptQueue extends ArrayBlockingQueue<TCPConnection> {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * what to do when a connection is established but the queue is full
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * the new connection is not queued and is removed from its receiver,
+		 * later packets of it are handled as packets of unknown connections
+		 */
+		DROP_NEWEST,
+		/**
+		 * the connection waiting for the longest time is removed from the
+		 * queue and from its receiver, and the new connection is queued
+		 */
+		DROP_OLDEST,
+		/**
+		 * the new connection is not queued, but kept by its receiver with
+		 * reassembly stopped, so its data packets are discarded until it is
+		 * closed or timed out, without being detected as a new connection
+		 * again
+		 */
+		STOP_REASSEMBLY
+	}
+
+	private final OverflowPolicy policy;
+
+	public AcceptQueue() {
+		this(DEFAULT_CAPACITY, OverflowPolicy.STOP_REASSEMBLY);
+	}
+
+	/**
+	 * @param capacity
+	 *            max connections waiting to be accepted
+	 * @param policy
+	 *            how to reject a connection when the queue is full
+	 */
+	public AcceptQueue(int capacity, OverflowPolicy policy) {
+		super(capacity);
+		this.policy = policy;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	/**
+	 * put a connection established by the calling receiver, it never blocks
+	 * 
+	 * @return the connection rejected by the overflow policy, null if no
+	 *         connection is rejected
+	 */
+	TCPConnectionImpl enqueue(TCPConnectionImpl connection) {
+		if (offer(connection)) {
+			return null;
+		}
+		switch (policy) {
+		case DROP_OLDEST:
+			TCPConnection oldest = poll();
+			// the room may be taken by another receiver
+			while (!offer(connection)) {
+				if (oldest instanceof TCPConnectionImpl) {
+					((TCPConnectionImpl) oldest).drop();
+				}
+				oldest = poll();
+			}
+			if (oldest instanceof TCPConnectionImpl) {
+				((TCPConnectionImpl) oldest).drop();
+				return (TCPConnectionImpl) oldest;
+			}
+			return null;
+		case STOP_REASSEMBLY:
+			// the connection is owned by the calling thread
+			connection.stopReassembly();
+			return connection;
+		default:
+			connection.drop();
+			return connection;
+		}
+	}
+
+	/**
+	 * wait for a connection at most the given time
+	 * 
+	 * @return the connection, or null if no connection is established in time
+	 */
+	public TCPConnection accept(long timeout, TimeUnit unit) throws InterruptedException {
+		return poll(timeout, unit);
+	}
+
+	/**
+	 * wait for a connection at most the given time, and take those connections
+	 * already waiting with it in one batch
+	 * 
+	 * @param connections
+	 *            where the accepted connections are added
+	 * @param maxConnections
+	 *            max connections accepted in the batch
+	 * @return accepted connections count, 0 if no connection is established in
+	 *         time
+	 */
+	public int accept(Collection<? super TCPConnection> connections, int maxConnections, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		if (maxConnections <= 0) {
+			return 0;
+		}
+		TCPConnection first = poll(timeout, unit);
+		if (first == null) {
+			return 0;
+		}
+		connections.add(first);
+		return 1 + drainTo(connections, maxConnections - 1);
+	}
+}
@@ -0,0 +1,61 @@
+package com.mexhee.tcp.connection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives data of connections as soon as it is reassembled, rather than
+ * buffering it into connection streams to be read by other threads. It is
+ * registered by {@link TCPConnectionSniffer#setDataHandler(ConnectionDataHandler)}
+ * or {@link PacketReceiverImpl#setDataHandler(ConnectionDataHandler)}.
+ * 
+ * All callbacks are called inline on the thread which processes packets of
+ * the connection, callbacks of one connection are never called concurrently,
+ * and a slow handler slows down capturing, so it is for those analyzers which
+ * could keep up with the traffic. Established connections are not put into
+ * the accept queue, and their streams stay empty.
+ * 
+ * The direction is given by clientToServer, which is true for the data sent by
+ * client, that is the data of {@link TCPConnection#getClientInputStream()}.
+ */
+public interface ConnectionDataHandler {
+
+	/**
+	 * a new connection is established, it is called before any data of the
+	 * connection
+	 */
+	void onEstablished(TCPConnection connection);
+
+	/**
+	 * data is received in order
+	 * 
+	 * @param data
+	 *            a read only view of the packet payload without copying, it is
+	 *            only valid during this call, as the captured packet and the
+	 *            view itself could be reused after it returns
+	 * @param captureNanos
+	 *            capture time of the packet, nanoseconds since epoch
+	 */
+	void onData(TCPConnection connection, boolean clientToServer, ByteBuffer data, long captureNanos);
+
+	/**
+	 * the other side begins to send data, which usually means a request is
+	 * finished and the response begins, or the response is finished and the
+	 * next request begins
+	 * 
+	 * @param clientToServer
+	 *            the direction of the data which is going to be received
+	 */
+	void onDirectionSwitch(TCPConnection connection, boolean clientToServer, long captureNanos);
+
+	/**
+	 * some data of one direction is lost and skipped in gap tolerant mode, see
+	 * {@link PacketReceiverImpl#setGapTolerance(long, long)}, the next data of
+	 * that direction follows the gap
+	 */
+	void onGap(TCPConnection connection, boolean clientToServer, long lostBytes);
+
+	/**
+	 * the connection is closed or removed, no more callbacks of it
+	 */
+	void onClose(TCPConnection connection);
+}
@@ -35,7 +35,13 @@ public class ConnectionDetail {
 	private InetAddress serverAddress;
 	private int clientPort;
 	private int serverPort;
-	private final Date creationDate = new Date();
+	/*
+	 * milliseconds since epoch, the date is created only when it is asked. It
+	 * is set by the receiver clock when the connection is created, so it
+	 * follows capture time as other times of the connection
+	 */
+	private long creationMillis = System.currentTimeMillis();
+	private FlowKey flowKey;
 
 	/**
 	 * initialize connection detail instance with parameters
@@ -54,6 +60,7 @@ public class ConnectionDetail {
 		this.serverAddress = serverAddress;
 		this.clientPort = clientPort;
 		this.serverPort = serverPort;
+		this.flowKey = null;
 	}
 
 	/**
@@ -68,7 +75,11 @@ public class ConnectionDetail {
 	 */
 
 	public Date getCreationData() {
-		return this.creationDate;
+		return new Date(this.creationMillis);
+	}
+
+	void setCreationMillis(long creationMillis) {
+		this.creationMillis = creationMillis;
 	}
 
 	/**
@@ -107,6 +118,7 @@ public class ConnectionDetail {
 	 */
 	public void setClientAddress(InetAddress clientAddress) {
 		this.clientAddress = clientAddress;
+		this.flowKey = null;
 	}
 
 	/**
@@ -117,6 +129,7 @@ public class ConnectionDetail {
 	 */
 	public void setServerAddress(InetAddress serverAddress) {
 		this.serverAddress = serverAddress;
+		this.flowKey = null;
 	}
 
 	/**
@@ -127,6 +140,7 @@ public class ConnectionDetail {
 	 */
 	public void setClientPort(int clientPort) {
 		this.clientPort = clientPort;
+		this.flowKey = null;
 	}
 
 	/**
@@ -138,6 +152,7 @@ public class ConnectionDetail {
 
 	public void setServerPort(int serverPort) {
 		this.serverPort = serverPort;
+		this.flowKey = null;
 	}
 
 	/**
@@ -156,6 +171,17 @@ public class ConnectionDetail {
 				&& getServerPort() == connectionDetail.getServerPort();
 	}
 
+	/**
+	 * return the flow key of the connection, built from the client to server
+	 * direction
+	 */
+	public FlowKey getFlowKey() {
+		if (flowKey == null) {
+			flowKey = new FlowKey().set(clientAddress, clientPort, serverAddress, serverPort);
+		}
+		return flowKey;
+	}
+
 	@Override
 	public String toString() {
 		return clientAddress.getHostAddress() + "(" + clientPort + ")->" + serverAddress.getHostAddress() + "("
@@ -167,13 +193,12 @@ public class ConnectionDetail {
 	 */
 	@Override
 	public int hashCode() {
-		int result = (clientAddress.toString() + "/" + clientPort).hashCode();
-		result += (serverAddress.toString() + "/" + serverPort).hashCode();
-		return result;
+		return getFlowKey().hashCode();
 	}
 
 	/**
-	 * compare whether two objects' hashcode are the same
+	 * compare whether two objects have the same ip&port pairs, no matter which
+	 * side is the client
 	 */
 	@Override
 	public boolean equals(Object obj) {
@@ -183,6 +208,6 @@ public class ConnectionDetail {
 			return false;
 		if (getClass() != obj.getClass())
 			return false;
-		return this.hashCode() == obj.hashCode();
+		return getFlowKey().equals(((ConnectionDetail) obj).getFlowKey());
 	}
 }
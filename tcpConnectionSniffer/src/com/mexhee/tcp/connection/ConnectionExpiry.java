@@ -0,0 +1,92 @@
+package com.mexhee.tcp.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timeouts of those connections owned by one receiver, every connection has a
+ * deadline in a {@link TimingWheel}, according to its state and its latest
+ * packet, the timeouts are defined by {@link ConnectionTimeouts}.
+ *
+ * A packet only moves the timer when the deadline becomes earlier, such as the
+ * connection is broken or begins to close. A later deadline is applied when
+ * the timer fires, the connection is scheduled again if it is still active,
+ * so most packets don't touch the wheel at all.
+ *
+ * Capture time is used, expiry is driven by the packets picked by the owning
+ * receiver, so connections are never removed by other threads.
+ */
+class ConnectionExpiry {
+
+	/**
+	 * precision of deadlines
+	 */
+	private static final long TICK_NANOS = 1000L * 1000000L;
+
+	private final TimingWheel<TCPConnectionImpl> wheel = new TimingWheel<TCPConnectionImpl>(TICK_NANOS);
+	private final List<TCPConnectionImpl> due = new ArrayList<TCPConnectionImpl>();
+
+	/**
+	 * record that a packet of the connection is processed
+	 */
+	void touch(TCPConnectionImpl connection, long nowNanos) {
+		if (nowNanos > connection.getLastPacketNanos()) {
+			connection.setLastPacketNanos(nowNanos);
+		}
+		long deadline = deadline(connection);
+		TimingWheel.Timer<TCPConnectionImpl> timer = connection.getExpiryTimer();
+		if (!timer.isScheduled() || deadline < timer.getDeadlineNanos()) {
+			wheel.schedule(timer, deadline);
+		}
+	}
+
+	/**
+	 * stop the timer of a removed connection
+	 */
+	void cancel(TCPConnectionImpl connection) {
+		wheel.cancel(connection.getExpiryTimer());
+	}
+
+	/**
+	 * collect those connections which have timed out at the given time, their
+	 * timers are stopped
+	 */
+	void expire(long nowNanos, List<TCPConnectionImpl> expired) {
+		due.clear();
+		wheel.advance(nowNanos, due);
+		for (TCPConnectionImpl connection : due) {
+			long deadline = deadline(connection);
+			if (deadline > nowNanos) {
+				wheel.schedule(connection.getExpiryTimer(), deadline);
+			} else {
+				expired.add(connection);
+			}
+		}
+	}
+
+	/**
+	 * scheduled connections count
+	 */
+	int size() {
+		return wheel.size();
+	}
+
+	private long deadline(TCPConnectionImpl connection) {
+		return connection.getLastPacketNanos() + timeoutMillis(connection) * 1000000L;
+	}
+
+	/**
+	 * the idle time after which the connection is removed
+	 */
+	static int timeoutMillis(TCPConnectionImpl connection) {
+		TCPConnectionState state = connection.getState();
+		if (connection.isMaybeBroken()) {
+			return ConnectionTimeouts.BROKEN_TIMEOUT;
+		} else if (state == null || state.isLessThan(TCPConnectionState.Established)) {
+			return ConnectionTimeouts.HALF_HANDSHAKE_TIMEOUT;
+		} else if (state.isGreaterThan(TCPConnectionState.Established)) {
+			return ConnectionTimeouts.HALF_CLOSED_TIMEOUT;
+		}
+		return ConnectionTimeouts.TCP_CONNECTION_TIME_OUT;
+	}
+}
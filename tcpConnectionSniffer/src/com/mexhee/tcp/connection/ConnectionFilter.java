@@ -149,6 +149,82 @@ public class ConnectionFilter {
 		return jpcapFilter;
 	}
 
+	/**
+	 * generate a BPF (tcpdump syntax) expression which is equivalent to
+	 * current filter criteria, it could be installed by
+	 * {@link jpcap.JpcapCaptor#setFilter(String, boolean)}, then those
+	 * packets which don't belong to any accepted connection are dropped in
+	 * kernel, and never cross into jvm. As packets of one connection flow in
+	 * both directions, every criteria matches either the client to server
+	 * direction or the server to client direction. The same expression is
+	 * repeated for pppoe session frames.
+	 * 
+	 * <pre>
+	 * filter.addServerFilter(&quot;192.168.1.1&quot;, 80) will generate:
+	 * (tcp and ((dst host 192.168.1.1 and dst port 80) or (src host 192.168.1.1 and src port 80)))
+	 *   or (pppoes and tcp and ((dst host 192.168.1.1 and dst port 80) or (src host 192.168.1.1 and src port 80)))
+	 * </pre>
+	 * 
+	 * @return BPF expression
+	 */
+	public String toBpfExpression() {
+		String expression = toTcpBpfExpression();
+		return "(" + expression + ") or (pppoes and " + expression + ")";
+	}
+
+	private String toTcpBpfExpression() {
+		StringBuilder sb = new StringBuilder();
+		for (ConnectionDetail criteria : filters) {
+			String clientToServer = toBpfExpression(criteria, "src", "dst");
+			if (clientToServer.length() == 0) {
+				// this criteria accepts all tcp connections
+				return "tcp";
+			}
+			if (sb.length() > 0) {
+				sb.append(" or ");
+			}
+			sb.append("(").append(clientToServer).append(") or (").append(toBpfExpression(criteria, "dst", "src"))
+					.append(")");
+		}
+		if (sb.length() == 0) {
+			return "tcp";
+		}
+		return "tcp and (" + sb.toString() + ")";
+	}
+
+	private String toBpfExpression(ConnectionDetail criteria, String client, String server) {
+		StringBuilder sb = new StringBuilder();
+		if (criteria.getClientAddress() != null) {
+			appendBpfPrimitive(sb, client + " host " + toBpfHost(criteria.getClientAddress()));
+		}
+		if (criteria.getClientPort() > 0) {
+			appendBpfPrimitive(sb, client + " port " + criteria.getClientPort());
+		}
+		if (criteria.getServerAddress() != null) {
+			appendBpfPrimitive(sb, server + " host " + toBpfHost(criteria.getServerAddress()));
+		}
+		if (criteria.getServerPort() > 0) {
+			appendBpfPrimitive(sb, server + " port " + criteria.getServerPort());
+		}
+		return sb.toString();
+	}
+
+	private void appendBpfPrimitive(StringBuilder sb, String primitive) {
+		if (sb.length() > 0) {
+			sb.append(" and ");
+		}
+		sb.append(primitive);
+	}
+
+	/*
+	 * ipv6 scoped address, such as fe80::1%eth0, is not accepted by BPF
+	 */
+	private String toBpfHost(InetAddress address) {
+		String host = address.getHostAddress();
+		int scope = host.indexOf('%');
+		return scope > 0 ? host.substring(0, scope) : host;
+	}
+
 	/**
 	 * according to the connection filter, whether the given connection passes
 	 * the filtering
@@ -169,6 +245,26 @@ public class ConnectionFilter {
 		return false;
 	}
 
+	/**
+	 * priority of the given connection, it is used to choose which connection
+	 * is evicted first when buffered data exceeds the budget, see
+	 * {@link MemoryGovernor.EvictionPolicy#LOWEST_PRIORITY}. The criteria added
+	 * first has the highest priority.
+	 * 
+	 * @param connectionDetail
+	 *            the connection detail
+	 * @return a bigger number for a higher priority, 0 if the connection
+	 *         doesn't match any criteria
+	 */
+	public int getPriority(ConnectionDetail connectionDetail) {
+		for (int i = 0; i < filters.size(); i++) {
+			if (isMatch(filters.get(i), connectionDetail)) {
+				return filters.size() - i;
+			}
+		}
+		return 0;
+	}
+
 	private boolean isMatch(ConnectionDetail criteria, ConnectionDetail connInstance) {
 		if (criteria.getClientAddress() != null && !criteria.getClientAddress().equals(connInstance.getClientAddress())) {
 			return false;
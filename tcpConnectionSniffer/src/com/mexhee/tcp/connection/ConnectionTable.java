@@ -0,0 +1,194 @@
+package com.mexhee.tcp.connection;
+
+/**
+ * An open addressing hash table keyed on {@link FlowKey}. Keys are copied into
+ * parallel primitive arrays, so neither looking up nor putting allocates any
+ * object, except growing the table. Collisions are resolved by linear probing,
+ * and removal shifts the following entries backward, so there is no deleted
+ * marker.
+ *
+ * It is not thread safe, it should be only accessed by the thread which owns
+ * the connections.
+ *
+ * @param <V>
+ *            value type
+ */
+class ConnectionTable<V> {
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	// 4 longs per slot, addresses of endpoint A and endpoint B
+	private long[] addresses;
+	private int[] ports;
+	private int[] hashes;
+	private Object[] values;
+	private int mask;
+	private int size;
+
+	ConnectionTable() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            initial capacity, rounded up to a power of 2
+	 */
+	ConnectionTable(int capacity) {
+		int slots = 2;
+		while (slots < capacity) {
+			slots <<= 1;
+		}
+		allocate(slots);
+	}
+
+	private void allocate(int slots) {
+		addresses = new long[slots * 4];
+		ports = new int[slots];
+		hashes = new int[slots];
+		values = new Object[slots];
+		mask = slots - 1;
+	}
+
+	/**
+	 * @return the value mapped to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V get(FlowKey key) {
+		int slot = find(key);
+		return slot < 0 ? null : (V) values[slot];
+	}
+
+	/**
+	 * map the key to the value, the key is copied
+	 *
+	 * @return the previous value mapped to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V put(FlowKey key, V value) {
+		if (value == null) {
+			throw new NullPointerException("null value is not supported");
+		}
+		int slot = find(key);
+		if (slot >= 0) {
+			V previous = (V) values[slot];
+			values[slot] = value;
+			return previous;
+		}
+		if ((size + 1) * 2 > values.length) {
+			resize(values.length * 2);
+		}
+		slot = key.hashCode() & mask;
+		while (values[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		int index = slot * 4;
+		addresses[index] = key.getAddressHighA();
+		addresses[index + 1] = key.getAddressLowA();
+		addresses[index + 2] = key.getAddressHighB();
+		addresses[index + 3] = key.getAddressLowB();
+		ports[slot] = key.getPorts();
+		hashes[slot] = key.hashCode();
+		values[slot] = value;
+		size++;
+		return null;
+	}
+
+	/**
+	 * @return the removed value, or null if the key is not in the table
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(FlowKey key) {
+		int slot = find(key);
+		if (slot < 0) {
+			return null;
+		}
+		V previous = (V) values[slot];
+		removeSlot(slot);
+		return previous;
+	}
+
+	/**
+	 * remove the key only when it is mapped to the given value
+	 *
+	 * @return whether removed
+	 */
+	boolean remove(FlowKey key, V value) {
+		int slot = find(key);
+		if (slot < 0 || values[slot] != value) {
+			return false;
+		}
+		removeSlot(slot);
+		return true;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private int find(FlowKey key) {
+		int slot = key.hashCode() & mask;
+		while (values[slot] != null) {
+			if (hashes[slot] == key.hashCode() && ports[slot] == key.getPorts()) {
+				int index = slot * 4;
+				if (addresses[index + 1] == key.getAddressLowA() && addresses[index + 3] == key.getAddressLowB()
+						&& addresses[index] == key.getAddressHighA() && addresses[index + 2] == key.getAddressHighB()) {
+					return slot;
+				}
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/*
+	 * backward shift deletion, move those following entries of the same probe
+	 * sequence into the hole, so that no lookup stops at the hole
+	 */
+	private void removeSlot(int hole) {
+		values[hole] = null;
+		size--;
+		int slot = hole;
+		while (true) {
+			slot = (slot + 1) & mask;
+			if (values[slot] == null) {
+				return;
+			}
+			int home = hashes[slot] & mask;
+			// the entry could stay if its home slot is in (hole, slot]
+			if (hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot)) {
+				continue;
+			}
+			move(slot, hole);
+			hole = slot;
+		}
+	}
+
+	private void move(int from, int to) {
+		System.arraycopy(addresses, from * 4, addresses, to * 4, 4);
+		ports[to] = ports[from];
+		hashes[to] = hashes[from];
+		values[to] = values[from];
+		values[from] = null;
+	}
+
+	private void resize(int slots) {
+		long[] oldAddresses = addresses;
+		int[] oldPorts = ports;
+		int[] oldHashes = hashes;
+		Object[] oldValues = values;
+		allocate(slots);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] == null) {
+				continue;
+			}
+			int slot = oldHashes[i] & mask;
+			while (values[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			System.arraycopy(oldAddresses, i * 4, addresses, slot * 4, 4);
+			ports[slot] = oldPorts[i];
+			hashes[slot] = oldHashes[i];
+			values[slot] = oldValues[i];
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.mexhee.tcp.connection;
+
+/**
+ * Timeouts of those connections which have no active packets for a long time.
+ * Timed out connections are removed by the receivers owning them, every
+ * connection has a deadline in a timing wheel of its receiver, which is
+ * checked when packets are picked, and when no packet is captured for a
+ * while, see {@link PacketReceiverImpl#tick()}, so no scanning of all
+ * connections is needed.
+ */
+public final class ConnectionTimeouts {
+
+	/**
+	 * connection timeout in millisecond unit
+	 */
+	public static final int TCP_CONNECTION_TIME_OUT = 120 * 1000;
+
+	/**
+	 * When the FIN packet is already sent and usually means the connection just
+	 * need wait for 2MSL to close connection physically.
+	 */
+	public static final int HALF_CLOSED_TIMEOUT = 30 * 1000;
+
+	/**
+	 * when tcp connection sniffer detected that current connection may be
+	 * broken
+	 * 
+	 * @see TCPConnectionImpl#isMaybeBroken()
+	 */
+	public static final int BROKEN_TIMEOUT = 20 * 1000;
+
+	/**
+	 * those half handshake connections timeout, such as client sends a SYN
+	 * packet out, but server has no corresponding service, so there won't be
+	 * any response
+	 * 
+	 */
+	public static final int HALF_HANDSHAKE_TIMEOUT = 10 * 1000;
+
+	private ConnectionTimeouts() {
+	}
+}
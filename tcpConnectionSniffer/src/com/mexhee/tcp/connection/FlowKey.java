@@ -0,0 +1,214 @@
+package com.mexhee.tcp.connection;
+
+import java.net.InetAddress;
+
+/**
+ * A compact key of one tcp connection, built from the ip & port pairs of a
+ * packet without any string or object. Every address is kept in its 128 bits
+ * form, an ipv4 address is stored as an ipv4 mapped ipv6 address
+ * (::ffff:a.b.c.d). The two endpoints are put in a canonical order, the
+ * smaller one first, so packets of both directions of one connection generate
+ * equal keys with the same hash code, and {@link #isReversed()} tells which
+ * direction a key is built from.
+ *
+ * A key is mutable, so that a packet decoder could reuse one instance for all
+ * packets, use {@link #FlowKey(FlowKey)} to keep a copy.
+ */
+public final class FlowKey {
+
+	private static final long IPV4_MAPPED_PREFIX = 0xffff00000000L;
+
+	// the smaller endpoint
+	private long addressHighA;
+	private long addressLowA;
+	// the bigger endpoint
+	private long addressHighB;
+	private long addressLowB;
+	// port of endpoint A in high 16 bits, and port of endpoint B in low 16 bits
+	private int ports;
+	// whether the source endpoint is endpoint B
+	private boolean reversed;
+	private int hash;
+
+	public FlowKey() {
+	}
+
+	/**
+	 * copy constructor
+	 */
+	public FlowKey(FlowKey key) {
+		this.addressHighA = key.addressHighA;
+		this.addressLowA = key.addressLowA;
+		this.addressHighB = key.addressHighB;
+		this.addressLowB = key.addressLowB;
+		this.ports = key.ports;
+		this.reversed = key.reversed;
+		this.hash = key.hash;
+	}
+
+	/**
+	 * set the key with 128 bits addresses
+	 *
+	 * @param sourceHigh
+	 *            high 64 bits of the source address
+	 * @param sourceLow
+	 *            low 64 bits of the source address
+	 * @param sourcePort
+	 *            source port
+	 * @param destinationHigh
+	 *            high 64 bits of the destination address
+	 * @param destinationLow
+	 *            low 64 bits of the destination address
+	 * @param destinationPort
+	 *            destination port
+	 * @return current key
+	 */
+	public FlowKey set(long sourceHigh, long sourceLow, int sourcePort, long destinationHigh, long destinationLow,
+			int destinationPort) {
+		reversed = compare(sourceHigh, sourceLow, sourcePort, destinationHigh, destinationLow, destinationPort) > 0;
+		if (reversed) {
+			addressHighA = destinationHigh;
+			addressLowA = destinationLow;
+			addressHighB = sourceHigh;
+			addressLowB = sourceLow;
+			ports = (destinationPort << 16) | (sourcePort & 0xffff);
+		} else {
+			addressHighA = sourceHigh;
+			addressLowA = sourceLow;
+			addressHighB = destinationHigh;
+			addressLowB = destinationLow;
+			ports = (sourcePort << 16) | (destinationPort & 0xffff);
+		}
+		long h = addressHighA;
+		h = h * 0x9e3779b97f4a7c15L + addressLowA;
+		h = h * 0x9e3779b97f4a7c15L + addressHighB;
+		h = h * 0x9e3779b97f4a7c15L + addressLowB;
+		h = h * 0x9e3779b97f4a7c15L + ports;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		hash = (int) h;
+		return this;
+	}
+
+	/**
+	 * set the key with ipv4 addresses
+	 *
+	 * @param sourceAddress
+	 *            source ipv4 address in an int, in network order
+	 * @param sourcePort
+	 *            source port
+	 * @param destinationAddress
+	 *            destination ipv4 address in an int, in network order
+	 * @param destinationPort
+	 *            destination port
+	 * @return current key
+	 */
+	public FlowKey setIPv4(int sourceAddress, int sourcePort, int destinationAddress, int destinationPort) {
+		return set(0, IPV4_MAPPED_PREFIX | (sourceAddress & 0xffffffffL), sourcePort, 0, IPV4_MAPPED_PREFIX
+				| (destinationAddress & 0xffffffffL), destinationPort);
+	}
+
+	/**
+	 * set the key with address objects
+	 *
+	 * @return current key
+	 */
+	public FlowKey set(InetAddress sourceAddress, int sourcePort, InetAddress destinationAddress, int destinationPort) {
+		byte[] source = sourceAddress.getAddress();
+		byte[] destination = destinationAddress.getAddress();
+		return set(high(source), low(source), sourcePort, high(destination), low(destination), destinationPort);
+	}
+
+	private static long high(byte[] address) {
+		return address.length == 16 ? toLong(address, 0, 8) : 0;
+	}
+
+	private static long low(byte[] address) {
+		return address.length == 16 ? toLong(address, 8, 8) : IPV4_MAPPED_PREFIX | toLong(address, 0, 4);
+	}
+
+	private static long toLong(byte[] bytes, int offset, int len) {
+		long value = 0;
+		for (int i = offset; i < offset + len; i++) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
+	}
+
+	private static int compare(long high1, long low1, int port1, long high2, long low2, int port2) {
+		if (high1 != high2) {
+			return high1 < high2 ? -1 : 1;
+		}
+		if (low1 != low2) {
+			return low1 < low2 ? -1 : 1;
+		}
+		return port1 - port2;
+	}
+
+	/**
+	 * whether current key is built from the packet sent by the bigger
+	 * endpoint, two keys of one connection with the same value means the
+	 * packets are sent in the same direction
+	 */
+	public boolean isReversed() {
+		return reversed;
+	}
+
+	/**
+	 * whether the given key of the same connection is built from the same
+	 * direction packet as current key
+	 */
+	public boolean isSameDirection(FlowKey key) {
+		return reversed == key.reversed;
+	}
+
+	long getAddressHighA() {
+		return addressHighA;
+	}
+
+	long getAddressLowA() {
+		return addressLowA;
+	}
+
+	long getAddressHighB() {
+		return addressHighB;
+	}
+
+	long getAddressLowB() {
+		return addressLowB;
+	}
+
+	int getPorts() {
+		return ports;
+	}
+
+	/**
+	 * the same for both directions of one connection
+	 */
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * two keys are equal when they are from the same connection, no matter
+	 * which direction they are built from
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		FlowKey key = (FlowKey) obj;
+		return addressLowA == key.addressLowA && addressLowB == key.addressLowB && ports == key.ports
+				&& addressHighA == key.addressHighA && addressHighB == key.addressHighB;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toHexString(addressHighA) + ":" + Long.toHexString(addressLowA) + "(" + (ports >>> 16) + ")<->"
+				+ Long.toHexString(addressHighB) + ":" + Long.toHexString(addressLowB) + "(" + (ports & 0xffff) + ")";
+	}
+}
@@ -0,0 +1,158 @@
+package com.mexhee.tcp.connection;
+
+/**
+ * A fixed capacity table of flow keys, kept in parallel primitive arrays, so
+ * that no object is allocated per entry. Subclasses keep their own values in
+ * more arrays indexed by the entry.
+ *
+ * Entries are grouped into buckets of {@link #WAYS} entries by the hash of the
+ * key. A new key takes a free or timed out entry of its bucket, or replaces the
+ * one closest to its deadline when the bucket is full, so adding and looking
+ * up are O(1) however many keys are added, the table never grows, and entries
+ * age out without any scanning.
+ *
+ * It is not thread safe, it should be only accessed by the thread which owns
+ * the connections.
+ */
+abstract class FlowKeyTable {
+
+	/**
+	 * entries count of one bucket
+	 */
+	static final int WAYS = 4;
+
+	// 4 longs per entry, addresses of endpoint A and endpoint B
+	private final long[] addresses;
+	private final int[] ports;
+	private final int[] hashes;
+	// capture time after which the entry is timed out
+	private final long[] deadlines;
+	private final boolean[] used;
+	private final int bucketMask;
+	private int size;
+	private long replaced;
+
+	/**
+	 * @param capacity
+	 *            max entries, rounded up to a power of 2
+	 */
+	FlowKeyTable(int capacity) {
+		int buckets = 1;
+		while (buckets * WAYS < capacity) {
+			buckets <<= 1;
+		}
+		int entries = buckets * WAYS;
+		addresses = new long[entries * 4];
+		ports = new int[entries];
+		hashes = new int[entries];
+		deadlines = new long[entries];
+		used = new boolean[entries];
+		bucketMask = buckets - 1;
+	}
+
+	/**
+	 * entries count of the whole table, the length of value arrays
+	 */
+	final int entries() {
+		return used.length;
+	}
+
+	/**
+	 * take the entry of the key, the existing one is returned if the key is
+	 * already in the table, values of a new entry should be set by the caller,
+	 * including its deadline
+	 */
+	final int put(FlowKey key, long nowNanos) {
+		int entry = find(key);
+		if (entry >= 0) {
+			return entry;
+		}
+		int first = (key.hashCode() & bucketMask) * WAYS;
+		entry = first;
+		for (int i = first; i < first + WAYS; i++) {
+			if (!used[i] || isExpired(i, nowNanos)) {
+				entry = i;
+				break;
+			}
+			if (deadlines[i] < deadlines[entry]) {
+				entry = i;
+			}
+		}
+		if (!used[entry]) {
+			size++;
+		} else if (!isExpired(entry, nowNanos)) {
+			replaced++;
+		}
+		int index = entry * 4;
+		addresses[index] = key.getAddressHighA();
+		addresses[index + 1] = key.getAddressLowA();
+		addresses[index + 2] = key.getAddressHighB();
+		addresses[index + 3] = key.getAddressLowB();
+		ports[entry] = key.getPorts();
+		hashes[entry] = key.hashCode();
+		used[entry] = true;
+		return entry;
+	}
+
+	/**
+	 * find the entry of the key, a timed out entry is removed
+	 * 
+	 * @return the entry, or -1 if the key is not in the table
+	 */
+	final int get(FlowKey key, long nowNanos) {
+		int entry = find(key);
+		if (entry >= 0 && isExpired(entry, nowNanos)) {
+			remove(entry);
+			return -1;
+		}
+		return entry;
+	}
+
+	final long getDeadline(int entry) {
+		return deadlines[entry];
+	}
+
+	final void setDeadline(int entry, long deadlineNanos) {
+		deadlines[entry] = deadlineNanos;
+	}
+
+	void remove(int entry) {
+		if (used[entry]) {
+			used[entry] = false;
+			size--;
+		}
+	}
+
+	/**
+	 * entries count, including those timed out but not replaced yet
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * how many entries are replaced by other keys before their deadlines,
+	 * because their buckets are full
+	 */
+	long getReplaced() {
+		return replaced;
+	}
+
+	private boolean isExpired(int entry, long nowNanos) {
+		return nowNanos > deadlines[entry];
+	}
+
+	private int find(FlowKey key) {
+		int first = (key.hashCode() & bucketMask) * WAYS;
+		for (int i = first; i < first + WAYS; i++) {
+			if (used[i] && hashes[i] == key.hashCode() && ports[i] == key.getPorts()) {
+				int index = i * 4;
+				if (addresses[index + 1] == key.getAddressLowA() && addresses[index + 3] == key.getAddressLowB()
+						&& addresses[index] == key.getAddressHighA() && addresses[index + 2] == key.getAddressHighB()) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,210 @@
+package com.mexhee.tcp.connection;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.mexhee.tcp.packet.SequenceNumbers;
+import com.mexhee.tcp.packet.TCPPacket;
+
+/**
+ * Candidate connections which were already open when capturing started, they
+ * are picked up in the middle when a data packet replies to a buffered data
+ * packet of the other direction, that is, its ack number is the end of the
+ * buffered packet, and its sequence number is the ack number of the buffered
+ * packet. Every candidate indexes those replies expected by its buffered
+ * packets, so a reply is matched by one lookup rather than scanning buffered
+ * packets.
+ *
+ * Candidates are also linked in the order of their latest packets, those which
+ * don't receive any packet within the timeout are expired, and the oldest one
+ * is dropped when the table is full, so unmatched flows don't stay forever.
+ * Capture time is used, so that replaying a capture file expires candidates
+ * the same way as capturing.
+ *
+ * It is not thread safe, it should be only accessed by the thread which owns
+ * the connections.
+ */
+class HalfWayConnectionTable {
+
+	/**
+	 * default max candidates in one table
+	 */
+	static final int MAX_CANDIDATES = 16 * 1024;
+	/**
+	 * default timeout in milliseconds, a candidate is expired if no packet is
+	 * received within it
+	 */
+	static final int CANDIDATE_TIMEOUT = 30 * 1000;
+
+	private final ConnectionTable<Candidate> candidates = new ConnectionTable<Candidate>();
+	private final int maxCandidates;
+	private final long timeoutNanos;
+	// the candidate whose latest packet is the oldest
+	private Candidate head;
+	// the candidate whose latest packet is the newest
+	private Candidate tail;
+
+	HalfWayConnectionTable() {
+		this(MAX_CANDIDATES, CANDIDATE_TIMEOUT);
+	}
+
+	/**
+	 * @param maxCandidates
+	 *            max candidates, the oldest one is dropped when it is full
+	 * @param timeoutMillis
+	 *            a candidate is expired if no packet is received within this
+	 *            capture time
+	 */
+	HalfWayConnectionTable(int maxCandidates, long timeoutMillis) {
+		this.maxCandidates = maxCandidates;
+		this.timeoutNanos = timeoutMillis * 1000000L;
+	}
+
+	/**
+	 * find the candidate of the packet, and move it to the newest end
+	 *
+	 * @return the candidate, or null
+	 */
+	Candidate get(TCPPacket packet) {
+		Candidate candidate = candidates.get(packet.getFlowKey());
+		if (candidate != null) {
+			candidate.lastSeenNanos = packet.getCaptureNanos();
+			unlink(candidate);
+			link(candidate);
+		}
+		return candidate;
+	}
+
+	/**
+	 * add a new candidate, whose first packet is the given one, the oldest
+	 * candidate is dropped if the table is full
+	 */
+	Candidate add(TCPConnectionImpl connection, TCPPacket packet) {
+		if (candidates.size() >= maxCandidates) {
+			remove(head);
+		}
+		Candidate candidate = new Candidate(connection);
+		candidate.lastSeenNanos = packet.getCaptureNanos();
+		candidates.put(connection.getConnectionDetail().getFlowKey(), candidate);
+		link(candidate);
+		return candidate;
+	}
+
+	/**
+	 * remove the candidate, its buffered bytes are released
+	 */
+	void remove(Candidate candidate) {
+		if (candidates.remove(candidate.connection.getConnectionDetail().getFlowKey(), candidate)) {
+			unlink(candidate);
+			candidate.connection.releaseMemoryAccount();
+		}
+	}
+
+	/**
+	 * remove the candidate which is matched, its buffered bytes are kept, as
+	 * it becomes an active connection
+	 */
+	void matched(Candidate candidate) {
+		if (candidates.remove(candidate.connection.getConnectionDetail().getFlowKey(), candidate)) {
+			unlink(candidate);
+		}
+	}
+
+	/**
+	 * remove those candidates which haven't received any packet since the
+	 * timeout, only the oldest end is checked, so it is cheap enough to be
+	 * called for every packet
+	 *
+	 * @return expired candidates count
+	 */
+	int expire(long nowNanos) {
+		int expired = 0;
+		while (head != null && nowNanos - head.lastSeenNanos > timeoutNanos) {
+			remove(head);
+			expired++;
+		}
+		return expired;
+	}
+
+	/**
+	 * remove all candidates
+	 */
+	void clear() {
+		while (head != null) {
+			remove(head);
+		}
+	}
+
+	int size() {
+		return candidates.size();
+	}
+
+	private void link(Candidate candidate) {
+		candidate.previous = tail;
+		candidate.next = null;
+		if (tail == null) {
+			head = candidate;
+		} else {
+			tail.next = candidate;
+		}
+		tail = candidate;
+	}
+
+	private void unlink(Candidate candidate) {
+		if (candidate.previous == null) {
+			head = candidate.next;
+		} else {
+			candidate.previous.next = candidate.next;
+		}
+		if (candidate.next == null) {
+			tail = candidate.previous;
+		} else {
+			candidate.next.previous = candidate.previous;
+		}
+		candidate.previous = null;
+		candidate.next = null;
+	}
+
+	/*
+	 * the ack number and sequence number of a reply, packed into one long
+	 */
+	private static long replyKey(long ackNum, long sequence) {
+		return (ackNum << 32) | sequence;
+	}
+
+	/**
+	 * one candidate connection and those replies expected by its buffered
+	 * packets
+	 */
+	static class Candidate {
+
+		final TCPConnectionImpl connection;
+		private final Set<Long> csReplies = new HashSet<Long>();
+		private final Set<Long> scReplies = new HashSet<Long>();
+		private long lastSeenNanos;
+		private Candidate previous;
+		private Candidate next;
+
+		Candidate(TCPConnectionImpl connection) {
+			this.connection = connection;
+		}
+
+		/**
+		 * index the reply expected by a buffered data packet
+		 */
+		void expectReply(TCPPacket packet) {
+			long key = replyKey(SequenceNumbers.add(packet.getSequence(), packet.getDataLength()),
+					packet.getAckNum());
+			(packet.isSentByClient() ? csReplies : scReplies).add(key);
+		}
+
+		/**
+		 * whether the packet replies to a buffered data packet of the other
+		 * direction
+		 */
+		boolean isReply(TCPPacket packet) {
+			long key = replyKey(packet.getAckNum(), packet.getSequence());
+			return (packet.isSentByClient() ? scReplies : csReplies).contains(key);
+		}
+	}
+}
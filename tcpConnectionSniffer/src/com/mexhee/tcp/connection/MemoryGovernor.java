@@ -0,0 +1,190 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mexhee.io.MemoryAccount;
+
+/**
+ * A process wide byte budget of those data buffered by tcp connections,
+ * including out of order packets in {@link PacketsBuffer} and data not read
+ * yet in connection streams. Every connection charges its buffered bytes into
+ * its own {@link Account}, and all accounts are summed up into the governor.
+ *
+ * When the budget is exceeded, packet receivers evict their own connections,
+ * chosen by the {@link EvictionPolicy}, until the buffered bytes fall below
+ * the low watermark. An evicted connection drops all buffered data, finishes
+ * both streams, and is marked as truncated, so the readers get EOF rather than
+ * waiting for data that never comes. Every receiver only evicts those
+ * connections it owns, so no connection is touched by two threads, and the
+ * budget is shared by all receivers, the one exceeding the budget evicts
+ * first.
+ *
+ * Bytes are accounted while the connection is active in a receiver, data left
+ * in streams of removed connections is released from the budget.
+ */
+public class MemoryGovernor {
+
+	/**
+	 * how to choose the connection to be evicted
+	 */
+	public enum EvictionPolicy {
+		/**
+		 * the connection which has been idle for the longest time
+		 */
+		OLDEST_IDLE,
+		/**
+		 * the connection which buffers the most bytes
+		 */
+		LARGEST,
+		/**
+		 * the connection matching the lowest priority criteria of
+		 * {@link ConnectionFilter}, the largest one if several connections
+		 * have the same priority, see
+		 * {@link ConnectionFilter#getPriority(ConnectionDetail)}
+		 */
+		LOWEST_PRIORITY
+	}
+
+	/**
+	 * evict connections until buffered bytes are not more than this percent
+	 * of the budget, so that eviction doesn't happen for every packet once the
+	 * budget is reached
+	 */
+	private static final int LOW_WATERMARK_PERCENT = 90;
+
+	private final long budget;
+	private final long lowWatermark;
+	private final EvictionPolicy policy;
+	private final AtomicLong bufferedBytes = new AtomicLong();
+
+	/**
+	 * @param budget
+	 *            max bytes buffered by all connections
+	 * @param policy
+	 *            how to choose the connection to be evicted
+	 */
+	public MemoryGovernor(long budget, EvictionPolicy policy) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("budget should be positive, but it is " + budget);
+		}
+		this.budget = budget;
+		this.lowWatermark = budget / 100 * LOW_WATERMARK_PERCENT;
+		this.policy = policy;
+	}
+
+	/**
+	 * create a new account for one connection
+	 */
+	Account newAccount() {
+		return new Account();
+	}
+
+	/**
+	 * whether buffered bytes exceed the budget
+	 */
+	public boolean isOverBudget() {
+		return bufferedBytes.get() > budget;
+	}
+
+	/**
+	 * whether buffered bytes are still above the low watermark, eviction
+	 * stops when it is false
+	 */
+	boolean isAboveLowWatermark() {
+		return bufferedBytes.get() > lowWatermark;
+	}
+
+	/**
+	 * choose the connection to be evicted according to the policy, only those
+	 * connections buffering data are chosen
+	 *
+	 * @return the chosen connection, or null if no connection buffers data
+	 */
+	TCPConnectionImpl chooseVictim(Collection<TCPConnectionImpl> connections, ConnectionFilter filter) {
+		TCPConnectionImpl victim = null;
+		long victimBytes = 0;
+		int victimPriority = 0;
+		for (TCPConnectionImpl connection : connections) {
+			long bytes = connection.getMemoryAccount() == null ? 0 : connection.getMemoryAccount().getBytes();
+			if (bytes <= 0) {
+				continue;
+			}
+			int priority = policy == EvictionPolicy.LOWEST_PRIORITY ? filter.getPriority(connection
+					.getConnectionDetail()) : 0;
+			if (victim == null || isBetterVictim(connection, bytes, priority, victim, victimBytes, victimPriority)) {
+				victim = connection;
+				victimBytes = bytes;
+				victimPriority = priority;
+			}
+		}
+		return victim;
+	}
+
+	private boolean isBetterVictim(TCPConnectionImpl connection, long bytes, int priority, TCPConnectionImpl victim,
+			long victimBytes, int victimPriority) {
+		switch (policy) {
+		case OLDEST_IDLE:
+			return connection.getLastUpdatedMillis() < victim.getLastUpdatedMillis();
+		case LOWEST_PRIORITY:
+			if (priority != victimPriority) {
+				return priority < victimPriority;
+			}
+			return bytes > victimBytes;
+		default:
+			return bytes > victimBytes;
+		}
+	}
+
+	/**
+	 * bytes currently buffered by all connections
+	 */
+	public long getBufferedBytes() {
+		return bufferedBytes.get();
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public EvictionPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * bytes buffered by one connection, charged by its streams and its
+	 * packets buffer. Streams are charged by reader threads as well, so
+	 * charging is synchronized with closing the account.
+	 */
+	class Account implements MemoryAccount {
+
+		private long bytes;
+		private boolean closed;
+
+		@Override
+		public synchronized void charge(long delta) {
+			if (closed) {
+				return;
+			}
+			bytes += delta;
+			bufferedBytes.addAndGet(delta);
+		}
+
+		synchronized long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * release all bytes of this account from the budget, later charges
+		 * are ignored
+		 */
+		synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			bufferedBytes.addAndGet(-bytes);
+			bytes = 0;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.mexhee.tcp.connection;
+
+import jpcap.JpcapCaptor;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A daemon thread, used to take periodic snapshots of {@link SnifferMetrics},
+ * and log them. Kernel statistics are refreshed from the captor before every
+ * snapshot.
+ */
+public class MetricsReporter implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(MetricsReporter.class);
+
+	/**
+	 * snapshot interval in millisecond unit
+	 */
+	public static final int REPORT_INTERVAL = 10 * 1000;
+
+	private SnifferMetrics metrics;
+	private JpcapCaptor captor;
+
+	/**
+	 * @param metrics
+	 *            metrics to report
+	 * @param captor
+	 *            captor capturing on a live network interface, null if there
+	 *            is no kernel statistics, such as reading a file
+	 */
+	public MetricsReporter(SnifferMetrics metrics, JpcapCaptor captor) {
+		this.metrics = metrics;
+		this.captor = captor;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(REPORT_INTERVAL);
+				if (captor != null) {
+					captor.updateStat();
+					// pcap counters are unsigned 32 bits
+					metrics.updateKernelStatistics(captor.received_packets & 0xffffffffL,
+							captor.dropped_packets & 0xffffffffL);
+				}
+				SnifferMetrics.Snapshot snapshot = metrics.takeSnapshot();
+				if (logger.isInfoEnabled())
+					logger.info(snapshot.toString());
+			} catch (InterruptedException e) {
+				logger.info("metrics reporter stopped");
+				return;
+			} catch (Exception e) {
+				logger.error("exception while reporting metrics", e);
+			}
+		}
+	}
+}
@@ -1,14 +1,24 @@
 package com.mexhee.tcp.connection;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.Logger;
 
+import com.mexhee.io.BufferFullException;
+import com.mexhee.io.CaptureClock;
+import com.mexhee.io.Clock;
+import com.mexhee.io.FixLengthStreamFileCache;
+import com.mexhee.tcp.packet.SequenceNumbers;
 import com.mexhee.tcp.packet.TCPPacket;
 
 /**
@@ -20,20 +30,110 @@ public class PacketReceiverImpl implements PacketReceiver {
 
 	/**
 	 * active connections that detected from tcp 3 handshakes or n continuous
-	 * data packets
+	 * data packets, only accessed by the thread picking packets
 	 */
-	private Map<ConnectionDetail, TCPConnectionImpl> activeConnections = new ConcurrentHashMap<ConnectionDetail, TCPConnectionImpl>();
+	private ConnectionTable<TCPConnectionImpl> activeConnections = new ConnectionTable<TCPConnectionImpl>();
+	/**
+	 * the same connections as {@link #activeConnections}, which could be
+	 * visited by other threads, such as {@link SnifferMetrics} and
+	 * {@link MemoryGovernor}
+	 */
+	private Set<TCPConnectionImpl> activeConnectionsView = Collections
+			.newSetFromMap(new ConcurrentHashMap<TCPConnectionImpl, Boolean>());
+	/**
+	 * connections removed by other threads, they are removed from
+	 * {@link #activeConnections} by the thread picking packets
+	 */
+	private Queue<TCPConnectionImpl> removedConnections = new ConcurrentLinkedQueue<TCPConnectionImpl>();
+	/**
+	 * connections which only sent SYN, they become connections when SYN/ACK
+	 * arrives
+	 */
+	private SynTable synTable = new SynTable();
+	// connections rejected by the filter, their packets are discarded
+	private final RejectedFlows rejectedFlows = new RejectedFlows();
 	/**
 	 * candidate connections that to be detected from n continuous data packets
 	 */
-	private Map<ConnectionDetail, TCPConnectionImpl> halfWayConnections = new ConcurrentHashMap<ConnectionDetail, TCPConnectionImpl>();
+	private HalfWayConnectionTable halfWayConnections = new HalfWayConnectionTable();
+	/**
+	 * deadlines of active connections
+	 */
+	private ConnectionExpiry expiry = new ConnectionExpiry();
+	private List<TCPConnectionImpl> expiredConnections = new ArrayList<TCPConnectionImpl>();
+	/**
+	 * closed connections which were never published, they are reused by new
+	 * connections, so that connections which never complete the handshake
+	 * don't allocate streams and buffers again and again. The pool is owned by
+	 * the thread picking packets.
+	 */
+	private ArrayDeque<TCPConnectionImpl> recycledConnections = new ArrayDeque<TCPConnectionImpl>();
+	private static final int MAX_RECYCLED_CONNECTIONS = 256;
+	/**
+	 * time source of timeouts, advanced by captured packets
+	 */
+	private Clock clock = new CaptureClock();
+	// time of the clock when the current packet is picked
+	private long nowNanos;
 
-	private Queue<TCPConnection> establishedConnections = new ConcurrentLinkedQueue<TCPConnection>();
+	private Queue<TCPConnection> establishedConnections;
 
 	private ConnectionFilter filter;
 
+	private SnifferMetrics metrics;
+
+	// bounds buffered bytes of all connections, could be null
+	private MemoryGovernor memoryGovernor;
+	/*
+	 * packets to pick before trying to evict again, when there was nothing to
+	 * evict in this receiver, so a receiver doesn't scan its connections for
+	 * every packet while the budget is exceeded by other receivers
+	 */
+	private int evictionBackoff = 0;
+	private static final int EVICTION_BACKOFF_PACKETS = 1024;
+
+	/*
+	 * gap tolerant mode, a missing packet is skipped after those packets
+	 * following it have waited this capture time, or buffered this size, 0
+	 * means no limit, the mode is off when both are 0
+	 */
+	private long gapTimeoutNanos = 0;
+	private long gapThresholdBytes = 0;
+	private ConnectionDataHandler dataHandler;
+	private FixLengthStreamFileCache spillCache;
+	private int spillThreshold;
+
 	public PacketReceiverImpl(ConnectionFilter filter) {
+		this(filter, new ConcurrentLinkedQueue<TCPConnection>());
+	}
+
+	/**
+	 * @param filter
+	 *            connection filter
+	 * @param establishedConnections
+	 *            queue to put established connections, it could be shared by
+	 *            several receivers, and waiting threads are notified on this
+	 *            queue. An {@link AcceptQueue} is bounded, connections are
+	 *            rejected by its overflow policy when it is full
+	 */
+	public PacketReceiverImpl(ConnectionFilter filter, Queue<TCPConnection> establishedConnections) {
+		this(filter, establishedConnections, new SnifferMetrics());
+	}
+
+	/**
+	 * @param filter
+	 *            connection filter
+	 * @param establishedConnections
+	 *            queue to put established connections
+	 * @param metrics
+	 *            metrics updated by this receiver, it could be shared by
+	 *            several receivers
+	 */
+	public PacketReceiverImpl(ConnectionFilter filter, Queue<TCPConnection> establishedConnections,
+			SnifferMetrics metrics) {
 		this.filter = filter;
+		this.establishedConnections = establishedConnections;
+		this.metrics = metrics;
 	}
 
 	/**
@@ -46,33 +146,108 @@ public class PacketReceiverImpl implements PacketReceiver {
 	 * 4. consolidate those packets, if in a incorrect sequence, put them into buffer, and when correct packets arrives, pass to tcp connection with the buffered packets
 	 * </pre>
 	 * 
-	 * @throws PacketsBufferFullException
+	 * A full buffer of one connection doesn't fail the packet, the connection
+	 * is truncated instead, see {@link TCPConnectionImpl#isTruncated()}.
 	 */
 	@Override
-	public void pick(TCPPacket tcpPacket) throws IOException, PacketsBufferFullException {
+	public void pick(TCPPacket tcpPacket) throws IOException {
+		metrics.packetProcessed(tcpPacket.getDataLength());
+		process(tcpPacket);
+		if (memoryGovernor != null && memoryGovernor.isOverBudget()) {
+			if (evictionBackoff > 0) {
+				evictionBackoff--;
+			} else {
+				evictConnections();
+			}
+		}
+	}
+
+	/**
+	 * expire those connections which have timed out, without picking a
+	 * packet. Picked packets move the time and expire connections, so it
+	 * should be called when no packet is picked for a while, such as when the
+	 * read timeout of capturing elapses, otherwise connections of a quiet
+	 * link are never expired. It should be called by the thread picking
+	 * packets.
+	 */
+	public void tick() {
+		advanceTime();
+	}
+
+	/**
+	 * remove all connections when no more packets will be picked, such as at
+	 * the end of a capture file, their streams are finished, so readers get
+	 * EOF at once rather than waiting for timeouts. It should be called by the
+	 * thread picking packets.
+	 */
+	public void finish() {
+		advanceTime();
+		halfWayConnections.clear();
+		for (TCPConnectionImpl connection : new ArrayList<TCPConnectionImpl>(activeConnectionsView)) {
+			connection.expire(nowNanos);
+			removeActiveConnection(connection);
+		}
+		// those removed by other threads meanwhile
+		applyRemovedConnections();
+	}
+
+	private void advanceTime() {
+		applyRemovedConnections();
+		long now = clock.currentTimeNanos();
+		if (now == Clock.NOT_STARTED) {
+			// a capture clock before the first packet, nothing could expire
+			return;
+		}
+		nowNanos = now;
+		halfWayConnections.expire(nowNanos);
+		expireConnections(nowNanos);
+	}
+
+	private void process(TCPPacket tcpPacket) throws IOException {
+		clock.advance(tcpPacket.getCaptureNanos());
+		advanceTime();
 		if (tcpPacket.isHandsShake1Packet()) {
 			if (logger.isDebugEnabled())
 				logger.debug("hands shake 1 packet");
 			ConnectionDetail connectionDetail = tcpPacket.getConnectionDetail();
 			if (filter.isAcceptable(connectionDetail)) {
-				TCPConnectionImpl connection = new TCPConnectionImpl(connectionDetail);
-				activeConnections.put(connectionDetail, connection);
-				connection.processSyncPacket(tcpPacket);
+				if (synTable.add(tcpPacket.getFlowKey(), tcpPacket.getSequence(), nowNanos) && logger.isDebugEnabled())
+					logger.debug("syn table is full, replaced a waiting syn by " + connectionDetail.toString());
 			} else {
+				rejectedFlows.add(tcpPacket.getFlowKey(), nowNanos);
 				if (logger.isInfoEnabled())
 					logger.info("discarded to listen to tcp connection " + connectionDetail.toString());
 			}
 			return;
 		}
-		TCPConnectionImpl connection = activeConnections.get(tcpPacket.getConnectionDetail());
+		if (tcpPacket.isHandsShake2Packet()) {
+			int entry = synTable.answered(tcpPacket.getFlowKey(), tcpPacket.getAckNum(), nowNanos);
+			if (entry >= 0) {
+				promoteSyn(tcpPacket, entry);
+			}
+		}
+		TCPConnectionImpl connection = activeConnections.get(tcpPacket.getFlowKey());
+		if (connection != null && connection.isDropped()) {
+			dropConnection(connection);
+			connection = null;
+		}
 		// the connect is not accepted, so ignore this packet
 		if (connection == null) {
-			handleHalfWayConnectionPackets(tcpPacket);
+			if (!rejectedFlows.contains(tcpPacket.getFlowKey(), tcpPacket.isFinish() || tcpPacket.isRest(), nowNanos)) {
+				handleHalfWayConnectionPackets(tcpPacket);
+			}
 			return;
 		}
 		tcpPacket.detectPacketFlowDirection(connection.getConnectionDetail());
 		if (connection.isOldPacket(tcpPacket)) {
-			logger.info("old packet seq " + tcpPacket);
+			TCPPacket remaining = connection.trimReceivedData(tcpPacket);
+			if (remaining == null) {
+				logger.info("old packet seq " + tcpPacket);
+				return;
+			}
+			tcpPacket = remaining;
+		}
+		if (connection.isDiscarding(tcpPacket)) {
 			return;
 		}
 		/*
@@ -99,21 +274,150 @@ public class PacketReceiverImpl implements PacketReceiver {
 		 */
 		if (connection.isCanProcessPacket(tcpPacket)) {
 			handlePacket(tcpPacket, connection);
-		} else {
-			if (tcpPacket.isSentByClient()) {
-				connection.getPacketsBuffer().addToCSTemporaryStoredDataPackets(tcpPacket);
-			} else {
-				connection.getPacketsBuffer().addToSCTemporaryStoredDataPackets(tcpPacket);
+			// the packet may fill the gap before those buffered packets
+			if (connection.getPacketsBuffer().getPacketsCountInBuffer() > 0) {
+				tryToProcessPacketsInBuffer(connection);
 			}
+		} else {
+			bufferPacket(connection, tcpPacket);
 			tryToProcessPacketsInBuffer(connection);
 		}
+		if (isGapTolerant() && connection.getPacketsBuffer().getPacketsCountInBuffer() > 0) {
+			skipExpiredGaps(connection, nowNanos);
+		}
 
 		if (connection.isFinished()) {
-			activeConnections.remove(connection.getConnectionDetail());
+			removeActiveConnection(connection);
+		}
+	}
+
+	/*
+	 * create the connection of a SYN kept in the syn table when its SYN/ACK
+	 * arrives, the SYN/ACK packet is then processed as usual
+	 */
+	private void promoteSyn(TCPPacket synAckPacket, int entry) {
+		// the server sends the SYN/ACK
+		ConnectionDetail connectionDetail = new ConnectionDetail(synAckPacket.getServerAddress(),
+				synAckPacket.getClientAddress(), synAckPacket.getServerPort(), synAckPacket.getClientPort());
+		// the connection begins with its SYN
+		TCPConnectionImpl connection = newConnection(connectionDetail, synTable.getSynNanos(entry));
+		connection.synSent(synTable.getSequence(entry), synTable.getSynNanos(entry));
+		synTable.remove(entry);
+		addActiveConnection(connection);
+		expiry.touch(connection, nowNanos);
+	}
+
+	/*
+	 * the direction of a half way connection is unknown, so it is accepted if
+	 * the filter accepts either direction
+	 */
+	private boolean isAcceptableHalfWay(TCPPacket tcpPacket) {
+		if (filter.isAcceptable(tcpPacket.getConnectionDetail())) {
+			return true;
+		}
+		ConnectionDetail reversed = new ConnectionDetail(tcpPacket.getServerAddress(), tcpPacket.getClientAddress(),
+				tcpPacket.getServerPort(), tcpPacket.getClientPort());
+		return filter.isAcceptable(reversed);
+	}
+
+	/*
+	 * put the packet into the buffer of its direction, if the buffer is full,
+	 * the gap is skipped in gap tolerant mode, otherwise the connection is
+	 * truncated
+	 */
+	private void bufferPacket(TCPConnectionImpl connection, TCPPacket tcpPacket) throws IOException {
+		try {
+			addToBuffer(connection, tcpPacket);
+			return;
+		} catch (PacketsBufferFullException e) {
+			metrics.packetsBufferFull();
+		}
+		if (isGapTolerant() && skipGap(connection, tcpPacket.isSentByClient(), nowNanos)) {
+			try {
+				addToBuffer(connection, tcpPacket);
+				return;
+			} catch (PacketsBufferFullException e) {
+				metrics.packetsBufferFull();
+			}
+		}
+		logger.warn(connection.getConnectionDetail().toString()
+				+ " out of order packets buffer is full, truncated the connection");
+		connection.truncate(tcpPacket);
+	}
+
+	private void addToBuffer(TCPConnectionImpl connection, TCPPacket tcpPacket) throws PacketsBufferFullException {
+		if (tcpPacket.isSentByClient()) {
+			connection.getPacketsBuffer().addToCSTemporaryStoredDataPackets(tcpPacket);
+		} else {
+			connection.getPacketsBuffer().addToSCTemporaryStoredDataPackets(tcpPacket);
+		}
+	}
+
+	private boolean isGapTolerant() {
+		return gapTimeoutNanos > 0 || gapThresholdBytes > 0;
+	}
+
+	/*
+	 * skip gaps of those directions whose buffered packets have waited too
+	 * long for a missing packet
+	 */
+	private void skipExpiredGaps(TCPConnectionImpl connection, long nowNanos) throws IOException {
+		PacketsBuffer buffer = connection.getPacketsBuffer();
+		if (buffer.isWaitingExpired(true, nowNanos, gapTimeoutNanos, gapThresholdBytes)) {
+			skipGap(connection, true, nowNanos);
+		}
+		if (buffer.isWaitingExpired(false, nowNanos, gapTimeoutNanos, gapThresholdBytes)) {
+			skipGap(connection, false, nowNanos);
+		}
+	}
+
+	private boolean skipGap(TCPConnectionImpl connection, boolean clientToServer, long nowNanos) throws IOException {
+		int lost = connection.skipGap(clientToServer, nowNanos);
+		if (lost <= 0) {
+			return false;
+		}
+		metrics.gapSkipped(lost);
+		tryToProcessPacketsInBuffer(connection);
+		return true;
+	}
+
+	private TCPConnectionImpl newConnection(ConnectionDetail connectionDetail, long creationNanos) {
+		connectionDetail.setCreationMillis(creationNanos / 1000000L);
+		TCPConnectionImpl connection = recycledConnections.poll();
+		if (connection == null) {
+			connection = new TCPConnectionImpl(connectionDetail);
+		} else {
+			connection.recycle(connectionDetail);
+		}
+		connection.setClock(clock);
+		if (memoryGovernor != null) {
+			connection.setMemoryAccount(memoryGovernor.newAccount());
 		}
+		if (spillCache != null) {
+			connection.setSpillCache(spillCache, spillThreshold);
+		}
+		return connection;
 	}
 
-	private void handleHalfWayConnectionPackets(TCPPacket tcpPacket) throws IOException, PacketsBufferFullException {
+	/*
+	 * evict connections owned by this receiver until buffered bytes of all
+	 * receivers fall below the low watermark, or there is nothing to evict
+	 */
+	private void evictConnections() {
+		while (memoryGovernor.isAboveLowWatermark()) {
+			TCPConnectionImpl victim = memoryGovernor.chooseVictim(activeConnectionsView, filter);
+			if (victim == null) {
+				evictionBackoff = EVICTION_BACKOFF_PACKETS;
+				return;
+			}
+			logger.warn(victim.getConnectionDetail().toString() + " is evicted, buffered bytes "
+					+ memoryGovernor.getBufferedBytes() + " exceed the budget " + memoryGovernor.getBudget());
+			victim.evict();
+			metrics.connectionEvicted();
+		}
+	}
+
+	private void handleHalfWayConnectionPackets(TCPPacket tcpPacket) throws IOException {
 		if (!tcpPacket.isContainsData()) {
 			return;
 		}
@@ -122,58 +426,62 @@ public class PacketReceiverImpl implements PacketReceiver {
 		 * connection direction, which is client & which is server, so just use
 		 * the first data packet direction as its connection direction.
 		 */
-		TCPConnectionImpl connection = halfWayConnections.get(tcpPacket.getConnectionDetail());
-		if (connection == null) {
-			connection = new TCPConnectionImpl(tcpPacket.getConnectionDetail());
-			halfWayConnections.put(tcpPacket.getConnectionDetail(), connection);
+		HalfWayConnectionTable.Candidate candidate = halfWayConnections.get(tcpPacket);
+		if (candidate == null) {
+			if (!isAcceptableHalfWay(tcpPacket)) {
+				rejectedFlows.add(tcpPacket.getFlowKey(), nowNanos);
+				if (logger.isInfoEnabled())
+					logger.info("discarded to listen to half way tcp connection "
+							+ tcpPacket.getConnectionDetail().toString());
+				return;
+			}
+			TCPConnectionImpl connection = newConnection(tcpPacket.getConnectionDetail(), nowNanos);
+			candidate = halfWayConnections.add(connection, tcpPacket);
 			tcpPacket.detectPacketFlowDirection(connection.getConnectionDetail());
-			connection.getPacketsBuffer().addToCSTemporaryStoredDataPackets(tcpPacket);
+			bufferHalfWayPacket(candidate, tcpPacket);
 			return;
 		} else {
+			TCPConnectionImpl connection = candidate.connection;
 			tcpPacket.detectPacketFlowDirection(connection.getConnectionDetail());
-			boolean processed = false;
-			if (tcpPacket.isSentByClient()) {
-
-				for (TCPPacket p : connection.getPacketsBuffer().scTemporaryStoredPackets) {
-					if (isPreviousAnotherDirectionPacket(tcpPacket, p)) {
-						connection.getSequenceNumCounter().serverCounter.seq = tcpPacket.getAckNum();
-						connection.getSequenceNumCounter().serverCounter.ack = tcpPacket.getSequence();
-						processed = true;
-						break;
-					}
-
-				}
-				if (!processed) {
-					connection.getPacketsBuffer().addToCSTemporaryStoredDataPackets(tcpPacket);
-				}
+			boolean processed = candidate.isReply(tcpPacket);
+			if (!processed) {
+				bufferHalfWayPacket(candidate, tcpPacket);
+			} else if (tcpPacket.isSentByClient()) {
+				connection.getSequenceNumCounter().serverCounter.seq = tcpPacket.getAckNum();
+				connection.getSequenceNumCounter().serverCounter.ack = tcpPacket.getSequence();
 			} else {
-				for (TCPPacket p : connection.getPacketsBuffer().csTemporaryStoredPackets) {
-					if (isPreviousAnotherDirectionPacket(tcpPacket, p)) {
-						connection.getSequenceNumCounter().clientCounter.seq = tcpPacket.getAckNum();
-						connection.getSequenceNumCounter().clientCounter.ack = tcpPacket.getSequence();
-						processed = true;
-						break;
-					}
-
-				}
-				if (!processed) {
-					connection.getPacketsBuffer().addToSCTemporaryStoredDataPackets(tcpPacket);
-				}
+				connection.getSequenceNumCounter().clientCounter.seq = tcpPacket.getAckNum();
+				connection.getSequenceNumCounter().clientCounter.ack = tcpPacket.getSequence();
 			}
 			if (processed) {
-				halfWayConnections.remove(connection.getConnectionDetail());
-				activeConnections.put(connection.getConnectionDetail(), connection);
+				halfWayConnections.matched(candidate);
+				addActiveConnection(connection);
 				connection.setState(TCPConnectionState.Established);
 				establishedNewConnection(connection);
 				connection.processDataPacket(tcpPacket);
+				expiry.touch(connection, nowNanos);
 				tryToProcessPacketsInBuffer(connection);
 			}
 		}
 	}
 
+	/*
+	 * a half way connection whose buffer is full is given up, it will be
+	 * detected again from following packets
+	 */
+	private void bufferHalfWayPacket(HalfWayConnectionTable.Candidate candidate, TCPPacket tcpPacket) {
+		try {
+			addToBuffer(candidate.connection, tcpPacket);
+			candidate.expectReply(tcpPacket);
+		} catch (PacketsBufferFullException e) {
+			metrics.packetsBufferFull();
+			halfWayConnections.remove(candidate);
+		}
+	}
+
 	public boolean isPreviousAnotherDirectionPacket(TCPPacket currentPacket, TCPPacket previousPacket) {
-		return currentPacket.getAckNum() == previousPacket.getSequence()
-				+ (previousPacket.getData() != null ? previousPacket.getData().length : 0)
+		return currentPacket.getAckNum() == SequenceNumbers.add(previousPacket.getSequence(),
+				previousPacket.getDataLength())
 				&& currentPacket.getSequence() == previousPacket.getAckNum();
 	}
 
@@ -203,29 +511,239 @@ public class PacketReceiverImpl implements PacketReceiver {
 			}
 		}
 		if (tcpPacket.isContainsData()) {
-			connection.processDataPacket(tcpPacket);
+			try {
+				connection.processDataPacket(tcpPacket);
+			} catch (BufferFullException e) {
+				metrics.streamBufferFull();
+				logger.warn(e.getMessage() + ", truncated the connection " + connection.getConnectionDetail());
+				connection.truncate(tcpPacket);
+			}
 		}
 		if (tcpPacket.isFinish()) {
 			connection.processFinishPacket(tcpPacket);
 			tryToProcessPacketsInBuffer(connection);
 		}
 		connection.updated();
+		expiry.touch(connection, nowNanos);
+	}
+
+	/*
+	 * remove those connections which receive no packet within their timeouts
+	 */
+	private void expireConnections(long nowNanos) {
+		expiry.expire(nowNanos, expiredConnections);
+		if (expiredConnections.isEmpty()) {
+			return;
+		}
+		for (TCPConnectionImpl connection : expiredConnections) {
+			if (logger.isInfoEnabled() && connection.getState().isEqualsGreaterThan(TCPConnectionState.Established))
+				logger.info(connection.getConnectionDetail().toString() + " has been timeout");
+			connection.expire(nowNanos);
+			removeActiveConnection(connection);
+		}
+		expiredConnections.clear();
+	}
+
+	private void addActiveConnection(TCPConnectionImpl connection) {
+		TCPConnectionImpl previous = activeConnections.put(connection.getConnectionDetail().getFlowKey(), connection);
+		if (previous != null) {
+			activeConnectionsView.remove(previous);
+			expiry.cancel(previous);
+		}
+		activeConnectionsView.add(connection);
+	}
+
+	/*
+	 * remove the connection from this receiver. The one who takes it out of
+	 * the view closes it, a connection already taken by removeConnection() is
+	 * closed when the removed queue is applied, so it is never recycled while
+	 * it is still queued
+	 */
+	private void removeActiveConnection(TCPConnectionImpl connection) {
+		activeConnections.remove(connection.getConnectionDetail().getFlowKey(), connection);
+		if (activeConnectionsView.remove(connection)) {
+			closed(connection);
+		}
+	}
+
+	private void applyRemovedConnections() {
+		TCPConnectionImpl connection = null;
+		while ((connection = removedConnections.poll()) != null) {
+			// a connection active again is a recycled one, the entry is stale
+			if (activeConnectionsView.contains(connection)) {
+				continue;
+			}
+			activeConnections.remove(connection.getConnectionDetail().getFlowKey(), connection);
+			closed(connection);
+		}
+	}
+
+	/*
+	 * remove a connection rejected by the accept queue, nobody reads it
+	 */
+	private void dropConnection(TCPConnectionImpl connection) {
+		if (logger.isInfoEnabled())
+			logger.info(connection.getConnectionDetail().toString() + " is dropped, the accept queue is full");
+		connection.evict();
+		removeActiveConnection(connection);
+	}
+
+	/*
+	 * the connection is removed from this receiver, it is done once, even if
+	 * the connection is removed by several ways at the same time
+	 */
+	private void closed(TCPConnectionImpl connection) {
+		if (!connection.removed()) {
+			return;
+		}
+		expiry.cancel(connection);
+		connection.releaseMemoryAccount();
+		if (connection.getDataHandler() != null) {
+			connection.getDataHandler().onClose(connection);
+			connection.setDataHandler(null);
+		}
+		if (!connection.isPublished() && recycledConnections.size() < MAX_RECYCLED_CONNECTIONS) {
+			recycledConnections.add(connection);
+		}
 	}
 
 	/**
-	 * return all active tcp connections that maintained by this receiver
+	 * return all active tcp connections that maintained by this receiver, the
+	 * returned collection is safe to be visited by other threads
 	 */
 	public Collection<TCPConnectionImpl> getActiveConnections() {
-		return activeConnections.values();
+		return Collections.unmodifiableCollection(activeConnectionsView);
 	}
 
-	private void establishedNewConnection(TCPConnection connection) {
+	/**
+	 * remove an active connection, it could be called by other threads, the
+	 * connection is removed from the table by the thread picking packets
+	 * before picking next packet. Idle connections are removed by the thread
+	 * picking packets itself, according to timeouts defined by
+	 * {@link ConnectionTimeouts}, see {@link #tick()}.
+	 */
+	public void removeConnection(TCPConnectionImpl connection) {
+		if (activeConnectionsView.remove(connection)) {
+			removedConnections.add(connection);
+		}
+	}
+
+	private void establishedNewConnection(TCPConnectionImpl connection) {
+		if (dataHandler != null) {
+			connection.published();
+			connection.setDataHandler(dataHandler);
+			dataHandler.onEstablished(connection);
+			return;
+		}
+		if (establishedConnections instanceof AcceptQueue) {
+			TCPConnectionImpl rejected = ((AcceptQueue) establishedConnections).enqueue(connection);
+			if (rejected != connection) {
+				connection.published();
+			}
+			if (rejected != null) {
+				metrics.connectionRejected();
+			}
+			return;
+		}
+		connection.published();
 		establishedConnections.add(connection);
-		synchronized (this) {
-			this.notify();
+		// a blocking queue wakes up its own waiters
+		if (!(establishedConnections instanceof BlockingQueue)) {
+			synchronized (establishedConnections) {
+				establishedConnections.notify();
+			}
 		}
 	}
 
+	/**
+	 * bound buffered bytes of connections by the given governor, it could be
+	 * shared by several receivers. It should be set before picking packets.
+	 */
+	public void setMemoryGovernor(MemoryGovernor memoryGovernor) {
+		this.memoryGovernor = memoryGovernor;
+	}
+
+	/**
+	 * enable gap tolerant mode. By default, a connection waits for a missing
+	 * packet forever, packets after it are buffered until the buffer is full,
+	 * then the connection is truncated. In gap tolerant mode, when packets
+	 * after a missing packet have waited the given time by capture time, or
+	 * buffered the given bytes, the missing data is skipped, and those
+	 * buffered packets are processed. Consumers see skipped data as a gap in
+	 * the stream, see
+	 * {@link com.mexhee.io.TimeMeasurableCombinedInputStream#getGapBeforeNextByte()}
+	 * . A full buffer also skips the gap in this mode, rather than truncating
+	 * the connection. It should be set before picking packets.
+	 * 
+	 * @param timeoutMillis
+	 *            max waiting time in milliseconds, 0 means no limit
+	 * @param thresholdBytes
+	 *            max buffered payload bytes in one direction, 0 means no
+	 *            limit
+	 */
+	public void setGapTolerance(long timeoutMillis, long thresholdBytes) {
+		this.gapTimeoutNanos = timeoutMillis * 1000000L;
+		this.gapThresholdBytes = thresholdBytes;
+	}
+
+	/**
+	 * keep stream data beyond the memory threshold of every connection
+	 * direction in the spill cache, so that large transfers are reassembled
+	 * without taking much heap, see
+	 * {@link com.mexhee.io.DynamicByteArrayInputStream#setSpillCache(FixLengthStreamFileCache, int)}
+	 * . It should be set before picking packets.
+	 * 
+	 * @param spillCache
+	 *            the cache, it could be shared by several receivers, null to
+	 *            keep all data in memory, which is the default
+	 * @param memoryThreshold
+	 *            max bytes kept in memory by one stream
+	 */
+	public void setSpillCache(FixLengthStreamFileCache spillCache, int memoryThreshold) {
+		this.spillCache = spillCache;
+		this.spillThreshold = memoryThreshold;
+	}
+
+	/**
+	 * max connections which only sent SYN and wait for SYN/ACK, a new SYN
+	 * replaces the oldest waiting one of the same bucket when the table is
+	 * full, so SYN floods don't take more memory. It should be set before
+	 * picking packets.
+	 */
+	public void setHalfOpenCapacity(int capacity) {
+		this.synTable = new SynTable(capacity, ConnectionTimeouts.HALF_HANDSHAKE_TIMEOUT);
+	}
+
+	/**
+	 * pass data of established connections to the handler on the thread
+	 * picking packets, rather than appending it into streams, and those
+	 * connections are not put into the established connections queue. It
+	 * should be set before picking packets.
+	 * 
+	 * @param dataHandler
+	 *            the handler, null to use streams, which is the default
+	 */
+	public void setDataHandler(ConnectionDataHandler dataHandler) {
+		this.dataHandler = dataHandler;
+	}
+
+	/**
+	 * the time source of connection timeouts, gap timeouts, last updated time
+	 * and stream end time. It is a {@link CaptureClock} by default, so that a
+	 * capture file replayed faster than real time expires connections as they
+	 * were captured. A capture clock only moves with packets, so live capture
+	 * should use {@link Clock#SYSTEM}, then {@link #tick()} expires
+	 * connections of a quiet link. It could be shared by several receivers,
+	 * and should be set before picking packets.
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	public SnifferMetrics getMetrics() {
+		return metrics;
+	}
+
 	public TCPConnection poll() {
 		return establishedConnections.poll();
 	}
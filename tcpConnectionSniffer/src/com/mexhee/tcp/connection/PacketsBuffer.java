@@ -1,52 +1,184 @@
 package com.mexhee.tcp.connection;
 
-import java.util.Iterator;
-import java.util.SortedSet;
-import java.util.TreeSet;
-
+import com.mexhee.io.MemoryAccount;
 import com.mexhee.tcp.packet.TCPPacket;
 
 public class PacketsBuffer {
 
+	/*
+	 * placeholder of a direction which has never buffered any packet, most
+	 * connections never receive packets out of order, so reassemblers are
+	 * allocated when the first packet is buffered. It is shared by all
+	 * buffers, and never added into
+	 */
+	private static final SegmentReassembler NONE = new SegmentReassembler();
+
 	/**
 	 * store the data packets (client to server) that cannot match seq number
 	 * due to captured in incorrect sequence
 	 */
-	SortedSet<TCPPacket> csTemporaryStoredPackets = new TreeSet<TCPPacket>();
+	SegmentReassembler csTemporaryStoredPackets = NONE;
 	/**
 	 * store the data packets (server to client) that cannot match seq number
 	 * due to captured in incorrect sequence
 	 */
-	SortedSet<TCPPacket> scTemporaryStoredPackets = new TreeSet<TCPPacket>();
+	SegmentReassembler scTemporaryStoredPackets = NONE;
 
 	private TCPConnectionImpl connection;
 
-	private static final int MAX_PACKETS_IN_BUFFER = 200;
+	// where the changes of buffered bytes are charged, could be null
+	private MemoryAccount memoryAccount;
+	private long chargedBytes = 0;
+
+	/*
+	 * capture time since when packets have been waiting in the buffer of each
+	 * direction for a missing packet
+	 */
+	private long csWaitingSinceNanos;
+	private long scWaitingSinceNanos;
+
+	/**
+	 * max bytes buffered in one direction, see {@link #bytes(SegmentReassembler)}
+	 */
+	private static final int MAX_BYTES_IN_BUFFER = 512 * 1024;
+	/**
+	 * estimated memory of one buffered packet besides its payload, so that
+	 * those packets without payload are also bounded
+	 */
+	private static final int PACKET_OVERHEAD = 128;
 
 	public PacketsBuffer(TCPConnectionImpl connection) {
 		this.connection = connection;
 	}
 
 	protected void addToCSTemporaryStoredDataPackets(TCPPacket packet) throws PacketsBufferFullException {
-		if (csTemporaryStoredPackets.size() >= MAX_PACKETS_IN_BUFFER) {
-			throw new PacketsBufferFullException();
+		if (csTemporaryStoredPackets == NONE) {
+			csTemporaryStoredPackets = new SegmentReassembler();
 		}
-		csTemporaryStoredPackets.add(packet);
+		if (csTemporaryStoredPackets.isEmpty()) {
+			csWaitingSinceNanos = packet.getCaptureNanos();
+		}
+		add(csTemporaryStoredPackets, packet);
 	}
 
 	protected void addToSCTemporaryStoredDataPackets(TCPPacket packet) throws PacketsBufferFullException {
-		if (scTemporaryStoredPackets.size() >= MAX_PACKETS_IN_BUFFER) {
+		if (scTemporaryStoredPackets == NONE) {
+			scTemporaryStoredPackets = new SegmentReassembler();
+		}
+		if (scTemporaryStoredPackets.isEmpty()) {
+			scWaitingSinceNanos = packet.getCaptureNanos();
+		}
+		add(scTemporaryStoredPackets, packet);
+	}
+
+	private void add(SegmentReassembler buffer, TCPPacket packet) throws PacketsBufferFullException {
+		if (bytes(buffer) + PACKET_OVERHEAD + packet.getDataLength() > MAX_BYTES_IN_BUFFER) {
 			throw new PacketsBufferFullException();
 		}
-		scTemporaryStoredPackets.add(packet);
+		buffer.add(packet.detach());
+		charge();
 	}
 
 	TCPPacket pickupPacket() {
 		TCPPacket packet = pickupCSBuffer();
-		if (packet != null) {
-			return packet;
+		if (packet == null) {
+			packet = pickupSCBuffer();
+		}
+		// old packets may be dropped even if nothing is picked up
+		charge();
+		return packet;
+	}
+
+	/**
+	 * drop those packets buffered in client to server direction
+	 */
+	void clearCSBuffer() {
+		csTemporaryStoredPackets.clear();
+		charge();
+	}
+
+	/**
+	 * drop those packets buffered in server to client direction
+	 */
+	void clearSCBuffer() {
+		scTemporaryStoredPackets.clear();
+		charge();
+	}
+
+	/**
+	 * drop buffered packets of both directions, so that the buffer could be
+	 * reused by another connection, allocated reassemblers are kept
+	 */
+	void recycle() {
+		clearCSBuffer();
+		clearSCBuffer();
+		csWaitingSinceNanos = 0;
+		scWaitingSinceNanos = 0;
+	}
+
+	/**
+	 * whether packets buffered in one direction have waited long enough for
+	 * a missing packet, by capture time or by buffered bytes
+	 * 
+	 * @param clientToServer
+	 *            the direction
+	 * @param nowNanos
+	 *            capture time of current packet
+	 * @param timeoutNanos
+	 *            max waiting time, 0 means no limit
+	 * @param thresholdBytes
+	 *            max buffered payload bytes, 0 means no limit
+	 */
+	boolean isWaitingExpired(boolean clientToServer, long nowNanos, long timeoutNanos, long thresholdBytes) {
+		SegmentReassembler buffer = clientToServer ? csTemporaryStoredPackets : scTemporaryStoredPackets;
+		if (buffer.isEmpty()) {
+			return false;
+		}
+		long waitingSinceNanos = clientToServer ? csWaitingSinceNanos : scWaitingSinceNanos;
+		return (timeoutNanos > 0 && nowNanos - waitingSinceNanos >= timeoutNanos)
+				|| (thresholdBytes > 0 && buffer.bytes() >= thresholdBytes);
+	}
+
+	/**
+	 * restart waiting from given time, it is called after a gap is skipped,
+	 * as the rest packets may be waiting for another missing packet
+	 */
+	void restartWaiting(boolean clientToServer, long nowNanos) {
+		if (clientToServer) {
+			csWaitingSinceNanos = nowNanos;
 		} else {
-			return pickupSCBuffer();
+			scWaitingSinceNanos = nowNanos;
+		}
+	}
+
+	/**
+	 * estimated memory of buffered packets in both directions
+	 */
+	long getBufferedBytes() {
+		return bytes(csTemporaryStoredPackets) + bytes(scTemporaryStoredPackets);
+	}
+
+	private long bytes(SegmentReassembler buffer) {
+		return buffer.bytes() + (long) buffer.size() * PACKET_OVERHEAD;
+	}
+
+	/**
+	 * set an account where the changes of buffered bytes are charged
+	 */
+	void setMemoryAccount(MemoryAccount memoryAccount) {
+		this.memoryAccount = memoryAccount;
+		this.chargedBytes = 0;
+		charge();
+	}
+
+	private void charge() {
+		if (memoryAccount == null) {
+			return;
+		}
+		long bytes = getBufferedBytes();
+		if (bytes != chargedBytes) {
+			memoryAccount.charge(bytes - chargedBytes);
+			chargedBytes = bytes;
 		}
 	}
 
@@ -55,46 +187,39 @@ public class PacketsBuffer {
 	}
 
 	boolean isStillHaveDataPacketsInCSBuffer() {
-		return hasDataPackets(csTemporaryStoredPackets);
+		return csTemporaryStoredPackets.hasDataPackets();
 	}
 
 	boolean isStillHaveDataPacketsInSCBuffer() {
-		return hasDataPackets(scTemporaryStoredPackets);
-	}
-
-	private boolean hasDataPackets(SortedSet<TCPPacket> buffer) {
-		Iterator<TCPPacket> it = buffer.iterator();
-		while (it.hasNext()) {
-			if (it.next().isContainsData()) {
-				return true;
-			}
-		}
-		return false;
+		return scTemporaryStoredPackets.hasDataPackets();
 	}
 
 	private TCPPacket pickupCSBuffer() {
-		if (!csTemporaryStoredPackets.isEmpty()) {
-			TCPPacket packet = csTemporaryStoredPackets.first();
-			if (connection.isCanProcessPacket(packet)) {
-				csTemporaryStoredPackets.remove(packet);
-				return packet;
-			} else if (connection.isOldPacket(packet)) {
-				csTemporaryStoredPackets.remove(packet);
-				return pickupCSBuffer();
-			}
-		}
-		return null;
+		return pickup(csTemporaryStoredPackets);
 	}
 
 	private TCPPacket pickupSCBuffer() {
-		if (!scTemporaryStoredPackets.isEmpty()) {
-			TCPPacket packet = scTemporaryStoredPackets.first();
+		return pickup(scTemporaryStoredPackets);
+	}
+
+	/*
+	 * return the first packet if it could be processed now, those bytes
+	 * already received are trimmed from old packets
+	 */
+	private TCPPacket pickup(SegmentReassembler buffer) {
+		TCPPacket packet = null;
+		while ((packet = buffer.first()) != null) {
 			if (connection.isCanProcessPacket(packet)) {
-				scTemporaryStoredPackets.remove(packet);
+				buffer.removeFirst();
 				return packet;
 			} else if (connection.isOldPacket(packet)) {
-				scTemporaryStoredPackets.remove(packet);
-				return pickupSCBuffer();
+				buffer.removeFirst();
+				TCPPacket remaining = connection.trimReceivedData(packet);
+				if (remaining != null) {
+					buffer.add(remaining);
+				}
+			} else {
+				return null;
 			}
 		}
 		return null;
@@ -0,0 +1,80 @@
+package com.mexhee.tcp.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mexhee.tcp.packet.TCPPacket;
+
+/**
+ * A bounded lock free ring buffer to hand over packets from exactly one
+ * producer thread to exactly one consumer thread. The producer only writes
+ * {@link #tail} and the consumer only writes {@link #head}, both are published
+ * by ordered writes, so no CAS or lock is needed on either side.
+ */
+class PacketsRing {
+
+	private final TCPPacket[] packets;
+	private final int mask;
+	// next slot to be written, only written by producer
+	private final AtomicLong tail = new AtomicLong();
+	// next slot to be read, only written by consumer
+	private final AtomicLong head = new AtomicLong();
+	// producer side copy of head, refreshed only when the ring looks full
+	private long cachedHead;
+	// consumer side copy of tail, refreshed only when the ring looks empty
+	private long cachedTail;
+
+	/**
+	 * @param capacity
+	 *            max packets in the ring, rounded up to a power of 2
+	 */
+	PacketsRing(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.packets = new TCPPacket[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * called by producer thread only
+	 *
+	 * @return false if the ring is full
+	 */
+	boolean offer(TCPPacket packet) {
+		long t = tail.get();
+		if (t - cachedHead >= packets.length) {
+			cachedHead = head.get();
+			if (t - cachedHead >= packets.length) {
+				return false;
+			}
+		}
+		packets[(int) t & mask] = packet;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * called by consumer thread only
+	 *
+	 * @return next packet, or null if the ring is empty
+	 */
+	TCPPacket poll() {
+		long h = head.get();
+		if (h >= cachedTail) {
+			cachedTail = tail.get();
+			if (h >= cachedTail) {
+				return null;
+			}
+		}
+		int index = (int) h & mask;
+		TCPPacket packet = packets[index];
+		packets[index] = null;
+		head.lazySet(h + 1);
+		return packet;
+	}
+
+	boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+}
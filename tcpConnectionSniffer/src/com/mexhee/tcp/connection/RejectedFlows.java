@@ -0,0 +1,72 @@
+package com.mexhee.tcp.connection;
+
+/**
+ * A negative cache of connections rejected by the {@link ConnectionFilter},
+ * so that later packets of those connections are discarded by one probe,
+ * rather than being detected as half way connections. Keys are kept in a
+ * {@link FlowKeyTable} with a hard capacity.
+ *
+ * An entry lives while packets of its connection keep coming, and is removed
+ * after the idle timeout, or shortly after a FIN or RST packet. A new entry
+ * replaces the one closest to its deadline when the bucket is full. Losing an
+ * entry only costs filtering the connection again.
+ */
+class RejectedFlows extends FlowKeyTable {
+
+	static final int DEFAULT_CAPACITY = 4 * 1024;
+
+	// whether a FIN or RST packet is seen, the deadline is not extended then
+	private final boolean[] closing;
+	private final long idleTimeoutNanos;
+	private final long closingTimeoutNanos;
+
+	RejectedFlows() {
+		this(DEFAULT_CAPACITY, ConnectionTimeouts.TCP_CONNECTION_TIME_OUT, ConnectionTimeouts.HALF_CLOSED_TIMEOUT);
+	}
+
+	/**
+	 * @param capacity
+	 *            max entries, rounded up to a power of 2
+	 * @param idleTimeoutMillis
+	 *            how long an entry lives without any packet
+	 * @param closingTimeoutMillis
+	 *            how long an entry lives after a FIN or RST packet
+	 */
+	RejectedFlows(int capacity, long idleTimeoutMillis, long closingTimeoutMillis) {
+		super(capacity);
+		closing = new boolean[entries()];
+		idleTimeoutNanos = idleTimeoutMillis * 1000000L;
+		closingTimeoutNanos = closingTimeoutMillis * 1000000L;
+	}
+
+	/**
+	 * remember a rejected connection
+	 */
+	void add(FlowKey key, long nowNanos) {
+		int entry = put(key, nowNanos);
+		closing[entry] = false;
+		setDeadline(entry, nowNanos + idleTimeoutNanos);
+	}
+
+	/**
+	 * whether the connection is rejected, a hit keeps the entry alive
+	 * 
+	 * @param key
+	 *            key of current packet
+	 * @param close
+	 *            whether current packet is a FIN or RST packet
+	 */
+	boolean contains(FlowKey key, boolean close, long nowNanos) {
+		int entry = get(key, nowNanos);
+		if (entry < 0) {
+			return false;
+		}
+		if (close && !closing[entry]) {
+			closing[entry] = true;
+			setDeadline(entry, Math.min(getDeadline(entry), nowNanos + closingTimeoutNanos));
+		} else if (!closing[entry]) {
+			setDeadline(entry, nowNanos + idleTimeoutNanos);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,184 @@
+package com.mexhee.tcp.connection;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.mexhee.tcp.packet.SequenceNumbers;
+import com.mexhee.tcp.packet.TCPPacket;
+
+/**
+ * Out of order packets of one direction, kept by their byte intervals. Data
+ * packets never overlap each other in the reassembler: when a packet is added,
+ * those bytes already covered by buffered packets are trimmed from it, and
+ * buffered packets wholly covered by it are replaced, so a retransmission
+ * carrying more data is merged instead of dropped. Packets without payload,
+ * such as fin or ack, are kept beside data packets, and come before the data
+ * packet at the same sequence.
+ *
+ * Sequence numbers are kept as offsets to the first buffered packet, so the
+ * order is still right when the sequence number wraps around.
+ */
+class SegmentReassembler implements Iterable<TCPPacket> {
+
+	// data packets by start offset
+	private final TreeMap<Long, TCPPacket> segments = new TreeMap<Long, TCPPacket>();
+	// packets without payload by offset
+	private final TreeMap<Long, List<TCPPacket>> controls = new TreeMap<Long, List<TCPPacket>>();
+	private long base;
+	private int size;
+	// payload bytes of data packets
+	private long bytes;
+
+	/**
+	 * add a packet, the packet should be already detached
+	 */
+	void add(TCPPacket packet) {
+		if (size == 0) {
+			base = packet.getSequence();
+		}
+		long start = offset(packet.getSequence());
+		int length = packet.getDataLength();
+		if (length == 0) {
+			List<TCPPacket> packets = controls.get(start);
+			if (packets == null) {
+				packets = new ArrayList<TCPPacket>(2);
+				controls.put(start, packets);
+			}
+			packets.add(packet);
+			size++;
+			return;
+		}
+		long end = start + length;
+		// the key methods are used, as those entry methods allocate entries
+		Long previousStart = segments.floorKey(start);
+		if (previousStart != null) {
+			TCPPacket previous = segments.get(previousStart);
+			long previousEnd = previousStart + previous.getDataLength();
+			if (previousEnd >= end) {
+				// a duplicated packet, only keep its fin flag
+				if (previousEnd == end && previousStart == start && packet.isFinish() && !previous.isFinish()) {
+					segments.put(previousStart, packet);
+				}
+				return;
+			}
+			if (previousEnd > start) {
+				packet = packet.slice((int) (previousEnd - start), (int) (end - previousEnd));
+				start = previousEnd;
+			}
+		}
+		Long nextStart = null;
+		while ((nextStart = segments.ceilingKey(start)) != null && nextStart < end) {
+			int nextLength = segments.get(nextStart).getDataLength();
+			if (nextStart + nextLength <= end) {
+				segments.remove(nextStart);
+				size--;
+				bytes -= nextLength;
+			} else {
+				packet = packet.slice(0, (int) (nextStart - start));
+				break;
+			}
+		}
+		segments.put(start, packet);
+		size++;
+		bytes += packet.getDataLength();
+	}
+
+	/**
+	 * @return the packet with the lowest sequence, or null if empty
+	 */
+	TCPPacket first() {
+		if (isFirstControl()) {
+			return controls.get(controls.firstKey()).get(0);
+		}
+		return segments.isEmpty() ? null : segments.get(segments.firstKey());
+	}
+
+	/**
+	 * remove the packet returned by {@link #first()}
+	 */
+	void removeFirst() {
+		if (isFirstControl()) {
+			Long start = controls.firstKey();
+			List<TCPPacket> packets = controls.get(start);
+			packets.remove(0);
+			if (packets.isEmpty()) {
+				controls.remove(start);
+			}
+			size--;
+		} else if (!segments.isEmpty()) {
+			bytes -= segments.remove(segments.firstKey()).getDataLength();
+			size--;
+		}
+	}
+
+	/**
+	 * drop all buffered packets
+	 */
+	void clear() {
+		if (size == 0) {
+			return;
+		}
+		segments.clear();
+		controls.clear();
+		size = 0;
+		bytes = 0;
+	}
+
+	private boolean isFirstControl() {
+		return !controls.isEmpty() && (segments.isEmpty() || controls.firstKey() <= segments.firstKey());
+	}
+
+	/**
+	 * buffered packets count
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * payload bytes of buffered packets
+	 */
+	long bytes() {
+		return bytes;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	boolean hasDataPackets() {
+		return !segments.isEmpty();
+	}
+
+	/**
+	 * iterate a copy of buffered packets in sequence order
+	 */
+	@Override
+	public Iterator<TCPPacket> iterator() {
+		List<TCPPacket> packets = new ArrayList<TCPPacket>(size);
+		Iterator<Map.Entry<Long, List<TCPPacket>>> control = controls.entrySet().iterator();
+		Iterator<Map.Entry<Long, TCPPacket>> segment = segments.entrySet().iterator();
+		Map.Entry<Long, List<TCPPacket>> c = control.hasNext() ? control.next() : null;
+		Map.Entry<Long, TCPPacket> s = segment.hasNext() ? segment.next() : null;
+		while (c != null || s != null) {
+			if (c != null && (s == null || c.getKey() <= s.getKey())) {
+				packets.addAll(c.getValue());
+				c = control.hasNext() ? control.next() : null;
+			} else {
+				packets.add(s.getValue());
+				s = segment.hasNext() ? segment.next() : null;
+			}
+		}
+		return packets.iterator();
+	}
+
+	/*
+	 * signed 32 bits distance from the base
+	 */
+	private long offset(long sequence) {
+		return SequenceNumbers.distance(base, sequence);
+	}
+}
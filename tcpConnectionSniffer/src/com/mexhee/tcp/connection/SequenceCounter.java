@@ -1,7 +1,12 @@
 package com.mexhee.tcp.connection;
 
+import com.mexhee.tcp.packet.SequenceNumbers;
 import com.mexhee.tcp.packet.TCPPacket;
 
+/**
+ * sequence & ack numbers of both sides, all numbers wrap around 2^32, see
+ * {@link SequenceNumbers}
+ */
 class SequenceCounter {
 
 	Counter clientCounter = new Counter();
@@ -10,7 +15,8 @@ class SequenceCounter {
 	class Counter {
 		long seq;
 		long ack;
-		long latestPacketUpdateTime;
+		// capture time of latest packet, nanoseconds since epoch
+		long latestPacketCaptureNanos;
 
 		@Override
 		public String toString() {
@@ -20,7 +26,7 @@ class SequenceCounter {
 		void reset() {
 			seq = 0;
 			ack = 0;
-			latestPacketUpdateTime = 0;
+			latestPacketCaptureNanos = 0;
 		}
 	}
 
@@ -31,9 +37,9 @@ class SequenceCounter {
 	private void updateCounter(Counter counter, TCPPacket packet) {
 		counter.seq = packet.getSequence();
 		counter.ack = packet.getAckNum();
-		counter.latestPacketUpdateTime = packet.getPacketCaptureTime().getTime();
+		counter.latestPacketCaptureNanos = packet.getCaptureNanos();
 		if (packet.isContainsData()) {
-			counter.seq += packet.getData().length;
+			counter.seq = SequenceNumbers.add(counter.seq, packet.getDataLength());
 		}
 		packet.consumedPacket();
 	}
@@ -65,11 +71,11 @@ class SequenceCounter {
 	}
 
 	void serverSequenceAddOne() {
-		serverCounter.seq++;
+		serverCounter.seq = SequenceNumbers.add(serverCounter.seq, 1);
 	}
 
 	void clientSequenceAddOne() {
-		clientCounter.seq++;
+		clientCounter.seq = SequenceNumbers.add(clientCounter.seq, 1);
 	}
 
 	void reset() {
@@ -0,0 +1,212 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.mexhee.tcp.packet.TCPPacket;
+
+/**
+ * A {@link PacketReceiver} which spreads packets over several worker threads.
+ * The capturing thread computes a direction symmetric hash of the packet ip &
+ * port 4-tuple, so both directions of one connection always go to the same
+ * worker, and hands the packet over to that worker through a lock free single
+ * producer single consumer ring. Every worker owns its own
+ * {@link PacketReceiverImpl}, so connection tables and reassembly states are
+ * never shared between workers, only those established connections are put
+ * into one shared queue.
+ *
+ * {@link #pick(TCPPacket)} must be always called by one thread.
+ */
+public class ShardedPacketReceiver implements PacketReceiver {
+
+	private static final Logger logger = Logger.getLogger(ShardedPacketReceiver.class);
+
+	/**
+	 * max packets waiting in one worker's ring
+	 */
+	private static final int RING_CAPACITY = 16 * 1024;
+	/**
+	 * how many times an idle worker polls its ring before parking
+	 */
+	private static final int IDLE_SPINS = 100;
+	/**
+	 * an idle worker sleeps at most this time, so a missed wake up only
+	 * delays the packet for a while, and it expires timed out connections
+	 * every time it wakes up
+	 */
+	private static final long PARK_NANOS = 1000000L;
+
+	private final Worker[] workers;
+	private volatile boolean running = false;
+
+	/**
+	 * @param filter
+	 *            connection filter used by all workers
+	 * @param workerThreads
+	 *            worker threads count
+	 * @param establishedConnections
+	 *            queue where all workers put their established connections
+	 */
+	public ShardedPacketReceiver(ConnectionFilter filter, int workerThreads,
+			Queue<TCPConnection> establishedConnections) {
+		this(filter, workerThreads, establishedConnections, new SnifferMetrics());
+	}
+
+	/**
+	 * @param filter
+	 *            connection filter used by all workers
+	 * @param workerThreads
+	 *            worker threads count
+	 * @param establishedConnections
+	 *            queue where all workers put their established connections
+	 * @param metrics
+	 *            metrics shared by all workers
+	 */
+	public ShardedPacketReceiver(ConnectionFilter filter, int workerThreads,
+			Queue<TCPConnection> establishedConnections, SnifferMetrics metrics) {
+		if (workerThreads <= 0) {
+			throw new IllegalArgumentException("worker threads should be greater than 0");
+		}
+		workers = new Worker[workerThreads];
+		for (int i = 0; i < workerThreads; i++) {
+			workers[i] = new Worker(new PacketReceiverImpl(filter, establishedConnections, metrics));
+		}
+	}
+
+	/**
+	 * start all worker threads
+	 */
+	public void start() {
+		running = true;
+		for (int i = 0; i < workers.length; i++) {
+			Thread thread = new Thread(workers[i]);
+			thread.setName("PacketsWorker-" + i);
+			thread.setDaemon(true);
+			workers[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * stop all worker threads after they processed those packets already
+	 * handed over, remaining connections of every worker are finished then,
+	 * see {@link PacketReceiverImpl#finish()}
+	 */
+	public void shutdown() {
+		running = false;
+		for (Worker worker : workers) {
+			LockSupport.unpark(worker.thread);
+		}
+	}
+
+	/**
+	 * wait until all worker threads stop after {@link #shutdown()}, those
+	 * packets handed over are processed and connections are finished then
+	 * 
+	 * @param timeoutMillis
+	 *            max time to wait
+	 * @return true if all workers stopped, false if the timeout elapses
+	 */
+	public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (Worker worker : workers) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			worker.thread.join(remaining);
+			if (worker.thread.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * hand over the packet to the worker which owns its connection, if the
+	 * worker's ring is full, current thread waits until there is a free slot
+	 */
+	@Override
+	public void pick(TCPPacket tcpPacket) {
+		Worker worker = workers[(flowHash(tcpPacket) & 0x7fffffff) % workers.length];
+		// the packet may be reused by its decoder after returning
+		TCPPacket packet = tcpPacket.detach();
+		while (!worker.ring.offer(packet)) {
+			if (!running) {
+				return;
+			}
+			LockSupport.unpark(worker.thread);
+			Thread.yield();
+		}
+		if (worker.parked) {
+			LockSupport.unpark(worker.thread);
+		}
+	}
+
+	/**
+	 * return the receivers owned by workers, one receiver per worker
+	 */
+	public PacketReceiverImpl[] getReceivers() {
+		PacketReceiverImpl[] receivers = new PacketReceiverImpl[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			receivers[i] = workers[i].receiver;
+		}
+		return receivers;
+	}
+
+	/**
+	 * a hash of packet ip & port 4-tuple, which is the same for both
+	 * directions of one connection
+	 */
+	static int flowHash(TCPPacket packet) {
+		// the flow key is in canonical order, and its hash is already mixed
+		int hash = packet.getFlowKey().hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	private class Worker implements Runnable {
+
+		private final PacketReceiverImpl receiver;
+		private final PacketsRing ring = new PacketsRing(RING_CAPACITY);
+		private volatile boolean parked = false;
+		private Thread thread;
+
+		Worker(PacketReceiverImpl receiver) {
+			this.receiver = receiver;
+		}
+
+		@Override
+		public void run() {
+			int idle = 0;
+			while (running || !ring.isEmpty()) {
+				TCPPacket packet = ring.poll();
+				if (packet == null) {
+					if (++idle < IDLE_SPINS) {
+						continue;
+					}
+					parked = true;
+					if (running && ring.isEmpty()) {
+						LockSupport.parkNanos(this, PARK_NANOS);
+					}
+					parked = false;
+					idle = 0;
+					// no packet moves the time of a quiet link
+					receiver.tick();
+					continue;
+				}
+				idle = 0;
+				try {
+					receiver.pick(packet);
+					if (logger.isDebugEnabled())
+						logger.debug("successfully process packet " + packet);
+				} catch (Exception e) {
+					logger.error("failed to handle packet " + packet, e);
+				}
+			}
+			receiver.finish();
+			logger.info(Thread.currentThread().getName() + " stopped");
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package com.mexhee.tcp.connection;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runtime metrics of one sniffer. Those counters updated for every packet are
+ * {@link LongAdder}s, which are striped between threads, so packet receivers
+ * of all workers update them without contending on one cache line. Gauges,
+ * such as connection states and buffered packets, are not maintained on the
+ * hot path at all, they are sampled from receivers when a snapshot is taken.
+ */
+public class SnifferMetrics implements SnifferMetricsMXBean {
+
+	private static final Logger logger = Logger.getLogger(SnifferMetrics.class);
+
+	private final LongAdder packetsProcessed = new LongAdder();
+	private final LongAdder bytesProcessed = new LongAdder();
+	private final LongAdder packetsBufferFull = new LongAdder();
+	private final LongAdder streamBufferFull = new LongAdder();
+	private final LongAdder evictedConnections = new LongAdder();
+	private final LongAdder rejectedConnections = new LongAdder();
+	private final LongAdder skippedGaps = new LongAdder();
+	private final LongAdder lostBytes = new LongAdder();
+	private volatile long kernelReceivedPackets;
+	private volatile long kernelDroppedPackets;
+
+	private volatile PacketReceiverImpl[] receivers = new PacketReceiverImpl[0];
+	private volatile Queue<TCPConnection> acceptQueue;
+	private volatile MemoryGovernor memoryGovernor;
+
+	private volatile Snapshot latest = new Snapshot();
+	private ObjectName objectName;
+
+	/**
+	 * set those receivers and accept queue whose gauges are sampled
+	 */
+	public void watch(PacketReceiverImpl[] receivers, Queue<TCPConnection> acceptQueue) {
+		this.receivers = receivers;
+		this.acceptQueue = acceptQueue;
+	}
+
+	/**
+	 * set the governor whose buffered bytes are sampled
+	 */
+	public void watch(MemoryGovernor memoryGovernor) {
+		this.memoryGovernor = memoryGovernor;
+	}
+
+	/**
+	 * called by packet receivers after picking one packet
+	 */
+	void packetProcessed(int payloadLength) {
+		packetsProcessed.increment();
+		bytesProcessed.add(payloadLength);
+	}
+
+	void packetsBufferFull() {
+		packetsBufferFull.increment();
+	}
+
+	void streamBufferFull() {
+		streamBufferFull.increment();
+	}
+
+	void connectionEvicted() {
+		evictedConnections.increment();
+	}
+
+	void connectionRejected() {
+		rejectedConnections.increment();
+	}
+
+	void gapSkipped(int bytes) {
+		skippedGaps.increment();
+		lostBytes.add(bytes);
+	}
+
+	/**
+	 * @param received
+	 *            packets received by the kernel
+	 * @param dropped
+	 *            packets dropped by the kernel
+	 */
+	public void updateKernelStatistics(long received, long dropped) {
+		this.kernelReceivedPackets = received;
+		this.kernelDroppedPackets = dropped;
+	}
+
+	/**
+	 * take a snapshot of all metrics, rates are calculated against the
+	 * previous snapshot, it becomes the one exposed by JMX
+	 */
+	public synchronized Snapshot takeSnapshot() {
+		Snapshot previous = latest;
+		Snapshot snapshot = new Snapshot();
+		snapshot.nanos = System.nanoTime();
+		snapshot.kernelReceivedPackets = kernelReceivedPackets;
+		snapshot.kernelDroppedPackets = kernelDroppedPackets;
+		snapshot.packetsProcessed = packetsProcessed.sum();
+		snapshot.bytesProcessed = bytesProcessed.sum();
+		snapshot.packetsBufferFullCount = packetsBufferFull.sum();
+		snapshot.streamBufferFullCount = streamBufferFull.sum();
+		snapshot.evictedConnections = evictedConnections.sum();
+		snapshot.rejectedConnections = rejectedConnections.sum();
+		snapshot.skippedGaps = skippedGaps.sum();
+		snapshot.lostBytes = lostBytes.sum();
+		MemoryGovernor governor = memoryGovernor;
+		snapshot.bufferedBytes = governor == null ? 0 : governor.getBufferedBytes();
+		if (previous.nanos > 0 && snapshot.nanos > previous.nanos) {
+			double seconds = (snapshot.nanos - previous.nanos) / 1000000000d;
+			snapshot.packetsPerSecond = (snapshot.packetsProcessed - previous.packetsProcessed) / seconds;
+			snapshot.bytesPerSecond = (snapshot.bytesProcessed - previous.bytesProcessed) / seconds;
+		}
+		Map<TCPConnectionState, Integer> states = new EnumMap<TCPConnectionState, Integer>(TCPConnectionState.class);
+		for (PacketReceiverImpl receiver : receivers) {
+			for (TCPConnectionImpl connection : receiver.getActiveConnections()) {
+				Integer count = states.get(connection.getState());
+				states.put(connection.getState(), count == null ? 1 : count + 1);
+				// the buffer is owned by another thread, the size is only a hint
+				snapshot.bufferedPackets += connection.getPacketsBuffer().getPacketsCountInBuffer();
+			}
+		}
+		for (Map.Entry<TCPConnectionState, Integer> entry : states.entrySet()) {
+			snapshot.connectionStateCounts.put(entry.getKey().name(), entry.getValue());
+		}
+		Queue<TCPConnection> queue = acceptQueue;
+		snapshot.acceptQueueDepth = queue == null ? 0 : queue.size();
+		latest = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * register current metrics into platform MBean server, as
+	 * "com.mexhee.tcp:type=SnifferMetrics,name=&lt;name&gt;"
+	 */
+	public synchronized void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("com.mexhee.tcp:type=SnifferMetrics,name=" + ObjectName.quote(name));
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (JMException e) {
+			logger.warn("cannot register sniffer metrics into JMX", e);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			logger.warn("cannot unregister sniffer metrics from JMX", e);
+		}
+		objectName = null;
+	}
+
+	@Override
+	public long getKernelReceivedPackets() {
+		return kernelReceivedPackets;
+	}
+
+	@Override
+	public long getKernelDroppedPackets() {
+		return kernelDroppedPackets;
+	}
+
+	@Override
+	public long getPacketsProcessed() {
+		return packetsProcessed.sum();
+	}
+
+	@Override
+	public long getBytesProcessed() {
+		return bytesProcessed.sum();
+	}
+
+	@Override
+	public double getPacketsPerSecond() {
+		return latest.packetsPerSecond;
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return latest.bytesPerSecond;
+	}
+
+	@Override
+	public long getPacketsBufferFullCount() {
+		return packetsBufferFull.sum();
+	}
+
+	@Override
+	public long getStreamBufferFullCount() {
+		return streamBufferFull.sum();
+	}
+
+	@Override
+	public long getEvictedConnections() {
+		return evictedConnections.sum();
+	}
+
+	@Override
+	public long getRejectedConnections() {
+		return rejectedConnections.sum();
+	}
+
+	@Override
+	public long getSkippedGaps() {
+		return skippedGaps.sum();
+	}
+
+	@Override
+	public long getLostBytes() {
+		return lostBytes.sum();
+	}
+
+	@Override
+	public int getBufferedPackets() {
+		return latest.bufferedPackets;
+	}
+
+	@Override
+	public long getBufferedBytes() {
+		return latest.bufferedBytes;
+	}
+
+	@Override
+	public int getAcceptQueueDepth() {
+		return latest.acceptQueueDepth;
+	}
+
+	@Override
+	public Map<String, Integer> getConnectionStateCounts() {
+		return latest.getConnectionStateCounts();
+	}
+
+	/**
+	 * an immutable copy of metrics at one moment
+	 */
+	public static class Snapshot {
+
+		private long nanos;
+		private long kernelReceivedPackets;
+		private long kernelDroppedPackets;
+		private long packetsProcessed;
+		private long bytesProcessed;
+		private double packetsPerSecond;
+		private double bytesPerSecond;
+		private long packetsBufferFullCount;
+		private long streamBufferFullCount;
+		private long evictedConnections;
+		private long rejectedConnections;
+		private long skippedGaps;
+		private long lostBytes;
+		private int bufferedPackets;
+		private long bufferedBytes;
+		private int acceptQueueDepth;
+		private Map<String, Integer> connectionStateCounts = new LinkedHashMap<String, Integer>();
+
+		public long getKernelReceivedPackets() {
+			return kernelReceivedPackets;
+		}
+
+		public long getKernelDroppedPackets() {
+			return kernelDroppedPackets;
+		}
+
+		public long getPacketsProcessed() {
+			return packetsProcessed;
+		}
+
+		public long getBytesProcessed() {
+			return bytesProcessed;
+		}
+
+		public double getPacketsPerSecond() {
+			return packetsPerSecond;
+		}
+
+		public double getBytesPerSecond() {
+			return bytesPerSecond;
+		}
+
+		public long getPacketsBufferFullCount() {
+			return packetsBufferFullCount;
+		}
+
+		public long getStreamBufferFullCount() {
+			return streamBufferFullCount;
+		}
+
+		public long getEvictedConnections() {
+			return evictedConnections;
+		}
+
+		public long getRejectedConnections() {
+			return rejectedConnections;
+		}
+
+		public long getSkippedGaps() {
+			return skippedGaps;
+		}
+
+		public long getLostBytes() {
+			return lostBytes;
+		}
+
+		public int getBufferedPackets() {
+			return bufferedPackets;
+		}
+
+		public long getBufferedBytes() {
+			return bufferedBytes;
+		}
+
+		public int getAcceptQueueDepth() {
+			return acceptQueueDepth;
+		}
+
+		public Map<String, Integer> getConnectionStateCounts() {
+			return Collections.unmodifiableMap(connectionStateCounts);
+		}
+
+		@Override
+		public String toString() {
+			return "kernel received:" + kernelReceivedPackets + ", kernel dropped:" + kernelDroppedPackets
+					+ ", packets:" + packetsProcessed + ", bytes:" + bytesProcessed + ", packets/s:"
+					+ Math.round(packetsPerSecond) + ", bytes/s:" + Math.round(bytesPerSecond)
+					+ ", packets buffer full:" + packetsBufferFullCount + ", stream buffer full:"
+					+ streamBufferFullCount + ", evicted connections:" + evictedConnections + ", rejected connections:"
+					+ rejectedConnections + ", skipped gaps:"
+					+ skippedGaps + ", lost bytes:" + lostBytes + ", buffered packets:" + bufferedPackets
+					+ ", buffered bytes:" + bufferedBytes + ", accept queue:" + acceptQueueDepth + ", connections:" + connectionStateCounts;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link SnifferMetrics}. Counters are totals since the sniffer
+ * started, rates and gauges are those of the latest snapshot taken by
+ * {@link MetricsReporter}.
+ */
+public interface SnifferMetricsMXBean {
+
+	/**
+	 * packets received by the kernel, as reported by pcap, 0 when replaying a
+	 * file
+	 */
+	long getKernelReceivedPackets();
+
+	/**
+	 * packets dropped by the kernel because the capture buffer was full
+	 */
+	long getKernelDroppedPackets();
+
+	/**
+	 * packets processed by packet receivers
+	 */
+	long getPacketsProcessed();
+
+	/**
+	 * tcp payload bytes processed by packet receivers
+	 */
+	long getBytesProcessed();
+
+	double getPacketsPerSecond();
+
+	double getBytesPerSecond();
+
+	/**
+	 * how many times an out of order packets buffer was full, see
+	 * {@link PacketsBufferFullException}
+	 */
+	long getPacketsBufferFullCount();
+
+	/**
+	 * how many times a connection stream buffer was full, see
+	 * {@link com.mexhee.io.BufferFullException}
+	 */
+	long getStreamBufferFullCount();
+
+	/**
+	 * connections evicted because buffered bytes exceeded the budget, see
+	 * {@link MemoryGovernor}
+	 */
+	long getEvictedConnections();
+
+	/**
+	 * connections rejected because the accept queue was full, see
+	 * {@link AcceptQueue.OverflowPolicy}
+	 */
+	long getRejectedConnections();
+
+	/**
+	 * missing data skipped in gap tolerant mode, see
+	 * {@link PacketReceiverImpl#setGapTolerance(long, long)}
+	 */
+	long getSkippedGaps();
+
+	/**
+	 * bytes lost in skipped gaps
+	 */
+	long getLostBytes();
+
+	/**
+	 * packets waiting in out of order buffers of active connections
+	 */
+	int getBufferedPackets();
+
+	/**
+	 * bytes buffered by all connections, 0 if memory is not governed, see
+	 * {@link MemoryGovernor}
+	 */
+	long getBufferedBytes();
+
+	/**
+	 * established connections which are not accepted yet
+	 */
+	int getAcceptQueueDepth();
+
+	/**
+	 * active connections count of every {@link TCPConnectionState}
+	 */
+	Map<String, Integer> getConnectionStateCounts();
+}
@@ -0,0 +1,97 @@
+package com.mexhee.tcp.connection;
+
+import com.mexhee.tcp.packet.SequenceNumbers;
+
+/**
+ * Half open connections which have only sent a SYN packet, one entry only
+ * holds the key, the initial sequence number and the capture time of the SYN.
+ * A connection object is created only when the SYN/ACK packet is seen, so port
+ * scans and SYN floods don't fill the connection table with connection
+ * objects.
+ *
+ * The table has a hard capacity, see {@link FlowKeyTable}, a new SYN replaces
+ * the oldest one of its bucket when the bucket is full.
+ */
+class SynTable extends FlowKeyTable {
+
+	static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	private final long[] sequences;
+	private final long[] synNanos;
+	// whether the syn is sent by endpoint B, see FlowKey#isReversed()
+	private final boolean[] reversed;
+	private final long timeoutNanos;
+
+	SynTable() {
+		this(DEFAULT_CAPACITY, ConnectionTimeouts.HALF_HANDSHAKE_TIMEOUT);
+	}
+
+	/**
+	 * @param capacity
+	 *            max entries, rounded up to a power of 2
+	 * @param timeoutMillis
+	 *            how long a SYN waits for its SYN/ACK
+	 */
+	SynTable(int capacity, long timeoutMillis) {
+		super(capacity);
+		sequences = new long[entries()];
+		synNanos = new long[entries()];
+		reversed = new boolean[entries()];
+		timeoutNanos = timeoutMillis * 1000000L;
+	}
+
+	/**
+	 * remember the SYN of a connection, a retransmitted SYN replaces the
+	 * previous one
+	 * 
+	 * @param key
+	 *            key of the SYN packet
+	 * @param sequence
+	 *            sequence number of the SYN packet
+	 * @return whether a waiting SYN of another connection is replaced
+	 */
+	boolean add(FlowKey key, long sequence, long nowNanos) {
+		long replacedBefore = getReplaced();
+		int entry = put(key, nowNanos);
+		sequences[entry] = sequence;
+		synNanos[entry] = nowNanos;
+		reversed[entry] = key.isReversed();
+		setDeadline(entry, nowNanos + timeoutNanos);
+		return getReplaced() != replacedBefore;
+	}
+
+	/**
+	 * find the SYN answered by a SYN/ACK packet
+	 * 
+	 * @param key
+	 *            key of the SYN/ACK packet
+	 * @param ackNum
+	 *            ack number of the SYN/ACK packet
+	 * @return the entry of the SYN, or -1 if there is no SYN of the connection
+	 *         waiting, or the SYN/ACK doesn't answer it
+	 */
+	int answered(FlowKey key, long ackNum, long nowNanos) {
+		int entry = get(key, nowNanos);
+		if (entry < 0) {
+			return -1;
+		}
+		if (reversed[entry] == key.isReversed() || SequenceNumbers.add(sequences[entry], 1) != ackNum) {
+			return -1;
+		}
+		return entry;
+	}
+
+	/**
+	 * sequence number of the SYN in the entry
+	 */
+	long getSequence(int entry) {
+		return sequences[entry];
+	}
+
+	/**
+	 * capture time of the SYN in the entry
+	 */
+	long getSynNanos(int entry) {
+		return synNanos[entry];
+	}
+}
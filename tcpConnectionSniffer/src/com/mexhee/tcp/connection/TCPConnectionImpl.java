@@ -5,9 +5,12 @@ import java.util.Date;
 
 import org.apache.log4j.Logger;
 
+import com.mexhee.io.Clock;
 import com.mexhee.io.DynamicByteArrayInputStream;
+import com.mexhee.io.FixLengthStreamFileCache;
 import com.mexhee.io.TimeMeasurableCombinedInputStream;
 import com.mexhee.tcp.connection.SequenceCounter.Counter;
+import com.mexhee.tcp.packet.SequenceNumbers;
 import com.mexhee.tcp.packet.TCPPacket;
 
 /**
@@ -35,16 +38,103 @@ public class TCPConnectionImpl implements TCPConnection {
 	private DynamicByteArrayInputStream serverInputStream = new DynamicByteArrayInputStream();
 	private DynamicByteArrayInputStream clientInputStream = new DynamicByteArrayInputStream();
 
-	private Date lastUpdated = new Date();
+	// the time source of lastUpdated and streams
+	private Clock clock = Clock.SYSTEM;
+	// milliseconds since epoch
+	private volatile long lastUpdated = System.currentTimeMillis();
 
 	private boolean maybeBroken = false;
 
+	// whether any buffered data is dropped to bound memory
+	private volatile boolean truncated = false;
+
+	// whether it is rejected by the accept queue, set by any thread
+	private volatile boolean dropped = false;
+	// whether data of both directions is discarded, but the connection is kept
+	private boolean reassemblyStopped = false;
+	// whether it is handed out to the application
+	private boolean published = false;
+	// whether it is removed by its receiver, reset when it is recycled
+	private boolean removed = false;
+
+	// where buffered bytes are charged, null if memory is not governed
+	private MemoryGovernor.Account memoryAccount;
+
+	// whether any data packet has been appended into the stream
+	private boolean clientDataReceived = false;
+	private boolean serverDataReceived = false;
+
 	private PacketsBuffer packetsBuffer = new PacketsBuffer(this);
 
+	// receives data instead of streams if it is not null
+	private ConnectionDataHandler dataHandler;
+	// direction of data pushed to the handler last, null before any data
+	private Boolean lastPushedByClient;
+
+	// capture time of the latest packet, nanoseconds since epoch
+	private long lastPacketNanos;
+	// the deadline of this connection in the receiver's timing wheel
+	private final TimingWheel.Timer<TCPConnectionImpl> expiryTimer = new TimingWheel.Timer<TCPConnectionImpl>(this);
+
 	public TCPConnectionImpl(ConnectionDetail connectionDetail) {
 		this.connectionDetail = connectionDetail;
 	}
 
+	/**
+	 * reset a closed connection as a new one of the given connection, so that
+	 * its streams and buffers are reused. Only a connection which was never
+	 * published could be recycled, as nobody else holds it. The clock and the
+	 * spill cache are kept.
+	 */
+	void recycle(ConnectionDetail connectionDetail) {
+		this.connectionDetail = connectionDetail;
+		counter.clientCounter.reset();
+		counter.serverCounter.reset();
+		state = null;
+		isClientRequestClosing = false;
+		packetsBuffer.recycle();
+		clientInputStream.recycle();
+		serverInputStream.recycle();
+		setMemoryAccount(null);
+		maybeBroken = false;
+		truncated = false;
+		dropped = false;
+		reassemblyStopped = false;
+		clientDataReceived = false;
+		serverDataReceived = false;
+		dataHandler = null;
+		lastPushedByClient = null;
+		lastPacketNanos = 0;
+		removed = false;
+		updated();
+	}
+
+	/**
+	 * mark that the connection is handed out to the application, by the
+	 * accept queue or the data handler
+	 */
+	void published() {
+		this.published = true;
+	}
+
+	boolean isPublished() {
+		return published;
+	}
+
+	/**
+	 * mark that the connection is removed by its receiver, only called by the
+	 * thread picking packets
+	 * 
+	 * @return false if it is already removed
+	 */
+	boolean removed() {
+		if (removed) {
+			return false;
+		}
+		removed = true;
+		return true;
+	}
+
 	/**
 	 * get a {@link TimeMeasurableCombinedInputStream} instance, from this
 	 * stream, we could get all the data that server received through this tcp
@@ -125,6 +215,18 @@ public class TCPConnectionImpl implements TCPConnection {
 		state = TCPConnectionState.SynSent;
 	}
 
+	/*
+	 * restore the state after the syn packet, for a connection whose syn
+	 * packet was kept in the syn table rather than processed by
+	 * processSyncPacket
+	 */
+	void synSent(long sequence, long captureNanos) {
+		counter.clientCounter.seq = sequence;
+		counter.clientCounter.ack = 0;
+		counter.clientCounter.latestPacketCaptureNanos = captureNanos;
+		state = TCPConnectionState.SynSent;
+	}
+
 	void setState(TCPConnectionState state) {
 		this.state = state;
 	}
@@ -134,7 +236,7 @@ public class TCPConnectionImpl implements TCPConnection {
 	 * and process this packet.
 	 */
 	protected void processSyncAckPacket(TCPPacket syncAckPacket) {
-		if (syncAckPacket.getAckNum() != counter.clientCounter.seq + 1) {
+		if (syncAckPacket.getAckNum() != SequenceNumbers.add(counter.clientCounter.seq, 1)) {
 			throw new RuntimeException("sync packet ack number is incorrect!");
 		}
 		counter.updateServerCounter(syncAckPacket);
@@ -185,13 +287,13 @@ public class TCPConnectionImpl implements TCPConnection {
 	 */
 	private void processLastAckPacket(TCPPacket ackPacket) {
 		if (ackPacket.isSentByClient()) {
-			if (ackPacket.getAckNum() == counter.serverCounter.seq + 1) {
+			if (ackPacket.getAckNum() == SequenceNumbers.add(counter.serverCounter.seq, 1)) {
 				logger.warn(connectionDetail.toString() + ":" + "incorrect seq number for last ACK");
 				maybeBroken = true;
 			}
 			counter.updateClientCounter(ackPacket);
 		} else {
-			if (ackPacket.getAckNum() == counter.clientCounter.seq + 1) {
+			if (ackPacket.getAckNum() == SequenceNumbers.add(counter.clientCounter.seq, 1)) {
 				logger.warn(connectionDetail.toString() + ":" + "incorrect seq number for last ACK");
 				maybeBroken = true;
 			}
@@ -201,7 +303,7 @@ public class TCPConnectionImpl implements TCPConnection {
 	}
 
 	private void processHandshake3AckPacket(TCPPacket ackPacket) {
-		if (ackPacket.getAckNum() != counter.serverCounter.seq + 1) {
+		if (ackPacket.getAckNum() != SequenceNumbers.add(counter.serverCounter.seq, 1)) {
 			throw new RuntimeException("syn packet ack number " + ackPacket.getAckNum() + " is incorrect!");
 		}
 		if (logger.isInfoEnabled())
@@ -221,7 +323,7 @@ public class TCPConnectionImpl implements TCPConnection {
 	 * current instance
 	 */
 	private boolean isMatchSequence(TCPPacket packet) {
-		boolean isSentByClient = connectionDetail.isTheSame(packet.getConnectionDetail());
+		boolean isSentByClient = connectionDetail.getFlowKey().isSameDirection(packet.getFlowKey());
 		if (isSentByClient) {
 			return counter.isMatchClientSeq(packet);
 		} else {
@@ -280,17 +382,28 @@ public class TCPConnectionImpl implements TCPConnection {
 	 */
 	private void processSCDataPacket(TCPPacket dataPacket) throws IOException {
 		if (counter.clientCounter.ack == dataPacket.getSequence()) {
-			if (clientInputStream.finish(true)) {
-				clientInputStream.markStreamStartTime(new Date(counter.clientCounter.latestPacketUpdateTime));
+			if (clientInputStream.finish(true, dataPacket.getCaptureNanos())) {
+				clientInputStream.markStreamStartNanos(counter.clientCounter.latestPacketCaptureNanos);
 			}
 		}
 		/**
 		 * first packet
 		 */
-		if (counter.serverCounter.seq == 0) {
-			serverInputStream.markStreamStartTime(dataPacket.getPacketCaptureTime());
+		if (truncated && serverInputStream.isFinished()) {
+			// the stream is truncated, skip its data
+			counter.updateServerCounter(dataPacket);
+			return;
+		}
+		if (dataHandler != null) {
+			push(dataPacket, false);
+			counter.updateServerCounter(dataPacket);
+			return;
 		}
-		serverInputStream.append(dataPacket.getData());
+		if (!serverDataReceived) {
+			serverInputStream.markStreamStartNanos(dataPacket.getCaptureNanos());
+			serverDataReceived = true;
+		}
+		serverInputStream.append(dataPacket.getPayload());
 		counter.updateServerCounter(dataPacket);
 	}
 
@@ -300,28 +413,52 @@ public class TCPConnectionImpl implements TCPConnection {
 	 */
 	private void processCSDataPacket(TCPPacket dataPacket) throws IOException {
 		if (counter.serverCounter.ack == dataPacket.getSequence()) {
-			if (serverInputStream.finish(true)) {
-				serverInputStream.markStreamStartTime(new Date(counter.serverCounter.latestPacketUpdateTime));
+			if (serverInputStream.finish(true, dataPacket.getCaptureNanos())) {
+				serverInputStream.markStreamStartNanos(counter.serverCounter.latestPacketCaptureNanos);
 			}
 		}
 		/**
 		 * first packet
 		 */
-		if (counter.clientCounter.seq == 0) {
-			clientInputStream.markStreamStartTime(dataPacket.getPacketCaptureTime());
+		if (truncated && clientInputStream.isFinished()) {
+			// the stream is truncated, skip its data
+			counter.updateClientCounter(dataPacket);
+			return;
+		}
+		if (dataHandler != null) {
+			push(dataPacket, true);
+			counter.updateClientCounter(dataPacket);
+			return;
 		}
-		clientInputStream.append(dataPacket.getData());
+		if (!clientDataReceived) {
+			clientInputStream.markStreamStartNanos(dataPacket.getCaptureNanos());
+			clientDataReceived = true;
+		}
+		clientInputStream.append(dataPacket.getPayload());
 		counter.updateClientCounter(dataPacket);
 	}
 
+	/**
+	 * pass the payload to the data handler, the direction switch is reported
+	 * before the first data of the other direction
+	 */
+	private void push(TCPPacket dataPacket, boolean clientToServer) {
+		if (lastPushedByClient != null && lastPushedByClient.booleanValue() != clientToServer) {
+			dataHandler.onDirectionSwitch(this, clientToServer, dataPacket.getCaptureNanos());
+		}
+		lastPushedByClient = Boolean.valueOf(clientToServer);
+		// the packet's shared read only view, so nothing is allocated per packet
+		dataHandler.onData(this, clientToServer, dataPacket.getReadOnlyPayload(), dataPacket.getCaptureNanos());
+	}
+
 	protected void processFinishPacket(TCPPacket tcpPacket) throws IOException {
 		if (tcpPacket.isSentByClient()) {
-			clientInputStream.finish(false);
+			clientInputStream.finish(false, tcpPacket.getCaptureNanos());
 			updateConnectionStateAfterReceivedFinishPacket(tcpPacket);
 			counter.updateClientCounter(tcpPacket);
 			counter.clientSequenceAddOne();
 		} else {
-			serverInputStream.finish(false);
+			serverInputStream.finish(false, tcpPacket.getCaptureNanos());
 			updateConnectionStateAfterReceivedFinishPacket(tcpPacket);
 			counter.updateServerCounter(tcpPacket);
 			counter.serverSequenceAddOne();
@@ -355,10 +492,10 @@ public class TCPConnectionImpl implements TCPConnection {
 			counter.updateServerCounter(rstPacket);
 		}
 		if (!clientInputStream.isFinished()) {
-			clientInputStream.finish(false);
+			clientInputStream.finish(false, rstPacket.getCaptureNanos());
 		}
 		if (!serverInputStream.isFinished()) {
-			serverInputStream.finish(false);
+			serverInputStream.finish(false, rstPacket.getCaptureNanos());
 		}
 		validateDataPacketsInBuffer();
 	}
@@ -403,21 +540,224 @@ public class TCPConnectionImpl implements TCPConnection {
 		return this.maybeBroken;
 	}
 
+	/**
+	 * whether some data of this connection is dropped to bound memory, when
+	 * buffers of the connection are full, or it is evicted by
+	 * {@link MemoryGovernor}. The streams of the truncated direction are
+	 * finished, those data after the dropped data are not appended.
+	 */
+	public boolean isTruncated() {
+		return this.truncated;
+	}
+
+	/**
+	 * drop those out of order packets buffered in the direction of given
+	 * packet, and finish the stream of that direction, data already in the
+	 * stream could still be read
+	 */
+	void truncate(TCPPacket packet) {
+		if (packet.isSentByClient()) {
+			packetsBuffer.clearCSBuffer();
+			clientInputStream.finish(false, packet.getCaptureNanos());
+		} else {
+			packetsBuffer.clearSCBuffer();
+			serverInputStream.finish(false, packet.getCaptureNanos());
+		}
+		truncated = true;
+		maybeBroken = true;
+	}
+
+	/**
+	 * mark the connection to be removed by its receiver, it could be called by
+	 * any thread, see {@link AcceptQueue.OverflowPolicy}
+	 */
+	void drop() {
+		this.dropped = true;
+	}
+
+	boolean isDropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * discard data of both directions from now on, the connection is still
+	 * tracked until it is closed or timed out, so that its packets are not
+	 * detected as a new connection again
+	 */
+	void stopReassembly() {
+		packetsBuffer.clearCSBuffer();
+		packetsBuffer.clearSCBuffer();
+		reassemblyStopped = true;
+		truncated = true;
+	}
+
+	/**
+	 * drop all buffered data of both directions, including those data not read
+	 * yet from streams, and finish both streams
+	 */
+	void evict() {
+		packetsBuffer.clearCSBuffer();
+		packetsBuffer.clearSCBuffer();
+		clientInputStream.closeWholeStream();
+		clientInputStream.finish(false);
+		serverInputStream.closeWholeStream();
+		serverInputStream.finish(false);
+		truncated = true;
+		maybeBroken = true;
+	}
+
+	/**
+	 * skip the missing data before the first packet buffered in one direction,
+	 * so that buffered packets could be processed. The lost bytes are marked as
+	 * a gap in the stream of that direction, see
+	 * {@link TimeMeasurableCombinedInputStream#getGapBeforeNextByte()}.
+	 * 
+	 * @return lost bytes, 0 if there is no gap before the first buffered
+	 *         packet
+	 */
+	int skipGap(boolean clientToServer, long nowNanos) {
+		SegmentReassembler buffer = clientToServer ? packetsBuffer.csTemporaryStoredPackets
+				: packetsBuffer.scTemporaryStoredPackets;
+		TCPPacket first = buffer.first();
+		Counter sender = clientToServer ? counter.clientCounter : counter.serverCounter;
+		if (first == null) {
+			return 0;
+		}
+		int lost = SequenceNumbers.distance(sender.seq, first.getSequence());
+		if (lost <= 0) {
+			return 0;
+		}
+		if (logger.isInfoEnabled())
+			logger.info(connectionDetail.toString() + " skipped " + lost + " lost bytes before " + first);
+		sender.seq = first.getSequence();
+		if (dataHandler != null) {
+			dataHandler.onGap(this, clientToServer, lost);
+		} else {
+			(clientToServer ? clientInputStream : serverInputStream).markGap(lost);
+		}
+		packetsBuffer.restartWaiting(clientToServer, nowNanos);
+		return lost;
+	}
+
+	/**
+	 * whether the data of given packet should be discarded, as the stream of
+	 * its direction is truncated, or reassembly is stopped
+	 */
+	boolean isDiscarding(TCPPacket packet) {
+		if (!truncated || !packet.isContainsData() || packet.isFinish() || packet.isRest()) {
+			return false;
+		}
+		if (reassemblyStopped) {
+			return true;
+		}
+		return packet.isSentByClient() ? clientInputStream.isFinished() : serverInputStream.isFinished();
+	}
+
+	/**
+	 * charge buffered bytes of this connection into the given account
+	 */
+	void setMemoryAccount(MemoryGovernor.Account memoryAccount) {
+		this.memoryAccount = memoryAccount;
+		packetsBuffer.setMemoryAccount(memoryAccount);
+		clientInputStream.setMemoryAccount(memoryAccount);
+		serverInputStream.setMemoryAccount(memoryAccount);
+	}
+
+	/**
+	 * use the clock as the time of updating and finishing streams, rather than
+	 * the wall clock, it should be set before processing packets
+	 */
+	void setClock(Clock clock) {
+		this.clock = clock;
+		clientInputStream.setClock(clock);
+		serverInputStream.setClock(clock);
+		updated();
+	}
+
+	/**
+	 * keep stream data beyond the memory threshold in the spill cache
+	 */
+	void setSpillCache(FixLengthStreamFileCache spillCache, int memoryThreshold) {
+		clientInputStream.setSpillCache(spillCache, memoryThreshold);
+		serverInputStream.setSpillCache(spillCache, memoryThreshold);
+	}
+
+	/**
+	 * pass data to the handler rather than appending it into streams, it is
+	 * set when the connection is established
+	 */
+	void setDataHandler(ConnectionDataHandler dataHandler) {
+		this.dataHandler = dataHandler;
+	}
+
+	ConnectionDataHandler getDataHandler() {
+		return dataHandler;
+	}
+
+	MemoryGovernor.Account getMemoryAccount() {
+		return memoryAccount;
+	}
+
+	/**
+	 * release buffered bytes of this connection from the budget, it is called
+	 * when the connection is removed from its receiver
+	 */
+	void releaseMemoryAccount() {
+		if (memoryAccount != null) {
+			memoryAccount.close();
+		}
+	}
+
 	/**
 	 * get time of last packet transferred through this connection, this time is
-	 * not the packet capture time in kernel, but the time processed by tcp
-	 * connection sniffer
+	 * not the packet capture time in kernel, but the time of the sniffer's
+	 * clock when it is processed, see
+	 * {@link TCPConnectionSniffer#setClock(Clock)}
 	 */
 	@Override
 	public Date getLastUpdated() {
+		return new Date(this.lastUpdated);
+	}
+
+	/**
+	 * the same as {@link #getLastUpdated()}, in milliseconds since epoch
+	 */
+	public long getLastUpdatedMillis() {
 		return this.lastUpdated;
 	}
 
+	long getLastPacketNanos() {
+		return lastPacketNanos;
+	}
+
+	void setLastPacketNanos(long lastPacketNanos) {
+		this.lastPacketNanos = lastPacketNanos;
+	}
+
+	TimingWheel.Timer<TCPConnectionImpl> getExpiryTimer() {
+		return expiryTimer;
+	}
+
+	/**
+	 * finish both streams of a connection which receives no packet for a long
+	 * time, so that readers get EOF rather than waiting for data that never
+	 * comes
+	 */
+	void expire(long nowNanos) {
+		if (!clientInputStream.isFinished()) {
+			clientInputStream.finish(false, nowNanos);
+		}
+		if (!serverInputStream.isFinished()) {
+			serverInputStream.finish(false, nowNanos);
+		}
+		state = TCPConnectionState.Closed;
+	}
+
 	/**
 	 * used to update the {@link #lastUpdated} time from external
 	 */
 	void updated() {
-		this.lastUpdated = new Date();
+		this.lastUpdated = clock.currentTimeNanos() / 1000000L;
 	}
 
 	/**
@@ -435,11 +775,39 @@ public class TCPConnectionImpl implements TCPConnection {
 	}
 
 	protected boolean isOldPacket(TCPPacket packet) {
+		// the server sequence is unknown until syn/ack, and serial number
+		// comparison against an unset counter is meaningless
+		if (state == TCPConnectionState.SynSent) {
+			return false;
+		}
 		if (packet.isSentByClient()) {
-			return packet.getSequence() < counter.clientCounter.seq;
+			return SequenceNumbers.isBefore(packet.getSequence(), counter.clientCounter.seq);
 		} else {
-			return packet.getSequence() < counter.serverCounter.seq;
+			return SequenceNumbers.isBefore(packet.getSequence(), counter.serverCounter.seq);
+		}
+	}
+
+	/**
+	 * trim those bytes already received from an old packet, such as a
+	 * retransmission which carries more data than the original one
+	 * 
+	 * @return a packet carrying only those bytes not received yet, or null if
+	 *         all of its bytes were received. A fin packet whose bytes were
+	 *         all received is trimmed to an empty packet keeping the fin flag
+	 */
+	protected TCPPacket trimReceivedData(TCPPacket packet) {
+		long expected = packet.isSentByClient() ? counter.clientCounter.seq : counter.serverCounter.seq;
+		int received = SequenceNumbers.distance(packet.getSequence(), expected);
+		if (received <= 0) {
+			return packet;
+		}
+		if (received == packet.getDataLength() && packet.isFinish()) {
+			return packet.slice(received, 0);
+		}
+		if (received >= packet.getDataLength()) {
+			return null;
 		}
+		return packet.slice(received, packet.getDataLength() - received);
 	}
 
 	/**
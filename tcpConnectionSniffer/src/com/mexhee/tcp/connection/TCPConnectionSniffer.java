@@ -1,6 +1,10 @@
 package com.mexhee.tcp.connection;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 import jpcap.JpcapCaptor;
 import jpcap.NetworkInterface;
@@ -8,6 +12,12 @@ import jpcap.packet.Packet;
 
 import org.apache.log4j.Logger;
 
+import com.mexhee.io.CaptureClock;
+import com.mexhee.io.Clock;
+import com.mexhee.io.FixLengthStreamFileCache;
+import com.mexhee.packet.pcap.FrameDecoder;
+import com.mexhee.packet.pcap.PcapFileReader;
+import com.mexhee.tcp.packet.TCPPacket;
 import com.mexhee.tcp.packet.TCPPacketImpl;
 
 /**
@@ -22,7 +32,40 @@ public class TCPConnectionSniffer {
 	 * filter
 	 */
 	private ConnectionFilter connectionFilter = new ConnectionFilter();
-	private PacketReceiverImpl picker;
+	private PacketReceiver picker;
+	private PacketReceiverImpl[] receivers;
+	private AcceptQueue establishedConnections = new AcceptQueue();
+	private PcapFileReader fileReader;
+	private volatile boolean running;
+	private boolean batchCapture = false;
+	private int workerThreads = 0;
+	private SnifferMetrics metrics = new SnifferMetrics();
+	private String metricsName;
+	private boolean liveCapture = false;
+	private Thread metricsReporter;
+	private MemoryGovernor memoryGovernor;
+	private long gapTimeoutMillis = 0;
+	private long gapThresholdBytes = 0;
+	private ConnectionDataHandler dataHandler;
+	private FixLengthStreamFileCache spillCache;
+	private int spillThreshold;
+	// null to choose by the capture source when startup
+	private Clock clock;
+	private int halfOpenCapacity = 0;
+
+	/**
+	 * direct buffer size used by batch capture
+	 */
+	private static final int BATCH_BUFFER_SIZE = 4 * 1024 * 1024;
+	/**
+	 * read timeout of live capture, connections of a quiet link are expired
+	 * and {@link #shutdown()} takes effect at least once in this period
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 10000;
+	/**
+	 * max packets captured by one native call in batch capture
+	 */
+	private static final int MAX_PACKETS_IN_BATCH = 8192;
 
 	/**
 	 * begin to sniffer tcp connections on networkInterface, according to
@@ -38,11 +81,16 @@ public class TCPConnectionSniffer {
 	 *             open network interface failed or set filter failed
 	 */
 	public void startup(NetworkInterface networkInterface, ConnectionFilter filter) throws IOException {
-		captor = JpcapCaptor.openDevice(networkInterface, 2000, false, 10000);
-		captor.setFilter("tcp", true);
+		captor = JpcapCaptor.openDevice(networkInterface, 2000, false, READ_TIMEOUT_MILLIS);
+		metricsName = networkInterface.name;
+		liveCapture = true;
 		if (filter != null) {
 			this.connectionFilter = filter;
 		}
+		if (!installKernelFilter()) {
+			captor.setFilter("tcp", true);
+			captor.setJpcapFilter(connectionFilter.getJpcapFilter());
+		}
 		startupInNewThread();
 	}
 
@@ -59,31 +107,155 @@ public class TCPConnectionSniffer {
 	 */
 	public void startup(String filename) throws IOException {
 		captor = JpcapCaptor.openFile(filename);
+		metricsName = filename;
+		if (!installKernelFilter()) {
+			captor.setJpcapFilter(connectionFilter.getJpcapFilter());
+		}
 		startupInNewThread();
 	}
 
+	/**
+	 * begin to replay a pcap or pcapng capture file with the pure java
+	 * {@link PcapFileReader}, the file is memory mapped and decoded in java,
+	 * so it doesn't go through jpcap native library at all.
+	 * 
+	 * @param filename
+	 *            pcap or pcapng capture file name
+	 * @param filter
+	 *            filter to filter connection, could be null
+	 * @throws IOException
+	 *             open capture file failed
+	 */
+	public void replay(String filename, ConnectionFilter filter) throws IOException {
+		fileReader = new PcapFileReader(filename);
+		metricsName = filename;
+		if (filter != null) {
+			this.connectionFilter = filter;
+		}
+		startupInNewThread(new Runnable() {
+			@Override
+			public void run() {
+				replayFile();
+			}
+		});
+	}
+
 	private void startupInNewThread() {
-		captor.setJpcapFilter(connectionFilter.getJpcapFilter());
-		picker = new PacketReceiverImpl(connectionFilter);
+		if (batchCapture) {
+			startupInNewThread(new Runnable() {
+				@Override
+				public void run() {
+					captureBatches();
+				}
+			});
+			return;
+		}
+		startupInNewThread(new Runnable() {
+			@Override
+			public void run() {
+				capture();
+			}
+		});
+	}
+
+	/*
+	 * compile connection filter into BPF program, so that those packets
+	 * which don't belong to accepted connections are dropped in kernel
+	 */
+	private boolean installKernelFilter() {
+		String expression = connectionFilter.toBpfExpression();
+		try {
+			captor.setFilter(expression, true);
+			if (logger.isInfoEnabled())
+				logger.info("installed packet filter: " + expression);
+			return true;
+		} catch (IOException e) {
+			logger.warn("cannot install packet filter " + expression + ", using jpcap filter instead", e);
+			return false;
+		}
+	}
+
+	private void startupInNewThread(final Runnable packetsLoop) {
+		if (workerThreads > 0) {
+			ShardedPacketReceiver sharded = new ShardedPacketReceiver(connectionFilter, workerThreads,
+					establishedConnections, metrics);
+			receivers = sharded.getReceivers();
+			picker = sharded;
+		} else {
+			PacketReceiverImpl receiver = new PacketReceiverImpl(connectionFilter, establishedConnections, metrics);
+			receivers = new PacketReceiverImpl[] { receiver };
+			picker = receiver;
+		}
+		for (PacketReceiverImpl receiver : receivers) {
+			receiver.setMemoryGovernor(memoryGovernor);
+			receiver.setGapTolerance(gapTimeoutMillis, gapThresholdBytes);
+			receiver.setDataHandler(dataHandler);
+			receiver.setSpillCache(spillCache, spillThreshold);
+			receiver.setClock(getClock());
+			if (halfOpenCapacity > 0) {
+				receiver.setHalfOpenCapacity(halfOpenCapacity);
+			}
+		}
+		metrics.watch(receivers, establishedConnections);
+		metrics.watch(memoryGovernor);
+		running = true;
 		Thread t = new Thread(new Runnable() {
 			@Override
 			public void run() {
-				startup();
+				startup(packetsLoop);
 			}
 		});
 		t.setName("PacketsPicker");
 		t.start();
 	}
 
-	private void startup() {
-		Thread cleaner = new Thread(new ObsoleteConnectionCleaner(picker));
-		cleaner.setDaemon(true);
-		cleaner.setName("ObsoleteConnectionCleaner");
-		cleaner.start();
-		logger.info("started timeout tcp connection cleaner");
+	private void startup(Runnable packetsLoop) {
+		startMetricsReporter();
+		if (picker instanceof ShardedPacketReceiver) {
+			((ShardedPacketReceiver) picker).start();
+			logger.info("started " + workerThreads + " packets worker threads");
+		}
 		logger.info("starting up tcp connection sniffer");
-		captor.loopPacket(0, new jpcap.PacketReceiver() {
-			public void receivePacket(Packet packet) {
+		packetsLoop.run();
+	}
+
+	/*
+	 * kernel statistics are only available when capturing on a live network
+	 * interface
+	 */
+	private void startMetricsReporter() {
+		metrics.register(metricsName);
+		metricsReporter = new Thread(new MetricsReporter(metrics, liveCapture ? captor : null));
+		metricsReporter.setDaemon(true);
+		metricsReporter.setName("MetricsReporter");
+		metricsReporter.start();
+	}
+
+	/*
+	 * capture packets one by one, rather than by pcap loop, so that the read
+	 * timeout returns and expires connections of a quiet link
+	 */
+	private void capture() {
+		try {
+			while (running) {
+				Packet packet = captor.getPacket();
+				if (packet == Packet.EOF) {
+					logger.info("capture stopped, end of file or loop is broken");
+					break;
+				}
+				if (packet == null) {
+					int result = captor.getLastPacketResult();
+					if (result < 0) {
+						logger.error("capture stopped, native result " + result);
+						break;
+					}
+					// read timeout elapses, or the packet is dropped by jpcap filter
+					tick();
+					continue;
+				}
+				if (!(packet instanceof jpcap.packet.TCPPacket)) {
+					continue;
+				}
 				try {
 					picker.pick(new TCPPacketImpl((jpcap.packet.TCPPacket) packet));
 					if (logger.isDebugEnabled())
@@ -92,12 +264,248 @@ public class TCPConnectionSniffer {
 					logger.error("failed to handle packet " + packet, e);
 				}
 			}
-		});
+		} finally {
+			finishConnections();
+		}
+	}
+
+	/*
+	 * copy a batch of raw frames into a direct buffer by one native call, and
+	 * decode them in java
+	 */
+	private void captureBatches() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+		FrameDecoder decoder = new FrameDecoder();
+		int linkType = captor.getDatalinkType();
+		try {
+			while (running) {
+				buffer.clear();
+				int count = captor.captureBatch(buffer, MAX_PACKETS_IN_BATCH);
+				if (count < 0) {
+					logger.info("batch capture stopped, native result " + count);
+					break;
+				}
+				if (count == 0) {
+					// read timeout elapses without any packet
+					tick();
+					continue;
+				}
+				int offset = 0;
+				for (int i = 0; i < count; i++) {
+					long captureNanos = buffer.getLong(offset) * 1000000000L + buffer.getInt(offset + 8) * 1000L;
+					int caplen = buffer.getInt(offset + 12);
+					TCPPacket packet = decoder.decode(buffer, offset + JpcapCaptor.BATCH_RECORD_HEADER_LEN, caplen,
+							linkType, captureNanos);
+					offset += buffer.getInt(offset + 20);
+					if (packet == null) {
+						continue;
+					}
+					try {
+						picker.pick(packet);
+						if (logger.isDebugEnabled())
+							logger.debug("successfully process packet " + packet);
+					} catch (Exception e) {
+						logger.error("failed to handle packet " + packet, e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.error("failed to capture packets", e);
+		} finally {
+			finishConnections();
+		}
+	}
+
+	private void replayFile() {
+		try {
+			TCPPacket packet = null;
+			while (running && (packet = fileReader.nextPacket()) != null) {
+				try {
+					picker.pick(packet);
+					if (logger.isDebugEnabled())
+						logger.debug("successfully process packet " + packet);
+				} catch (Exception e) {
+					logger.error("failed to handle packet " + packet, e);
+				}
+			}
+			logger.info("finished replaying capture file, " + fileReader.getFramesRead() + " frames read");
+		} catch (IOException e) {
+			logger.error("failed to read capture file", e);
+		} finally {
+			finishConnections();
+			try {
+				fileReader.close();
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+	}
+
+	private Clock getClock() {
+		if (clock == null) {
+			clock = liveCapture ? Clock.SYSTEM : new CaptureClock();
+		}
+		return clock;
+	}
+
+	/*
+	 * expire connections when no packet is captured for a while, sharded
+	 * workers do it by themselves
+	 */
+	private void tick() {
+		if (picker instanceof PacketReceiverImpl) {
+			((PacketReceiverImpl) picker).tick();
+		}
+	}
+
+	/*
+	 * no more packets will be picked, finish remaining connections so that
+	 * their readers get EOF
+	 */
+	private void finishConnections() {
+		if (picker instanceof ShardedPacketReceiver) {
+			((ShardedPacketReceiver) picker).shutdown();
+		} else if (picker instanceof PacketReceiverImpl) {
+			((PacketReceiverImpl) picker).finish();
+		}
+	}
+
+	/**
+	 * whether to capture packets in batches, every native call copies a batch
+	 * of raw frames into a direct buffer, and those frames are decoded in
+	 * java, rather than creating jpcap packet objects and calling back into
+	 * java for every single packet. It should be set before startup.
+	 * 
+	 * @param batchCapture
+	 *            true to capture in batches, default is false
+	 */
+	public void setBatchCapture(boolean batchCapture) {
+		this.batchCapture = batchCapture;
+	}
+
+	/**
+	 * how many worker threads are used to process packets. If it is 0, all
+	 * packets are processed by the capturing thread itself, otherwise, the
+	 * capturing thread only hands over packets to workers by a flow hash, and
+	 * every worker owns the connections whose hash falls into it, see
+	 * {@link ShardedPacketReceiver}. It should be set before startup.
+	 * 
+	 * @param workerThreads
+	 *            worker threads count, default is 0
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * bound the bytes buffered by all connections, including out of order
+	 * packets and stream data not read yet. When the budget is exceeded,
+	 * connections are evicted according to the policy, see
+	 * {@link MemoryGovernor}. It should be set before startup.
+	 * 
+	 * @param budget
+	 *            max buffered bytes, 0 means no budget, which is the default
+	 * @param policy
+	 *            how to choose the connection to be evicted
+	 */
+	public void setMemoryBudget(long budget, MemoryGovernor.EvictionPolicy policy) {
+		this.memoryGovernor = budget > 0 ? new MemoryGovernor(budget, policy) : null;
+	}
+
+	/**
+	 * skip missing data of connections after the given time or bytes, rather
+	 * than waiting for it forever, see
+	 * {@link PacketReceiverImpl#setGapTolerance(long, long)}. It should be set
+	 * before startup.
+	 * 
+	 * @param timeoutMillis
+	 *            max waiting time in milliseconds by capture time, 0 means no
+	 *            limit
+	 * @param thresholdBytes
+	 *            max buffered payload bytes in one direction, 0 means no
+	 *            limit
+	 */
+	public void setGapTolerance(long timeoutMillis, long thresholdBytes) {
+		this.gapTimeoutMillis = timeoutMillis;
+		this.gapThresholdBytes = thresholdBytes;
+	}
+
+	/**
+	 * max connections which only sent SYN in every receiver, see
+	 * {@link PacketReceiverImpl#setHalfOpenCapacity(int)}. It should be set
+	 * before startup.
+	 * 
+	 * @param capacity
+	 *            max half open connections, 0 to use the default capacity
+	 */
+	public void setHalfOpenCapacity(int capacity) {
+		this.halfOpenCapacity = capacity;
+	}
+
+	/**
+	 * keep stream data beyond the memory threshold in the spill cache, see
+	 * {@link PacketReceiverImpl#setSpillCache(FixLengthStreamFileCache, int)}
+	 * . It should be set before startup.
+	 * 
+	 * @param spillCache
+	 *            the cache, null to keep all data in memory, which is the
+	 *            default
+	 * @param memoryThreshold
+	 *            max bytes kept in memory by one stream
+	 */
+	public void setSpillCache(FixLengthStreamFileCache spillCache, int memoryThreshold) {
+		this.spillCache = spillCache;
+		this.spillThreshold = memoryThreshold;
+	}
+
+	/**
+	 * the time source of connection timeouts and stream time, shared by all
+	 * receivers, see {@link PacketReceiverImpl#setClock(Clock)}. By default,
+	 * live capture uses the wall clock, so timeouts fire on a quiet link, and
+	 * reading a capture file uses a {@link CaptureClock}, which is driven by
+	 * packet capture time, so replaying at full speed gets the same results as
+	 * live capture. It should be set before startup.
+	 * 
+	 * @param clock
+	 *            the clock, {@link Clock#SYSTEM} to use the wall clock
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * bound established connections waiting to be accepted, by default at
+	 * most {@link AcceptQueue#DEFAULT_CAPACITY} connections wait, and
+	 * reassembly of those rejected ones is stopped. It should be set before
+	 * startup.
+	 * 
+	 * @param capacity
+	 *            max connections waiting to be accepted
+	 * @param policy
+	 *            how to reject a connection when the queue is full
+	 */
+	public void setAcceptQueue(int capacity, AcceptQueue.OverflowPolicy policy) {
+		this.establishedConnections = new AcceptQueue(capacity, policy);
+	}
+
+	/**
+	 * pass data of connections to the handler on the threads processing
+	 * packets, rather than buffering it into streams, see
+	 * {@link ConnectionDataHandler}. Connections are not accepted by
+	 * {@link #acceptConnection()} in this mode. It should be set before
+	 * startup.
+	 * 
+	 * @param dataHandler
+	 *            the handler, null to use streams, which is the default
+	 */
+	public void setDataHandler(ConnectionDataHandler dataHandler) {
+		this.dataHandler = dataHandler;
 	}
 
 	/**
 	 * The filter used to do filter of those connection, this filter will be
-	 * applied to Jpcap native library, please also see
+	 * compiled into a BPF program and installed into the kernel, please also
+	 * see {@link ConnectionFilter#toBpfExpression()}
 	 * 
 	 * @param connectionFilter
 	 */
@@ -106,13 +514,31 @@ public class TCPConnectionSniffer {
 	}
 
 	/**
-	 * stop data sniffer
+	 * stop data sniffer. Live capture doesn't stop at once, as breaking the
+	 * loop doesn't interrupt a blocking read, it stops when the next packet
+	 * arrives or the read timeout elapses, which is 10 seconds
 	 */
 	public void shutdown() {
 		logger.info("stopping tcp connection sniffer");
+		running = false;
 		if (captor != null) {
 			captor.breakLoop();
 		}
+		if (picker instanceof ShardedPacketReceiver) {
+			((ShardedPacketReceiver) picker).shutdown();
+		}
+		if (metricsReporter != null) {
+			metricsReporter.interrupt();
+		}
+		metrics.unregister();
+	}
+
+	/**
+	 * runtime metrics of current sniffer, they are also registered into JMX
+	 * after startup, see {@link SnifferMetricsMXBean}
+	 */
+	public SnifferMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
@@ -122,18 +548,74 @@ public class TCPConnectionSniffer {
 		return JpcapCaptor.getDeviceList();
 	}
 
+	/**
+	 * get an established connection without waiting, it is used by an event
+	 * loop which registers connection streams with a
+	 * {@link com.mexhee.io.StreamSelector}, rather than blocking a thread on
+	 * {@link #acceptConnection()}
+	 * 
+	 * @return the connection, or null if there is no new connection
+	 */
+	public TCPConnection pollConnection() {
+		return establishedConnections.poll();
+	}
+
+	/**
+	 * wait for an established connection, the waiting thread is parked by the
+	 * queue's lock, so it doesn't pin the carrier of a virtual thread
+	 * 
+	 * @return the connection, or null if the waiting thread is interrupted
+	 */
 	public TCPConnection acceptConnection() {
-		TCPConnection connection = picker.poll();
-		if (connection == null) {
-			synchronized (picker) {
-				try {
-					picker.wait();
-				} catch (InterruptedException e) {
-					logger.error(e);
-				}
-			}
-			connection = picker.poll();
+		try {
+			return establishedConnections.take();
+		} catch (InterruptedException e) {
+			interrupted();
+			return null;
+		}
+	}
+
+	/**
+	 * wait for an established connection at most the given time, it could be
+	 * called by many threads
+	 * 
+	 * @return the connection, or null if no connection is established in time
+	 *         or the waiting thread is interrupted
+	 */
+	public TCPConnection acceptConnection(long timeout, TimeUnit unit) {
+		try {
+			return establishedConnections.accept(timeout, unit);
+		} catch (InterruptedException e) {
+			interrupted();
+			return null;
+		}
+	}
+
+	/**
+	 * wait for an established connection at most the given time, and accept
+	 * those connections already waiting with it in one batch
+	 * 
+	 * @param connections
+	 *            where the accepted connections are added
+	 * @param maxConnections
+	 *            max connections accepted in the batch
+	 * @return accepted connections count, 0 if no connection is established in
+	 *         time or the waiting thread is interrupted
+	 */
+	public int acceptConnections(Collection<? super TCPConnection> connections, int maxConnections, long timeout,
+			TimeUnit unit) {
+		try {
+			return establishedConnections.accept(connections, maxConnections, timeout, unit);
+		} catch (InterruptedException e) {
+			interrupted();
+			return 0;
+		}
+	}
+
+	private void interrupted() {
+		if (logger.isDebugEnabled()) {
+			logger.debug("interrupted while accepting connection");
 		}
-		return connection;
+		Thread.currentThread().interrupt();
 	}
 }
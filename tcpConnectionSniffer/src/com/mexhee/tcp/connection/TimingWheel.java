@@ -0,0 +1,212 @@
+package com.mexhee.tcp.connection;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, timers are kept in slots by their deadlines, so
+ * scheduling and cancelling a timer are O(1), and advancing the time only
+ * visits those slots whose time is passed, rather than all timers. Every level
+ * has {@link #SLOTS} slots, a slot of level 0 spans one tick, and a slot of
+ * level n spans all slots of level n-1. Timers of a higher level are moved
+ * down when the time reaches their slot.
+ *
+ * Timers are linked into slots by themselves, so no node is allocated for
+ * scheduling. It is not thread safe, it should be only accessed by the thread
+ * which owns the timers.
+ *
+ * @param <T>
+ *            the value of timers
+ */
+class TimingWheel<T> {
+
+	static final int SLOTS = 64;
+	private static final int SLOT_BITS = 6;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	/*
+	 * timers beyond the span of all levels are put into the farthest slot,
+	 * and moved again when it is reached
+	 */
+	private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	private final long tickNanos;
+	// heads of timer lists, slots[level][slot]
+	private final Timer<T>[][] slots;
+	// the latest tick whose timers are expired
+	private long currentTick = -1;
+	private int size = 0;
+
+	/**
+	 * @param tickNanos
+	 *            time span of one tick, it is the precision of deadlines
+	 */
+	@SuppressWarnings("unchecked")
+	TimingWheel(long tickNanos) {
+		this.tickNanos = tickNanos;
+		this.slots = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+	}
+
+	/**
+	 * schedule the timer at the deadline, or move it if it is already
+	 * scheduled, a deadline which is already passed expires at the next
+	 * advance. The wheel starts at the first advance, or at the first
+	 * deadline if it is scheduled before any advance. An empty wheel goes back
+	 * to a deadline before its time, as no timer depends on the time yet
+	 */
+	void schedule(Timer<T> timer, long deadlineNanos) {
+		if (timer.level >= 0) {
+			unlink(timer);
+		} else {
+			size++;
+		}
+		timer.deadlineNanos = deadlineNanos;
+		if (currentTick < 0 || (size == 1 && deadlineNanos / tickNanos <= currentTick)) {
+			currentTick = deadlineNanos / tickNanos - 1;
+		}
+		link(timer, currentTick + 1);
+	}
+
+	/**
+	 * remove the timer if it is scheduled
+	 */
+	void cancel(Timer<T> timer) {
+		if (timer.level >= 0) {
+			unlink(timer);
+			size--;
+		}
+	}
+
+	/**
+	 * move the time to now, and collect values of those timers whose
+	 * deadlines are passed, those timers are not scheduled any more
+	 *
+	 * @return expired timers count
+	 */
+	int advance(long nowNanos, List<T> expired) {
+		long nowTick = nowNanos / tickNanos;
+		if (nowTick <= currentTick) {
+			return 0;
+		}
+		if (currentTick < 0 || size == 0) {
+			currentTick = nowTick;
+			return 0;
+		}
+		int count = 0;
+		while (currentTick < nowTick && size > 0) {
+			long tick = ++currentTick;
+			// move timers down from the highest level whose slot is reached
+			for (int level = LEVELS - 1; level > 0; level--) {
+				if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+					cascade(level, (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK));
+				}
+			}
+			int slot = (int) (tick & SLOT_MASK);
+			Timer<T> timer = slots[0][slot];
+			slots[0][slot] = null;
+			while (timer != null) {
+				Timer<T> next = timer.next;
+				timer.previous = null;
+				timer.next = null;
+				timer.level = -1;
+				if (timer.deadlineNanos / tickNanos > tick) {
+					// clamped to the farthest slot, not due yet
+					link(timer, tick + 1);
+				} else {
+					size--;
+					expired.add(timer.value);
+					count++;
+				}
+				timer = next;
+			}
+		}
+		currentTick = nowTick;
+		return count;
+	}
+
+	/**
+	 * scheduled timers count
+	 */
+	int size() {
+		return size;
+	}
+
+	private void cascade(int level, int slot) {
+		Timer<T> timer = slots[level][slot];
+		slots[level][slot] = null;
+		while (timer != null) {
+			Timer<T> next = timer.next;
+			timer.previous = null;
+			timer.next = null;
+			timer.level = -1;
+			// those due at the current tick go to the slot expired next
+			link(timer, currentTick);
+			timer = next;
+		}
+	}
+
+	/*
+	 * link the timer into the slot of its deadline, but not earlier than
+	 * minTick, whose slot of level 0 is not expired yet
+	 */
+	private void link(Timer<T> timer, long minTick) {
+		long tick = Math.max(timer.deadlineNanos / tickNanos, minTick);
+		long delta = tick - currentTick;
+		if (delta > MAX_DELTA) {
+			tick = currentTick + MAX_DELTA;
+			delta = MAX_DELTA;
+		}
+		int level = 0;
+		while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+			level++;
+		}
+		int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+		timer.level = level;
+		timer.slot = slot;
+		timer.previous = null;
+		timer.next = slots[level][slot];
+		if (timer.next != null) {
+			timer.next.previous = timer;
+		}
+		slots[level][slot] = timer;
+	}
+
+	private void unlink(Timer<T> timer) {
+		if (timer.previous == null) {
+			slots[timer.level][timer.slot] = timer.next;
+		} else {
+			timer.previous.next = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.previous = timer.previous;
+		}
+		timer.previous = null;
+		timer.next = null;
+		timer.level = -1;
+	}
+
+	/**
+	 * a timer of one value, it could be scheduled into one wheel at most
+	 */
+	static final class Timer<T> {
+
+		final T value;
+		private long deadlineNanos;
+		// -1 if it is not scheduled
+		private int level = -1;
+		private int slot;
+		private Timer<T> previous;
+		private Timer<T> next;
+
+		Timer(T value) {
+			this.value = value;
+		}
+
+		boolean isScheduled() {
+			return level >= 0;
+		}
+
+		long getDeadlineNanos() {
+			return deadlineNanos;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.mexhee.tcp.connection.server;
+
+import com.mexhee.tcp.connection.TCPConnection;
+
+/**
+ * Handles one accepted connection, it is called by
+ * {@link Server#serve(ConnectionHandler)} on a thread of its own, so it could
+ * read the connection streams in blocking model.
+ */
+public interface ConnectionHandler {
+
+	/**
+	 * handle the connection, the thread ends when this method returns
+	 * 
+	 * @param connection
+	 *            the accepted connection
+	 * @throws Exception
+	 *             any exception is logged, and doesn't affect other
+	 *             connections
+	 */
+	void handle(TCPConnection connection) throws Exception;
+}
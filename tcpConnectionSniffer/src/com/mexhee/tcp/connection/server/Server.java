@@ -1,22 +1,71 @@
 package com.mexhee.tcp.connection.server;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import jpcap.NetworkInterface;
 
 import com.mexhee.tcp.connection.ConnectionFilter;
 import com.mexhee.tcp.connection.TCPConnection;
+import com.mexhee.tcp.connection.TCPConnectionSniffer;
 
 public abstract class Server {
 
 	public abstract TCPConnection accept();
 
+	/**
+	 * @return the connection, or null if no connection is established in time
+	 * @see TCPConnectionSniffer#acceptConnection(long, TimeUnit)
+	 */
+	public abstract TCPConnection accept(long timeout, TimeUnit unit);
+
+	/**
+	 * accept connections in a background thread, and run the handler of every
+	 * accepted connection on a new virtual thread, so that many thousands of
+	 * connections could be read in blocking model. Platform threads are used
+	 * if virtual threads are not supported by the running jvm. Accepting
+	 * stops when the server is shut down.
+	 * 
+	 * @param handler
+	 *            called for every accepted connection
+	 */
+	public abstract void serve(ConnectionHandler handler);
+
 	public static Server bind(NetworkInterface networkInterface, ConnectionFilter filter) throws IOException {
 		ServerImpl server = new ServerImpl();
 		server.bindWithFilter(networkInterface, filter);
 		return server;
 	}
 
+	/**
+	 * bind to network interface, and capture packets in batches when
+	 * batchCapture is true
+	 * 
+	 * @see TCPConnectionSniffer#setBatchCapture(boolean)
+	 */
+	public static Server bind(NetworkInterface networkInterface, ConnectionFilter filter, boolean batchCapture)
+			throws IOException {
+		ServerImpl server = new ServerImpl();
+		server.sniffer.setBatchCapture(batchCapture);
+		server.bindWithFilter(networkInterface, filter);
+		return server;
+	}
+
+	/**
+	 * bind to network interface, and process packets by workerThreads threads
+	 * 
+	 * @see TCPConnectionSniffer#setBatchCapture(boolean)
+	 * @see TCPConnectionSniffer#setWorkerThreads(int)
+	 */
+	public static Server bind(NetworkInterface networkInterface, ConnectionFilter filter, boolean batchCapture,
+			int workerThreads) throws IOException {
+		ServerImpl server = new ServerImpl();
+		server.sniffer.setBatchCapture(batchCapture);
+		server.sniffer.setWorkerThreads(workerThreads);
+		server.bindWithFilter(networkInterface, filter);
+		return server;
+	}
+
 	public static Server bind(NetworkInterface networkInterface) throws IOException {
 		return bind(networkInterface, null);
 	}
@@ -27,6 +76,22 @@ public abstract class Server {
 		return server;
 	}
 
+	/**
+	 * replay a pcap or pcapng capture file with the pure java reader, which
+	 * doesn't need jpcap native library
+	 * 
+	 * @see TCPConnectionSniffer#replay(String, ConnectionFilter)
+	 */
+	public static Server replayFile(String filename, ConnectionFilter filter) throws IOException {
+		ServerImpl server = new ServerImpl();
+		server.replay(filename, filter);
+		return server;
+	}
+
+	public static Server replayFile(String filename) throws IOException {
+		return replayFile(filename, null);
+	}
+
 	public abstract void shutdown();
 
 }
@@ -1,21 +1,35 @@
 package com.mexhee.tcp.connection.server;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jpcap.NetworkInterface;
 
+import org.apache.log4j.Logger;
+
 import com.mexhee.tcp.connection.ConnectionFilter;
 import com.mexhee.tcp.connection.TCPConnection;
 import com.mexhee.tcp.connection.TCPConnectionSniffer;
 
 public class ServerImpl extends Server {
 
+	private static final Logger logger = Logger.getLogger(ServerImpl.class);
+
 	TCPConnectionSniffer sniffer = new TCPConnectionSniffer();
 
+	private Thread acceptor;
+
 	public void open(String filename) throws IOException {
 		sniffer.startup(filename);
 	}
 
+	public void replay(String filename, ConnectionFilter filter) throws IOException {
+		sniffer.replay(filename, filter);
+	}
+
 	public void bindWithFilter(NetworkInterface networkInterface, ConnectionFilter filter) throws IOException {
 		sniffer.startup(networkInterface, filter);
 	}
@@ -25,8 +39,90 @@ public class ServerImpl extends Server {
 		return sniffer.acceptConnection();
 	}
 
+	@Override
+	public TCPConnection accept(long timeout, TimeUnit unit) {
+		return sniffer.acceptConnection(timeout, unit);
+	}
+
+	@Override
+	public synchronized void serve(final ConnectionHandler handler) {
+		if (acceptor != null) {
+			throw new IllegalStateException("server is already serving");
+		}
+		final ThreadFactory handlerThreads = newHandlerThreadFactory();
+		acceptor = new Thread("connection acceptor") {
+			@Override
+			public void run() {
+				TCPConnection connection = null;
+				while (!isInterrupted() && (connection = accept()) != null) {
+					handlerThreads.newThread(new HandlerTask(handler, connection)).start();
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
 	@Override
 	public void shutdown() {
 		sniffer.shutdown();
+		synchronized (this) {
+			if (acceptor != null) {
+				acceptor.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * create virtual threads by reflection, so that it is still compiled and
+	 * run by those jvm without virtual threads, which get daemon platform
+	 * threads instead
+	 */
+	static ThreadFactory newHandlerThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, "connection handler ", 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			if (logger.isInfoEnabled()) {
+				logger.info("connection handlers run on virtual threads");
+			}
+			return factory;
+		} catch (Exception e) {
+			if (logger.isInfoEnabled()) {
+				logger.info("virtual threads are not supported, connection handlers run on platform threads");
+			}
+		}
+		return new ThreadFactory() {
+			private final AtomicLong count = new AtomicLong();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "connection handler " + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static class HandlerTask implements Runnable {
+
+		private final ConnectionHandler handler;
+		private final TCPConnection connection;
+
+		HandlerTask(ConnectionHandler handler, TCPConnection connection) {
+			this.handler = handler;
+			this.connection = connection;
+		}
+
+		@Override
+		public void run() {
+			try {
+				handler.handle(connection);
+			} catch (Exception e) {
+				logger.error("failed to handle " + connection.getConnectionDetail(), e);
+			}
+		}
 	}
 }
@@ -0,0 +1,290 @@
+package com.mexhee.tcp.packet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import com.mexhee.tcp.connection.FlowKey;
+
+/**
+ * A reusable tcp packet view over the raw frame bytes held in a
+ * {@link ByteBuffer}. Nothing is copied when a frame is wrapped, sequence
+ * number, ack number, flags and ports are read from their fixed offsets in tcp
+ * header whenever they are asked, and the payload is exposed as a range of the
+ * underlying buffer by {@link #getPayload()}.
+ *
+ * The same instance is wrapped around the next frame by the decoder, so it is
+ * only valid until then, use {@link #detach()} to get a copy which could be
+ * kept, such as putting it into a buffer for out of order packets.
+ *
+ * @see com.mexhee.packet.pcap.FrameDecoder
+ */
+public class ByteBufferTCPPacket extends TCPPacket {
+
+	static final int FIN = 0x01;
+	static final int SYN = 0x02;
+	static final int RST = 0x04;
+	static final int PSH = 0x08;
+	static final int ACK = 0x10;
+
+	private ByteBuffer buffer;
+	// shared view of buffer, its position & limit are moved for every reading
+	private ByteBuffer view;
+	// shared read only view of buffer, created once for every wrapped buffer
+	private ByteBuffer readOnlyView;
+	private int addressOffset;
+	private int addressLength;
+	private int tcpOffset;
+	private int payloadOffset;
+	private int payloadLength;
+	private long captureNanos;
+
+	// decoded lazily, and only once for every wrapped frame
+	private InetAddress clientAddress;
+	private InetAddress serverAddress;
+	private byte[] data;
+	private final FlowKey flowKey = new FlowKey();
+	private boolean flowKeyDecoded;
+
+	/**
+	 * point current packet to a tcp segment in the buffer, all those states of
+	 * previous wrapped frame are cleared
+	 *
+	 * @param buffer
+	 *            buffer holding the frame, its position and limit are not
+	 *            used
+	 * @param addressOffset
+	 *            absolute index of the source address in ip header, the
+	 *            destination address follows it
+	 * @param addressLength
+	 *            4 for ipv4, 16 for ipv6
+	 * @param tcpOffset
+	 *            absolute index of the tcp header
+	 * @param payloadOffset
+	 *            absolute index of the tcp payload
+	 * @param payloadLength
+	 *            tcp payload length, 0 if there is no payload
+	 * @param captureNanos
+	 *            capture time, nanoseconds since epoch
+	 * @return current packet
+	 */
+	public ByteBufferTCPPacket wrap(ByteBuffer buffer, int addressOffset, int addressLength, int tcpOffset,
+			int payloadOffset, int payloadLength, long captureNanos) {
+		if (this.buffer != buffer) {
+			this.buffer = buffer;
+			this.view = null;
+			this.readOnlyView = null;
+		}
+		this.addressOffset = addressOffset;
+		this.addressLength = addressLength;
+		this.tcpOffset = tcpOffset;
+		this.payloadOffset = payloadOffset;
+		this.payloadLength = payloadLength;
+		this.captureNanos = captureNanos;
+		this.clientAddress = null;
+		this.serverAddress = null;
+		this.data = null;
+		this.flowKeyDecoded = false;
+		resetProcessingState();
+		return this;
+	}
+
+	@Override
+	public long getSequence() {
+		return u32(tcpOffset + 4);
+	}
+
+	@Override
+	public long getAckNum() {
+		return u32(tcpOffset + 8);
+	}
+
+	private int getFlags() {
+		return buffer.get(tcpOffset + 13);
+	}
+
+	@Override
+	public boolean isPush() {
+		return (getFlags() & PSH) != 0;
+	}
+
+	@Override
+	public boolean isAck() {
+		return (getFlags() & ACK) != 0;
+	}
+
+	@Override
+	public boolean isSyn() {
+		return (getFlags() & SYN) != 0;
+	}
+
+	@Override
+	public boolean isRest() {
+		return (getFlags() & RST) != 0;
+	}
+
+	@Override
+	public boolean isFinish() {
+		return (getFlags() & FIN) != 0;
+	}
+
+	@Override
+	public InetAddress getClientAddress() {
+		if (clientAddress == null) {
+			clientAddress = address(addressOffset);
+		}
+		return clientAddress;
+	}
+
+	@Override
+	public InetAddress getServerAddress() {
+		if (serverAddress == null) {
+			serverAddress = address(addressOffset + addressLength);
+		}
+		return serverAddress;
+	}
+
+	@Override
+	public int getClientPort() {
+		return u16(tcpOffset);
+	}
+
+	@Override
+	public int getServerPort() {
+		return u16(tcpOffset + 2);
+	}
+
+	/**
+	 * the key is decoded from the frame bytes directly, and the same key
+	 * instance is reused for every wrapped frame
+	 */
+	@Override
+	public FlowKey getFlowKey() {
+		if (!flowKeyDecoded) {
+			if (addressLength == 4) {
+				flowKey.setIPv4((int) u32(addressOffset), getClientPort(), (int) u32(addressOffset + 4), getServerPort());
+			} else {
+				flowKey.set(u64(addressOffset), u64(addressOffset + 8), getClientPort(), u64(addressOffset + 16),
+						u64(addressOffset + 24), getServerPort());
+			}
+			flowKeyDecoded = true;
+		}
+		return flowKey;
+	}
+
+	/**
+	 * copy the payload into a new byte array at the first calling, prefer
+	 * {@link #getPayload()} to avoid copying
+	 */
+	@Override
+	public byte[] getData() {
+		if (data == null && payloadLength > 0) {
+			data = new byte[payloadLength];
+			copy(payloadOffset, data);
+		}
+		return data;
+	}
+
+	@Override
+	public int getDataLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * return the underlying buffer whose position and limit are set to the
+	 * payload range, the buffer is shared by all calls to this method
+	 */
+	@Override
+	public ByteBuffer getPayload() {
+		if (payloadLength <= 0) {
+			return null;
+		}
+		return view(payloadOffset, payloadLength);
+	}
+
+	/**
+	 * a read only view of the underlying buffer whose position and limit are
+	 * set to the payload range, the view is shared by all calls to this method
+	 * and all frames wrapped from the same buffer
+	 */
+	@Override
+	public ByteBuffer getReadOnlyPayload() {
+		if (payloadLength <= 0) {
+			return null;
+		}
+		if (readOnlyView == null) {
+			readOnlyView = buffer.asReadOnlyBuffer();
+		}
+		readOnlyView.clear();
+		readOnlyView.position(payloadOffset);
+		readOnlyView.limit(payloadOffset + payloadLength);
+		return readOnlyView;
+	}
+
+	/**
+	 * copy the ip addresses, tcp header and payload of current frame into a
+	 * new heap buffer, and return a new packet over it
+	 */
+	@Override
+	public TCPPacket detach() {
+		int start = Math.min(addressOffset, tcpOffset);
+		int end = Math.max(addressOffset + 2 * addressLength, payloadOffset + payloadLength);
+		byte[] bytes = new byte[end - start];
+		copy(start, bytes);
+		ByteBufferTCPPacket copy = new ByteBufferTCPPacket();
+		copy.wrap(ByteBuffer.wrap(bytes), addressOffset - start, addressLength, tcpOffset - start, payloadOffset
+				- start, payloadLength, captureNanos);
+		copy.clientAddress = clientAddress;
+		copy.serverAddress = serverAddress;
+		copy.data = data;
+		copy.copyProcessingState(this);
+		return copy;
+	}
+
+	@Override
+	public long getCaptureNanos() {
+		return captureNanos;
+	}
+
+	private InetAddress address(int offset) {
+		byte[] address = new byte[addressLength];
+		copy(offset, address);
+		try {
+			return InetAddress.getByAddress(address);
+		} catch (UnknownHostException e) {
+			// only thrown for illegal address length
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * the position of wrapped buffer is never moved, as the buffer may be
+	 * shared with the decoder
+	 */
+	private ByteBuffer view(int offset, int len) {
+		if (view == null) {
+			view = buffer.duplicate();
+		}
+		view.clear();
+		view.position(offset);
+		view.limit(offset + len);
+		return view;
+	}
+
+	private void copy(int offset, byte[] dest) {
+		view(offset, dest.length).get(dest);
+	}
+
+	private int u16(int index) {
+		return ((buffer.get(index) & 0xff) << 8) | (buffer.get(index + 1) & 0xff);
+	}
+
+	private long u32(int index) {
+		return ((long) (buffer.get(index) & 0xff) << 24) | ((buffer.get(index + 1) & 0xff) << 16)
+				| ((buffer.get(index + 2) & 0xff) << 8) | (buffer.get(index + 3) & 0xff);
+	}
+
+	private long u64(int index) {
+		return (u32(index) << 32) | u32(index + 4);
+	}
+}
@@ -0,0 +1,48 @@
+package com.mexhee.tcp.packet;
+
+/**
+ * 32 bits tcp sequence number arithmetic, following the serial number
+ * arithmetic of <a href="http://tools.ietf.org/html/rfc1982">RFC 1982</a>.
+ * Sequence numbers are kept in longs between 0 and 2^32-1, adding always wraps
+ * around 2^32, and one number is less than another when it is behind the other
+ * by less than 2^31, so the order is still right after the sequence space
+ * wraps around, which happens every few seconds on a 10 Gbit/s link.
+ */
+public final class SequenceNumbers {
+
+	private static final long MASK = 0xffffffffL;
+
+	private SequenceNumbers() {
+	}
+
+	/**
+	 * @return seq + delta, modulo 2^32
+	 */
+	public static long add(long seq, long delta) {
+		return (seq + delta) & MASK;
+	}
+
+	/**
+	 * @return the signed distance from seq1 to seq2, positive when seq2 is
+	 *         after seq1
+	 */
+	public static int distance(long seq1, long seq2) {
+		return (int) (seq2 - seq1);
+	}
+
+	/**
+	 * @return negative, 0 or positive when seq1 is before, equal to or after
+	 *         seq2
+	 */
+	public static int compare(long seq1, long seq2) {
+		int distance = distance(seq2, seq1);
+		return distance < 0 ? -1 : (distance == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @return whether seq1 is before seq2
+	 */
+	public static boolean isBefore(long seq1, long seq2) {
+		return distance(seq1, seq2) > 0;
+	}
+}
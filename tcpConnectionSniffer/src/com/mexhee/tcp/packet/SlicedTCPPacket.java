@@ -0,0 +1,145 @@
+package com.mexhee.tcp.packet;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import com.mexhee.tcp.connection.FlowKey;
+
+/**
+ * A part of another packet's payload, it is used to trim those bytes which
+ * are already received from a retransmitted or overlapped packet. The
+ * sequence number is moved forward with the payload, and the fin flag is only
+ * kept when the payload tail is kept, as fin comes after the last byte.
+ */
+public class SlicedTCPPacket extends TCPPacket {
+
+	private final TCPPacket packet;
+	private final int offset;
+	private final int length;
+
+	/**
+	 * @param packet
+	 *            the whole packet
+	 * @param offset
+	 *            offset of the slice in the whole payload
+	 * @param length
+	 *            length of the slice
+	 */
+	SlicedTCPPacket(TCPPacket packet, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > packet.getDataLength()) {
+			throw new IndexOutOfBoundsException("slice " + offset + "+" + length + " of " + packet.getDataLength());
+		}
+		this.packet = packet;
+		this.offset = offset;
+		this.length = length;
+		copyProcessingState(packet);
+	}
+
+	@Override
+	public long getSequence() {
+		return SequenceNumbers.add(packet.getSequence(), offset);
+	}
+
+	@Override
+	public long getAckNum() {
+		return packet.getAckNum();
+	}
+
+	@Override
+	public boolean isPush() {
+		return packet.isPush();
+	}
+
+	@Override
+	public boolean isAck() {
+		return packet.isAck();
+	}
+
+	/**
+	 * syn occupies the sequence number before the payload
+	 */
+	@Override
+	public boolean isSyn() {
+		return packet.isSyn() && offset == 0;
+	}
+
+	@Override
+	public boolean isRest() {
+		return packet.isRest();
+	}
+
+	/**
+	 * fin occupies the sequence number after the payload
+	 */
+	@Override
+	public boolean isFinish() {
+		return packet.isFinish() && offset + length == packet.getDataLength();
+	}
+
+	@Override
+	public InetAddress getClientAddress() {
+		return packet.getClientAddress();
+	}
+
+	@Override
+	public InetAddress getServerAddress() {
+		return packet.getServerAddress();
+	}
+
+	@Override
+	public int getClientPort() {
+		return packet.getClientPort();
+	}
+
+	@Override
+	public int getServerPort() {
+		return packet.getServerPort();
+	}
+
+	@Override
+	public FlowKey getFlowKey() {
+		return packet.getFlowKey();
+	}
+
+	@Override
+	public byte[] getData() {
+		if (length == 0) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		System.arraycopy(packet.getData(), offset, data, 0, length);
+		return data;
+	}
+
+	@Override
+	public int getDataLength() {
+		return length;
+	}
+
+	@Override
+	public ByteBuffer getPayload() {
+		if (length == 0) {
+			return null;
+		}
+		ByteBuffer payload = packet.getPayload().duplicate();
+		payload.position(payload.position() + offset);
+		payload.limit(payload.position() + length);
+		return payload;
+	}
+
+	@Override
+	public TCPPacket detach() {
+		TCPPacket detached = packet.detach();
+		if (detached == packet) {
+			return this;
+		}
+		SlicedTCPPacket copy = new SlicedTCPPacket(detached, offset, length);
+		copy.copyProcessingState(this);
+		return copy;
+	}
+
+	@Override
+	public long getCaptureNanos() {
+		return packet.getCaptureNanos();
+	}
+}
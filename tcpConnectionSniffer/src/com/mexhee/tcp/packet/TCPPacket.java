@@ -1,9 +1,11 @@
 package com.mexhee.tcp.packet;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 import com.mexhee.tcp.connection.ConnectionDetail;
+import com.mexhee.tcp.connection.FlowKey;
 
 /**
  * A representing of TCP packet abstraction
@@ -21,6 +23,8 @@ public abstract class TCPPacket implements Comparable<TCPPacket> {
 	 */
 	private ConnectionDetail connectionDetail = null;
 
+	private FlowKey flowKey = null;
+
 	/**
 	 * the packet sent direction, whether it is from client to server, this
 	 * attribute is meaningful only when comparing with a connection
@@ -87,6 +91,63 @@ public abstract class TCPPacket implements Comparable<TCPPacket> {
 	 */
 	public abstract byte[] getData();
 
+	/**
+	 * tcp packet payload length, 0 if there is no payload
+	 */
+	public int getDataLength() {
+		byte[] data = getData();
+		return data == null ? 0 : data.length;
+	}
+
+	/**
+	 * tcp packet payload between the position and limit of returned buffer,
+	 * the buffer is only valid before current packet is reused, see
+	 * {@link #detach()}
+	 * 
+	 * @return payload, or null if there is no payload
+	 */
+	public ByteBuffer getPayload() {
+		byte[] data = getData();
+		return data == null ? null : ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * the same as {@link #getPayload()}, but the returned buffer is read only,
+	 * a reused packet could return the same buffer object for every frame, so
+	 * it is only valid before current packet is reused
+	 * 
+	 * @return payload, or null if there is no payload
+	 */
+	public ByteBuffer getReadOnlyPayload() {
+		ByteBuffer payload = getPayload();
+		return payload == null ? null : payload.asReadOnlyBuffer();
+	}
+
+	/**
+	 * return a packet which could be kept after current packet is reused by
+	 * its decoder, such as putting it into a packets buffer. Those packets
+	 * whose content is never reused just return themselves.
+	 */
+	public TCPPacket detach() {
+		return this;
+	}
+
+	/**
+	 * return a packet carrying only a part of current packet's payload, whose
+	 * sequence number starts from the first byte of that part
+	 * 
+	 * @param offset
+	 *            offset of the part in current payload
+	 * @param length
+	 *            length of the part
+	 */
+	public TCPPacket slice(int offset, int length) {
+		if (offset == 0 && length == getDataLength()) {
+			return this;
+		}
+		return new SlicedTCPPacket(this, offset, length);
+	}
+
 	/**
 	 * whether this packet is a syn packet, which is the first packet to do
 	 * hands shake connection
@@ -107,7 +168,7 @@ public abstract class TCPPacket implements Comparable<TCPPacket> {
 	 * whether current tcp packet has data, but no only tcp header
 	 */
 	public boolean isContainsData() {
-		return getData() != null && getData().length > 0;
+		return getDataLength() > 0;
 	}
 
 	/**
@@ -122,6 +183,17 @@ public abstract class TCPPacket implements Comparable<TCPPacket> {
 		return connectionDetail;
 	}
 
+	/**
+	 * get the key of the connection which current packet belongs to, packets
+	 * of both directions have equal keys
+	 */
+	public FlowKey getFlowKey() {
+		if (flowKey == null) {
+			flowKey = new FlowKey().set(getClientAddress(), getClientPort(), getServerAddress(), getServerPort());
+		}
+		return flowKey;
+	}
+
 	/**
 	 * set current packet consumed flag to true
 	 */
@@ -137,6 +209,28 @@ public abstract class TCPPacket implements Comparable<TCPPacket> {
 		return this.consumed;
 	}
 
+	/**
+	 * clear the processing states, used when a packet instance is reused for
+	 * another frame
+	 */
+	protected void resetProcessingState() {
+		this.consumed = false;
+		this.connectionDetail = null;
+		this.flowKey = null;
+		this.isSentByClient = null;
+	}
+
+	/**
+	 * copy the processing states from the given packet, used when detaching a
+	 * packet
+	 */
+	protected void copyProcessingState(TCPPacket packet) {
+		this.consumed = packet.consumed;
+		this.connectionDetail = packet.connectionDetail;
+		this.flowKey = packet.flowKey;
+		this.isSentByClient = packet.isSentByClient;
+	}
+
 	/**
 	 * detect the packet flow, from client to server or from server to client
 	 * 
@@ -144,7 +238,7 @@ public abstract class TCPPacket implements Comparable<TCPPacket> {
 	 *            physical tcp connection detail
 	 */
 	public void detectPacketFlowDirection(ConnectionDetail connectionDetail) {
-		isSentByClient = this.connectionDetail.isTheSame(connectionDetail);
+		isSentByClient = getFlowKey().isSameDirection(connectionDetail.getFlowKey());
 	}
 
 	/**
@@ -161,9 +255,17 @@ public abstract class TCPPacket implements Comparable<TCPPacket> {
 	}
 
 	/**
-	 * get the packet capture time in kernel
+	 * get the packet capture time in kernel, nanoseconds since epoch
 	 */
-	public abstract Date getPacketCaptureTime();
+	public abstract long getCaptureNanos();
+
+	/**
+	 * get the packet capture time in kernel, it is a convenience wrapper of
+	 * {@link #getCaptureNanos()}
+	 */
+	public Date getPacketCaptureTime() {
+		return new Date(getCaptureNanos() / 1000000);
+	}
 
 	@Override
 	public String toString() {
@@ -180,10 +282,11 @@ public abstract class TCPPacket implements Comparable<TCPPacket> {
 	}
 
 	/**
-	 * TCP packet is comparable according to
+	 * TCP packet is comparable according to sequence number, in serial number
+	 * arithmetic, see {@link SequenceNumbers}
 	 */
 	@Override
 	public int compareTo(TCPPacket anotherPacket) {
-		return (int) (getSequence() - anotherPacket.getSequence());
+		return SequenceNumbers.compare(getSequence(), anotherPacket.getSequence());
 	}
 }
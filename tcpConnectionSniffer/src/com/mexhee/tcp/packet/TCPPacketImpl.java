@@ -1,7 +1,6 @@
 package com.mexhee.tcp.packet;
 
 import java.net.InetAddress;
-import java.util.Date;
 
 /**
  * A tcp packet implementation base on jpcap library
@@ -75,9 +74,7 @@ public class TCPPacketImpl extends TCPPacket {
 	}
 
 	@Override
-	public Date getPacketCaptureTime() {
-		// TODO: this is the incorrect construct, should reference to wincap
-		// API, it should be a relative time starting from WinCap started
-		return new Date(packet.usec);
+	public long getCaptureNanos() {
+		return packet.sec * 1000000000L + packet.usec * 1000L;
 	}
 }
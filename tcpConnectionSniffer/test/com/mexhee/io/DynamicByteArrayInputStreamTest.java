@@ -1,6 +1,7 @@
 package com.mexhee.io;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 import org.junit.After;
@@ -107,6 +108,22 @@ public class DynamicByteArrayInputStreamTest {
 		stream.closeWholeStream();
 	}
 
+	@Test
+	public void testStreamTimeFollowsClock() throws Exception {
+		CaptureClock clock = new CaptureClock();
+		clock.advance(1000 * 1000000L);
+		DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+		stream.setClock(clock);
+		stream.append("Hello".getBytes());
+		clock.advance(3000 * 1000000L);
+		// a late packet doesn't move the clock back
+		clock.advance(2000 * 1000000L);
+		Assert.assertTrue(stream.finish(true));
+		Assert.assertTrue(stream.hasMoreInputStream());
+		Assert.assertEquals(new Date(1000), stream.getCurrentInputStreamStartTime());
+		Assert.assertEquals(new Date(3000), stream.getCurrentInputStreamEndTime());
+	}
+
 	@Test
 	public void testMarkSupport() throws Exception {
 		DynamicByteArrayInputStream stream = createInputStreamWithoutFinishedFlag();
@@ -136,6 +153,160 @@ public class DynamicByteArrayInputStreamTest {
 		stream.configureBlocking(false);
 		stream.read();
 	}
+
+	@Test
+	public void testBlockingReadWakesUpWhenDataAppended() throws Exception {
+		final DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					stream.append("Hello".getBytes());
+					stream.finish(false);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}.start();
+		printContent("Hello", stream);
+	}
+
+	@Test
+	public void testSpillBeyondMemoryThreshold() throws Exception {
+		FixLengthStreamFileCache cache = new FixLengthStreamFileCache(System.getProperty("java.io.tmpdir"), 1000, 4, 8);
+		try {
+			DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+			stream.setSpillCache(cache, 2000);
+			byte[] payload = new byte[1460];
+			int total = 0;
+			for (int i = 0; i < 5; i++) {
+				for (int j = 0; j < payload.length; j++) {
+					payload[j] = (byte) (total + j);
+				}
+				stream.append(payload);
+				total += payload.length;
+			}
+			ByteBuffer frame = ByteBuffer.allocateDirect(100);
+			for (int j = 0; j < 100; j++) {
+				frame.put((byte) (total + j));
+			}
+			frame.flip();
+			stream.append(frame);
+			total += 100;
+			Assert.assertTrue(cache.getUsedSlots() > 0);
+			stream.finish(false);
+			// read across memory and disk segments
+			byte[] buffer = new byte[700];
+			ByteBuffer direct = ByteBuffer.allocate(300);
+			int read = 0;
+			int size = 0;
+			while ((size = stream.read(buffer)) > 0) {
+				for (int j = 0; j < size; j++) {
+					Assert.assertEquals((byte) (read + j), buffer[j]);
+				}
+				read += size;
+				direct.clear();
+				if ((size = stream.read(direct)) > 0) {
+					for (int j = 0; j < size; j++) {
+						Assert.assertEquals((byte) (read + j), direct.get(j));
+					}
+					read += size;
+				}
+			}
+			Assert.assertEquals(total, read);
+			Assert.assertEquals(0, cache.getUsedSlots());
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test(expected = BufferFullException.class)
+	public void testSpillCacheFull() throws Exception {
+		FixLengthStreamFileCache cache = new FixLengthStreamFileCache(System.getProperty("java.io.tmpdir"), 1000, 2, 2);
+		try {
+			DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+			stream.setSpillCache(cache, 1000);
+			stream.append(new byte[1000]);
+			stream.append(new byte[2000]);
+			try {
+				stream.append(new byte[10]);
+			} finally {
+				// the failed data is not appended
+				Assert.assertEquals(3000, stream.skip(10000));
+			}
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testAppendByteBuffer() throws Exception {
+		DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+		ByteBuffer frame = ByteBuffer.allocateDirect(32);
+		frame.put("headerHello".getBytes());
+		frame.limit(frame.position());
+		frame.position(6);
+		stream.append(frame);
+		Assert.assertEquals(6, frame.position());
+		frame.clear();
+		frame.put("World".getBytes());
+		frame.flip();
+		stream.append(frame);
+		printContent("HelloWorld", stream);
+	}
+
+	@Test
+	public void testReadAcrossSegments() throws Exception {
+		DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+		byte[] payload = new byte[1460];
+		int total = 0;
+		for (int i = 0; i < 1000; i++) {
+			for (int j = 0; j < payload.length; j++) {
+				payload[j] = (byte) (total + j);
+			}
+			stream.append(ByteBuffer.wrap(payload));
+			total += payload.length;
+		}
+		stream.append(new byte[8192]);
+		total += 8192;
+		stream.finish(true);
+		stream.append("next".getBytes());
+		stream.finish(false);
+		byte[] buffer = new byte[1000];
+		int read = 0;
+		int size = 0;
+		while ((size = stream.read(buffer)) > 0) {
+			for (int i = 0; i < size; i++, read++) {
+				Assert.assertEquals((byte) (read < 1460000 ? read : 0), buffer[i]);
+			}
+			if (read == 5000) {
+				stream.mark(3000);
+				Assert.assertEquals(1000, stream.read(buffer));
+				stream.reset();
+			}
+		}
+		Assert.assertEquals(total, read);
+		stream.assertNewInputStream();
+		printContent("next", stream);
+	}
+
+	@Test
+	public void testReadStopsAtGap() throws Exception {
+		DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+		stream.configureBlocking(false);
+		stream.append("Hello".getBytes());
+		stream.markGap(3);
+		stream.append("World".getBytes());
+		byte[] buffer = new byte[20];
+		Assert.assertEquals(0, stream.getGapBeforeNextByte());
+		Assert.assertEquals(5, stream.read(buffer));
+		Assert.assertEquals(3, stream.getGapBeforeNextByte());
+		Assert.assertEquals(5, stream.read(buffer));
+		Assert.assertEquals("World", new String(buffer, 0, 5));
+		Assert.assertEquals(0, stream.getGapBeforeNextByte());
+		Assert.assertEquals(3, stream.getLostBytes());
+	}
 	
 	private void printContent(String content, TimeMeasurableCombinedInputStream stream) throws IOException {
 		byte[] buf = new byte[100];
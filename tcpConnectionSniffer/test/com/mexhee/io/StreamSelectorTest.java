@@ -0,0 +1,98 @@
+package com.mexhee.io;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamSelectorTest {
+
+	private String read(TimeMeasurableCombinedInputStream stream) {
+		ByteBuffer buffer = ByteBuffer.allocate(100);
+		int size = stream.read(buffer);
+		return size < 0 ? "EOF" : new String(buffer.array(), 0, size);
+	}
+
+	@Test
+	public void testSelectStreamsWithData() throws Exception {
+		StreamSelector selector = new StreamSelector();
+		DynamicByteArrayInputStream first = new DynamicByteArrayInputStream();
+		DynamicByteArrayInputStream second = new DynamicByteArrayInputStream();
+		StreamKey firstKey = first.register(selector, "first");
+		second.register(selector, "second");
+		Assert.assertTrue(selector.selectNow().isEmpty());
+		first.append("Hello".getBytes());
+		first.append("World".getBytes());
+		List<StreamKey> keys = selector.select(1000);
+		Assert.assertEquals(1, keys.size());
+		Assert.assertSame(firstKey, keys.get(0));
+		Assert.assertEquals("first", keys.get(0).attachment());
+		Assert.assertTrue(keys.get(0).isData());
+		Assert.assertEquals("HelloWorld", read(keys.get(0).stream()));
+		// no data left, and the blocking model is ignored
+		Assert.assertEquals("", read(first));
+		Assert.assertTrue(selector.selectNow().isEmpty());
+	}
+
+	@Test
+	public void testMessageEndAndEOF() throws Exception {
+		StreamSelector selector = new StreamSelector();
+		DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+		stream.register(selector, null);
+		stream.append("Hello".getBytes());
+		stream.finish(true);
+		stream.append("World".getBytes());
+		StreamKey key = selector.selectNow().get(0);
+		Assert.assertTrue(key.isData());
+		Assert.assertTrue(key.isMessageEnd());
+		Assert.assertFalse(key.isEOF());
+		Assert.assertEquals("Hello", read(stream));
+		Assert.assertEquals("EOF", read(stream));
+		Assert.assertEquals("World", read(stream));
+		stream.finish(false);
+		key = selector.selectNow().get(0);
+		Assert.assertTrue(key.isEOF());
+		Assert.assertEquals("EOF", read(stream));
+	}
+
+	@Test
+	public void testRegisterStreamWithData() throws Exception {
+		StreamSelector selector = new StreamSelector();
+		DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+		stream.append("Hello".getBytes());
+		selector.register(stream, null);
+		Assert.assertTrue(selector.selectNow().get(0).isData());
+	}
+
+	@Test
+	public void testCancelledKeyIsNotSelected() throws Exception {
+		StreamSelector selector = new StreamSelector();
+		DynamicByteArrayInputStream stream = new DynamicByteArrayInputStream();
+		StreamKey key = stream.register(selector, null);
+		stream.append("Hello".getBytes());
+		key.cancel();
+		Assert.assertTrue(selector.selectNow().isEmpty());
+		stream.append("World".getBytes());
+		Assert.assertTrue(selector.selectNow().isEmpty());
+	}
+
+	@Test
+	public void testSelectTimeoutAndWakeup() throws Exception {
+		final StreamSelector selector = new StreamSelector();
+		Assert.assertTrue(selector.select(10).isEmpty());
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				selector.wakeup();
+			}
+		}.start();
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(selector.select(0).isEmpty());
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+}
@@ -0,0 +1,143 @@
+package com.mexhee.packet.pcap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mexhee.tcp.connection.ConnectionFilter;
+import com.mexhee.tcp.connection.PacketReceiverImpl;
+import com.mexhee.tcp.connection.TCPConnection;
+import com.mexhee.tcp.packet.TCPPacket;
+
+public class PcapFileReaderTest {
+
+	private String getFullFilename(String name) {
+		return new File("tcpConnectionSniffer/test/dump").getAbsolutePath() + "/" + name;
+	}
+
+	@Test
+	public void testReadPcapFile() throws Exception {
+		PcapFileReader reader = new PcapFileReader(getFullFilename("192.168.1.101(17931)-192.168.1.1(80)_1352020113101.pcap"));
+		TCPPacket first = reader.nextPacket();
+		Assert.assertNotNull(first);
+		Assert.assertTrue(first.isHandsShake1Packet());
+		Assert.assertEquals("192.168.1.101", first.getClientAddress().getHostAddress());
+		Assert.assertEquals(17931, first.getClientPort());
+		Assert.assertEquals(80, first.getServerPort());
+		int count = 1;
+		while (reader.nextPacket() != null) {
+			count++;
+		}
+		Assert.assertEquals(reader.getFramesRead(), count);
+		reader.close();
+	}
+
+	@Test
+	public void testReadOnlyPayloadIsShared() throws Exception {
+		PcapFileReader reader = new PcapFileReader(getFullFilename("192.168.1.101(17931)-192.168.1.1(80)_1352020113101.pcap"));
+		TCPPacket packet = null;
+		while ((packet = reader.nextPacket()) != null && packet.getDataLength() == 0) {
+			Assert.assertNull(packet.getReadOnlyPayload());
+		}
+		Assert.assertNotNull(packet);
+		ByteBuffer payload = packet.getReadOnlyPayload();
+		Assert.assertTrue(payload.isReadOnly());
+		Assert.assertEquals(packet.getDataLength(), payload.remaining());
+		byte[] method = new byte[3];
+		payload.get(method);
+		Assert.assertEquals("GET", new String(method, "US-ASCII"));
+		// the same view is returned again, with its range set back to payload
+		Assert.assertSame(payload, packet.getReadOnlyPayload());
+		Assert.assertEquals(packet.getDataLength(), payload.remaining());
+		reader.close();
+	}
+
+	@Test
+	public void testReplayIntoPacketReceiver() throws Exception {
+		PcapFileReader reader = new PcapFileReader(getFullFilename("192.168.1.101(17931)-192.168.1.1(80)_1352020113101.pcap"));
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter());
+		TCPPacket packet = null;
+		while ((packet = reader.nextPacket()) != null) {
+			receiver.pick(packet);
+		}
+		reader.close();
+		TCPConnection connection = receiver.poll();
+		Assert.assertNotNull(connection);
+		connection.getClientInputStream().configureBlocking(false);
+		byte[] buffer = new byte[3];
+		Assert.assertEquals(3, connection.getClientInputStream().read(buffer));
+		Assert.assertEquals("GET", new String(buffer));
+		// capture time of the first request packet, rather than the time replaying it
+		long startSeconds = connection.getClientInputStream().getCurrentInputStreamStartNanos() / 1000000000L;
+		Assert.assertTrue(Math.abs(startSeconds - 1352020113L) < 60);
+	}
+
+	@Test
+	public void testReadPcapngFile() throws Exception {
+		String pcap = getFullFilename("192.168.1.101(17931)-192.168.1.1(80)_1352020113101.pcap");
+		File pcapng = File.createTempFile("reader", ".pcapng");
+		pcapng.deleteOnExit();
+		int frames = convertToPcapng(pcap, pcapng);
+
+		PcapFileReader expected = new PcapFileReader(pcap);
+		PcapFileReader reader = new PcapFileReader(pcapng.getAbsolutePath());
+		Assert.assertTrue(reader.isPcapng());
+		TCPPacket packet = null;
+		while ((packet = reader.nextPacket()) != null) {
+			TCPPacket expectedPacket = expected.nextPacket();
+			Assert.assertEquals(expectedPacket.toString(), packet.toString());
+			Assert.assertEquals(expectedPacket.getPacketCaptureTime(), packet.getPacketCaptureTime());
+		}
+		Assert.assertNull(expected.nextPacket());
+		Assert.assertEquals(frames, reader.getFramesRead());
+		expected.close();
+		reader.close();
+	}
+
+	/*
+	 * write the ethernet frames of a little endian microsecond pcap file into
+	 * a pcapng file with enhanced packet blocks
+	 */
+	private int convertToPcapng(String pcap, File pcapng) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(pcap, "r");
+		byte[] content = new byte[(int) in.length()];
+		in.readFully(content);
+		in.close();
+		ByteBuffer src = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(block(0x0a0d0d0a, ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putInt(0x1a2b3c4d)
+				.putShort((short) 1).putShort((short) 0).putLong(-1L).array()));
+		out.write(block(1, ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putShort((short) 1)
+				.putShort((short) 0).putInt(65535).array()));
+		int frames = 0;
+		int pos = 24;
+		while (pos + 16 <= content.length) {
+			long timestamp = (src.getInt(pos) & 0xffffffffL) * 1000000L + (src.getInt(pos + 4) & 0xffffffffL);
+			int caplen = src.getInt(pos + 8);
+			ByteBuffer body = ByteBuffer.allocate(20 + ((caplen + 3) & ~3)).order(ByteOrder.LITTLE_ENDIAN);
+			body.putInt(0).putInt((int) (timestamp >>> 32)).putInt((int) timestamp).putInt(caplen)
+					.putInt(src.getInt(pos + 12));
+			body.put(content, pos + 16, caplen);
+			out.write(block(6, body.array()));
+			pos += 16 + caplen;
+			frames++;
+		}
+		FileOutputStream fos = new FileOutputStream(pcapng);
+		fos.write(out.toByteArray());
+		fos.close();
+		return frames;
+	}
+
+	private byte[] block(int type, byte[] body) {
+		int len = 12 + body.length;
+		return ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN).putInt(type).putInt(len).put(body).putInt(len)
+				.array();
+	}
+}
@@ -0,0 +1,71 @@
+package com.mexhee.tcp.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AcceptQueueTest {
+
+	private SnifferMetrics metrics = new SnifferMetrics();
+
+	private TCPPacketBuilder connect(PacketReceiverImpl receiver, int clientPort) throws Exception {
+		TCPPacketBuilder builder = new TCPPacketBuilder(clientPort, 80, "192.168.1.101", "192.168.1.1");
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 100).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(100, 1).build());
+		return builder;
+	}
+
+	@Test
+	public void testStopReassemblyOfRejectedConnection() throws Exception {
+		AcceptQueue queue = new AcceptQueue(1, AcceptQueue.OverflowPolicy.STOP_REASSEMBLY);
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), queue, metrics);
+		connect(receiver, 17931);
+		TCPPacketBuilder rejected = connect(receiver, 17932);
+		Assert.assertEquals(1, queue.size());
+		Assert.assertEquals(1, metrics.getRejectedConnections());
+		receiver.pick(rejected.localToServer().ack().data("GET").setSeqAckNum(100, 1).build());
+		// the rejected connection is still tracked, but its data is discarded
+		Assert.assertEquals(2, receiver.getActiveConnections().size());
+		for (TCPConnectionImpl connection : receiver.getActiveConnections()) {
+			if (connection != queue.peek()) {
+				Assert.assertTrue(connection.isTruncated());
+				Assert.assertEquals(0, connection.getClientInputStream().available());
+			}
+		}
+	}
+
+	@Test
+	public void testDropOldestConnection() throws Exception {
+		AcceptQueue queue = new AcceptQueue(1, AcceptQueue.OverflowPolicy.DROP_OLDEST);
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), queue, metrics);
+		TCPPacketBuilder oldest = connect(receiver, 17931);
+		connect(receiver, 17932);
+		TCPConnection newest = queue.accept(0, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(17932, newest.getConnectionDetail().getClientPort());
+		Assert.assertNull(queue.accept(0, TimeUnit.MILLISECONDS));
+		// the dropped connection is removed by its receiver at its next packet
+		receiver.pick(oldest.localToServer().ack().data("GET").setSeqAckNum(100, 1).build());
+		Assert.assertEquals(1, receiver.getActiveConnections().size());
+		Assert.assertSame(newest, receiver.getActiveConnections().iterator().next());
+	}
+
+	@Test
+	public void testAcceptInBatch() throws Exception {
+		AcceptQueue queue = new AcceptQueue(10, AcceptQueue.OverflowPolicy.DROP_NEWEST);
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), queue, metrics);
+		for (int port = 17931; port < 17934; port++) {
+			connect(receiver, port);
+		}
+		List<TCPConnection> batch = new ArrayList<TCPConnection>();
+		Assert.assertEquals(2, queue.accept(batch, 2, 0, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(2, batch.size());
+		Assert.assertEquals(1, queue.accept(batch, 2, 0, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(0, queue.accept(batch, 2, 10, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(3, batch.size());
+		Assert.assertEquals(0, metrics.getRejectedConnections());
+	}
+}
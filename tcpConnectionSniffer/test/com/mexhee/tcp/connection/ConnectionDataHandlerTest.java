@@ -0,0 +1,78 @@
+package com.mexhee.tcp.connection;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConnectionDataHandlerTest {
+
+	private TCPPacketBuilder builder = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+	private Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+	private StringBuffer events = new StringBuffer();
+
+	private ConnectionDataHandler handler = new ConnectionDataHandler() {
+
+		@Override
+		public void onEstablished(TCPConnection connection) {
+			events.append("established ");
+		}
+
+		@Override
+		public void onData(TCPConnection connection, boolean clientToServer, ByteBuffer data, long captureNanos) {
+			Assert.assertTrue(data.isReadOnly());
+			byte[] bytes = new byte[data.remaining()];
+			data.get(bytes);
+			events.append(clientToServer ? "c:" : "s:").append(new String(bytes)).append(" ");
+		}
+
+		@Override
+		public void onDirectionSwitch(TCPConnection connection, boolean clientToServer, long captureNanos) {
+			events.append(clientToServer ? "switch:c " : "switch:s ");
+		}
+
+		@Override
+		public void onGap(TCPConnection connection, boolean clientToServer, long lostBytes) {
+			events.append("gap:").append(lostBytes).append(" ");
+		}
+
+		@Override
+		public void onClose(TCPConnection connection) {
+			events.append("close");
+		}
+	};
+
+	private PacketReceiverImpl connect() throws Exception {
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.setDataHandler(handler);
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 100).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(100, 1).build());
+		return receiver;
+	}
+
+	@Test
+	public void testDataIsPushed() throws Exception {
+		PacketReceiverImpl receiver = connect();
+		receiver.pick(builder.localToServer().ack().data("GET").setSeqAckNum(100, 1).build());
+		receiver.pick(builder.localToServer().ack().data(" /").setSeqAckNum(103, 1).build());
+		receiver.pick(builder.serverToLocal().ack().data("OK").setSeqAckNum(1, 105).build());
+		receiver.pick(builder.localToServer().ack().fin().setSeqAckNum(105, 3).build());
+		receiver.pick(builder.serverToLocal().ack().fin().setSeqAckNum(3, 106).build());
+		Assert.assertEquals("established c:GET c: / switch:s s:OK close", events.toString());
+		// connections are pushed rather than queued
+		Assert.assertTrue(established.isEmpty());
+	}
+
+	@Test
+	public void testGapIsPushed() throws Exception {
+		PacketReceiverImpl receiver = connect();
+		receiver.setGapTolerance(0, 3);
+		receiver.pick(builder.localToServer().ack().data("abc").setSeqAckNum(100, 1).build());
+		// "def" is lost
+		receiver.pick(builder.localToServer().ack().data("ghi").setSeqAckNum(106, 1).build());
+		Assert.assertEquals("established c:abc gap:3 c:ghi ", events.toString());
+	}
+}
@@ -0,0 +1,73 @@
+package com.mexhee.tcp.connection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConnectionFilterTest {
+
+	private ConnectionFilter filter = new ConnectionFilter();
+
+	/*
+	 * the same tcp expression is repeated for pppoe session frames
+	 */
+	private String bpf(String tcpExpression) {
+		return "(" + tcpExpression + ") or (pppoes and " + tcpExpression + ")";
+	}
+
+	@Test
+	public void testNoCriteria() throws Exception {
+		Assert.assertEquals("(tcp) or (pppoes and tcp)", filter.toBpfExpression());
+	}
+
+	@Test
+	public void testServerFilter() throws Exception {
+		filter.addServerFilter("192.168.1.1", 80);
+		Assert.assertEquals("(tcp and ((dst host 192.168.1.1 and dst port 80) or (src host 192.168.1.1 and src port 80)))"
+				+ " or (pppoes and tcp and ((dst host 192.168.1.1 and dst port 80)"
+				+ " or (src host 192.168.1.1 and src port 80)))", filter.toBpfExpression());
+	}
+
+	@Test
+	public void testClientFilter() throws Exception {
+		filter.addClientFilter("192.168.1.101", 17931);
+		Assert.assertEquals(bpf("tcp and ((src host 192.168.1.101 and src port 17931)"
+				+ " or (dst host 192.168.1.101 and dst port 17931))"), filter.toBpfExpression());
+	}
+
+	@Test
+	public void testHostPair() throws Exception {
+		filter.addHostPair("192.168.1.101", "192.168.1.1");
+		Assert.assertEquals(bpf("tcp and ((src host 192.168.1.101 and dst host 192.168.1.1)"
+				+ " or (dst host 192.168.1.101 and src host 192.168.1.1))"), filter.toBpfExpression());
+	}
+
+	@Test
+	public void testPortPair() throws Exception {
+		filter.addPortPair(17931, 80);
+		Assert.assertEquals(bpf("tcp and ((src port 17931 and dst port 80) or (dst port 17931 and src port 80))"),
+				filter.toBpfExpression());
+	}
+
+	@Test
+	public void testSeveralCriteria() throws Exception {
+		filter.addServerFilter("192.168.1.1", 80);
+		filter.addClientHostFilter("10.0.0.1");
+		Assert.assertEquals(bpf("tcp and ((dst host 192.168.1.1 and dst port 80) or (src host 192.168.1.1 and src port 80)"
+				+ " or (src host 10.0.0.1) or (dst host 10.0.0.1))"), filter.toBpfExpression());
+	}
+
+	@Test
+	public void testCriteriaAcceptingAll() throws Exception {
+		filter.addServerFilter("192.168.1.1", 80);
+		filter.addServerHostFilter(null, 0, null, 0);
+		Assert.assertEquals("(tcp) or (pppoes and tcp)", filter.toBpfExpression());
+	}
+
+	@Test
+	public void testIPv6ScopedAddress() throws Exception {
+		filter.addServerFilter("fe80::1%1", 443);
+		// the scope is not accepted by BPF
+		Assert.assertEquals(bpf("tcp and ((dst host fe80:0:0:0:0:0:0:1 and dst port 443)"
+				+ " or (src host fe80:0:0:0:0:0:0:1 and src port 443))"), filter.toBpfExpression());
+	}
+}
@@ -0,0 +1,70 @@
+package com.mexhee.tcp.connection;
+
+import java.net.InetAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConnectionTableTest {
+
+	@Test
+	public void testFlowKeyOfBothDirections() throws Exception {
+		InetAddress client = InetAddress.getByName("192.168.1.101");
+		InetAddress server = InetAddress.getByName("192.168.1.1");
+		FlowKey request = new FlowKey().set(client, 17931, server, 80);
+		FlowKey response = new FlowKey().set(server, 80, client, 17931);
+		Assert.assertEquals(request, response);
+		Assert.assertEquals(request.hashCode(), response.hashCode());
+		Assert.assertFalse(request.isSameDirection(response));
+		Assert.assertEquals(request, new FlowKey().setIPv4(0xc0a80165, 17931, 0xc0a80101, 80));
+		Assert.assertFalse(request.equals(new FlowKey().set(client, 17932, server, 80)));
+		Assert.assertEquals(new ConnectionDetail(client, server, 17931, 80), new ConnectionDetail(server, client, 80,
+				17931));
+
+		InetAddress v6client = InetAddress.getByName("fe80::1");
+		InetAddress v6server = InetAddress.getByName("fe80::2");
+		Assert.assertEquals(new FlowKey().set(v6client, 1024, v6server, 443), new FlowKey().set(v6server, 443,
+				v6client, 1024));
+	}
+
+	@Test
+	public void testFlowKeyFollowsSetters() throws Exception {
+		InetAddress client = InetAddress.getByName("192.168.1.101");
+		InetAddress server = InetAddress.getByName("192.168.1.1");
+		ConnectionDetail detail = new ConnectionDetail(client, server, 17931, 80);
+		Assert.assertEquals(new FlowKey().set(client, 17931, server, 80), detail.getFlowKey());
+		detail.setServerPort(8080);
+		Assert.assertEquals(new FlowKey().set(client, 17931, server, 8080), detail.getFlowKey());
+		Assert.assertEquals(new ConnectionDetail(client, server, 17931, 8080), detail);
+		Assert.assertFalse(new ConnectionDetail(client, server, 17931, 80).equals(detail));
+		ConnectionTable<String> table = new ConnectionTable<String>();
+		table.put(detail.getFlowKey(), "a");
+		Assert.assertEquals("a", table.get(new FlowKey().set(server, 8080, client, 17931)));
+		detail.setClientPort(17932);
+		Assert.assertEquals(new FlowKey().set(client, 17932, server, 8080), detail.getFlowKey());
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		ConnectionTable<Integer> table = new ConnectionTable<Integer>(4);
+		FlowKey[] keys = new FlowKey[5000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = new FlowKey().setIPv4(0x0a000001, 1024 + i, 0x0a000002, 80);
+			Assert.assertNull(table.put(keys[i], i));
+		}
+		Assert.assertEquals(keys.length, table.size());
+		for (int i = 0; i < keys.length; i++) {
+			Assert.assertEquals(Integer.valueOf(i), table.get(new FlowKey().setIPv4(0x0a000002, 80, 0x0a000001,
+					1024 + i)));
+		}
+		// remove every other key, the left keys should be still reachable
+		for (int i = 0; i < keys.length; i += 2) {
+			Assert.assertEquals(Integer.valueOf(i), table.remove(keys[i]));
+		}
+		Assert.assertFalse(table.remove(keys[1], Integer.valueOf(-1)));
+		for (int i = 0; i < keys.length; i++) {
+			Assert.assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), table.get(keys[i]));
+		}
+		Assert.assertEquals(keys.length / 2, table.size());
+	}
+}
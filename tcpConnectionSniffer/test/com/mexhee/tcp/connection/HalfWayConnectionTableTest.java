@@ -0,0 +1,75 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mexhee.tcp.packet.TCPPacket;
+
+public class HalfWayConnectionTableTest {
+
+	private TCPPacketBuilder builder = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+
+	private HalfWayConnectionTable.Candidate add(HalfWayConnectionTable table, TCPPacket packet) {
+		TCPConnectionImpl connection = new TCPConnectionImpl(packet.getConnectionDetail());
+		packet.detectPacketFlowDirection(connection.getConnectionDetail());
+		HalfWayConnectionTable.Candidate candidate = table.add(connection, packet);
+		candidate.expectReply(packet);
+		return candidate;
+	}
+
+	@Test
+	public void testReplyIsMatched() throws Exception {
+		HalfWayConnectionTable table = new HalfWayConnectionTable();
+		HalfWayConnectionTable.Candidate candidate = add(table,
+				builder.localToServer().ack().data("abc").setSeqAckNum(1000, 5000).build());
+		TCPPacket other = builder.serverToLocal().ack().data("ok").setSeqAckNum(5001, 1003).build();
+		Assert.assertSame(candidate, table.get(other));
+		other.detectPacketFlowDirection(candidate.connection.getConnectionDetail());
+		Assert.assertFalse(candidate.isReply(other));
+		TCPPacket reply = builder.serverToLocal().ack().data("ok").setSeqAckNum(5000, 1003).build();
+		reply.detectPacketFlowDirection(candidate.connection.getConnectionDetail());
+		Assert.assertTrue(candidate.isReply(reply));
+	}
+
+	@Test
+	public void testMidStreamConnectionIsPickedUp() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.pick(builder.localToServer().ack().data("abc").setSeqAckNum(1000, 5000).build());
+		receiver.pick(builder.localToServer().ack().data("def").setSeqAckNum(1003, 5000).build());
+		Assert.assertTrue(established.isEmpty());
+		receiver.pick(builder.serverToLocal().ack().data("ok").setSeqAckNum(5000, 1006).build());
+		Assert.assertEquals(1, established.size());
+	}
+
+	@Test
+	public void testIdleCandidateIsExpired() throws Exception {
+		HalfWayConnectionTable table = new HalfWayConnectionTable(10, 1000);
+		add(table, builder.localToServer().ack().data("abc").setSeqAckNum(1000, 5000).capturedAt(0).build());
+		TCPPacketBuilder another = new TCPPacketBuilder(17932, 80, "192.168.1.101", "192.168.1.1");
+		add(table, another.localToServer().ack().data("abc").setSeqAckNum(1000, 5000).capturedAt(800).build());
+		Assert.assertEquals(0, table.expire(1000 * 1000000L));
+		Assert.assertEquals(1, table.expire(1500 * 1000000L));
+		Assert.assertEquals(1, table.size());
+		Assert.assertEquals(1, table.expire(2000 * 1000000L));
+		Assert.assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testOldestCandidateIsDroppedWhenFull() throws Exception {
+		HalfWayConnectionTable table = new HalfWayConnectionTable(2, 1000);
+		TCPPacketBuilder second = new TCPPacketBuilder(17932, 80, "192.168.1.101", "192.168.1.1");
+		TCPPacketBuilder third = new TCPPacketBuilder(17933, 80, "192.168.1.101", "192.168.1.1");
+		add(table, builder.localToServer().ack().data("abc").setSeqAckNum(1000, 5000).build());
+		add(table, second.localToServer().ack().data("abc").setSeqAckNum(1000, 5000).build());
+		// a packet of the first one makes the second one the oldest
+		Assert.assertNotNull(table.get(builder.localToServer().ack().data("def").setSeqAckNum(1003, 5000).build()));
+		add(table, third.localToServer().ack().data("abc").setSeqAckNum(1000, 5000).build());
+		Assert.assertEquals(2, table.size());
+		Assert.assertNull(table.get(second.localToServer().ack().data("def").setSeqAckNum(1003, 5000).build()));
+		Assert.assertNotNull(table.get(builder.localToServer().ack().data("ghi").setSeqAckNum(1006, 5000).build()));
+	}
+}
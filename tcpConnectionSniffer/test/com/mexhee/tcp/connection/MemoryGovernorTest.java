@@ -0,0 +1,91 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mexhee.tcp.connection.MemoryGovernor.EvictionPolicy;
+
+public class MemoryGovernorTest {
+
+	private Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+
+	private TCPConnectionImpl connect(PacketReceiverImpl receiver, TCPPacketBuilder builder) throws Exception {
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 100).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(100, 1).build());
+		TCPConnectionImpl connection = (TCPConnectionImpl) established.poll();
+		connection.getClientInputStream().configureBlocking(false);
+		return connection;
+	}
+
+	private byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) 'a');
+		return bytes;
+	}
+
+	@Test
+	public void testEvictLargestConnection() throws Exception {
+		MemoryGovernor governor = new MemoryGovernor(10000, EvictionPolicy.LARGEST);
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.setMemoryGovernor(governor);
+		TCPPacketBuilder small = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		TCPPacketBuilder large = new TCPPacketBuilder(17932, 80, "192.168.1.101", "192.168.1.1");
+		TCPConnectionImpl smallConnection = connect(receiver, small);
+		TCPConnectionImpl largeConnection = connect(receiver, large);
+		receiver.pick(small.localToServer().ack().data(bytes(3000)).setSeqAckNum(100, 1).build());
+		Assert.assertEquals(3000, governor.getBufferedBytes());
+		receiver.pick(large.localToServer().ack().data(bytes(8000)).setSeqAckNum(100, 1).build());
+		Assert.assertFalse(smallConnection.isTruncated());
+		Assert.assertTrue(largeConnection.isTruncated());
+		Assert.assertEquals(3000, governor.getBufferedBytes());
+		Assert.assertEquals(-1, largeConnection.getClientInputStream().read(new byte[10]));
+		// reading releases the budget
+		Assert.assertEquals(3000, smallConnection.getClientInputStream().read(new byte[4000]));
+		Assert.assertEquals(0, governor.getBufferedBytes());
+	}
+
+	@Test
+	public void testEvictLowestPriorityConnection() throws Exception {
+		ConnectionFilter filter = new ConnectionFilter();
+		filter.addServerFilter("192.168.1.1", 80);
+		filter.addServerFilter("192.168.1.1", 8080);
+		MemoryGovernor governor = new MemoryGovernor(10000, EvictionPolicy.LOWEST_PRIORITY);
+		PacketReceiverImpl receiver = new PacketReceiverImpl(filter, established);
+		receiver.setMemoryGovernor(governor);
+		TCPPacketBuilder high = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		TCPPacketBuilder low = new TCPPacketBuilder(17932, 8080, "192.168.1.101", "192.168.1.1");
+		TCPConnectionImpl highConnection = connect(receiver, high);
+		TCPConnectionImpl lowConnection = connect(receiver, low);
+		receiver.pick(low.localToServer().ack().data(bytes(3000)).setSeqAckNum(100, 1).build());
+		receiver.pick(high.localToServer().ack().data(bytes(8000)).setSeqAckNum(100, 1).build());
+		Assert.assertTrue(lowConnection.isTruncated());
+		Assert.assertFalse(highConnection.isTruncated());
+		Assert.assertEquals(8000, governor.getBufferedBytes());
+	}
+
+	@Test
+	public void testFullPacketsBufferTruncatesConnection() throws Exception {
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		TCPPacketBuilder builder = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		TCPConnectionImpl connection = connect(receiver, builder);
+		receiver.pick(builder.localToServer().ack().data("abc").setSeqAckNum(100, 1).build());
+		// packets after a lost one are buffered until the buffer is full
+		long seq = 1103;
+		while (!connection.isTruncated()) {
+			receiver.pick(builder.localToServer().ack().data(bytes(1000)).setSeqAckNum(seq, 1).build());
+			seq += 1000;
+		}
+		Assert.assertTrue(connection.isMaybeBroken());
+		Assert.assertEquals(0, connection.getPacketsBuffer().getPacketsCountInBuffer());
+		receiver.pick(builder.localToServer().ack().data(bytes(1000)).setSeqAckNum(seq, 1).build());
+		Assert.assertEquals(0, connection.getPacketsBuffer().getPacketsCountInBuffer());
+		byte[] buffer = new byte[10];
+		Assert.assertEquals(3, connection.getClientInputStream().read(buffer));
+		Assert.assertEquals(-1, connection.getClientInputStream().read(buffer));
+	}
+}
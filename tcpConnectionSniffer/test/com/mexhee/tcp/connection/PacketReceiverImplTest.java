@@ -0,0 +1,133 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mexhee.io.CaptureClock;
+
+public class PacketReceiverImplTest {
+
+	private TCPPacketBuilder builder = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+	private Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+	private CaptureClock clock = new CaptureClock();
+
+	private PacketReceiverImpl connect() throws Exception {
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.setClock(clock);
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).capturedAt(1000).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(1000).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(100, 1).capturedAt(1000).build());
+		return receiver;
+	}
+
+	@Test
+	public void testTickExpiresIdleConnection() throws Exception {
+		PacketReceiverImpl receiver = connect();
+		TCPConnection connection = established.poll();
+		receiver.tick();
+		Assert.assertEquals(1, receiver.getActiveConnections().size());
+		// no packet is picked any more, only the time moves
+		clock.advance((1000 + ConnectionTimeouts.TCP_CONNECTION_TIME_OUT + 2000) * 1000000L);
+		receiver.tick();
+		Assert.assertTrue(receiver.getActiveConnections().isEmpty());
+		Assert.assertTrue(connection.getClientInputStream().isFinished());
+		Assert.assertEquals(TCPConnectionState.Closed, connection.getState());
+	}
+
+	@Test
+	public void testTickBeforeFirstPacket() throws Exception {
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.setClock(clock);
+		// the capture clock is not started, the wall clock must not be used
+		receiver.tick();
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).capturedAt(1000).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(1000).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(100, 1).capturedAt(1000).build());
+		TCPConnection connection = established.poll();
+		clock.advance((1000 + ConnectionTimeouts.TCP_CONNECTION_TIME_OUT + 2000) * 1000000L);
+		receiver.tick();
+		Assert.assertTrue(receiver.getActiveConnections().isEmpty());
+		Assert.assertEquals(TCPConnectionState.Closed, connection.getState());
+	}
+
+	@Test
+	public void testFinishClosesConnections() throws Exception {
+		PacketReceiverImpl receiver = connect();
+		receiver.pick(builder.localToServer().ack().data("GET").setSeqAckNum(100, 1).capturedAt(1000).build());
+		TCPConnection connection = established.poll();
+		receiver.finish();
+		Assert.assertTrue(receiver.getActiveConnections().isEmpty());
+		// buffered data is still readable before EOF
+		byte[] buffer = new byte[3];
+		Assert.assertEquals(3, connection.getClientInputStream().read(buffer));
+		Assert.assertEquals("GET", new String(buffer));
+		Assert.assertEquals(-1, connection.getClientInputStream().read());
+		Assert.assertTrue(connection.getServerInputStream().isFinished());
+	}
+
+	@Test
+	public void testExpiredHandshakeIsRecycled() throws Exception {
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		TCPPacketBuilder handshaking = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		TCPPacketBuilder next = new TCPPacketBuilder(17932, 80, "192.168.1.101", "192.168.1.1");
+		receiver.pick(handshaking.localToServer().syn().setSeqAckNum(99, 0).capturedAt(1000).build());
+		receiver.pick(handshaking.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(1000).build());
+		TCPConnectionImpl expired = receiver.getActiveConnections().iterator().next();
+		// the connection expires, and its shell is reused by the next one
+		receiver.pick(next.localToServer().syn().setSeqAckNum(99, 0).capturedAt(20000).build());
+		receiver.pick(next.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(20000).build());
+		receiver.pick(next.localToServer().ack().setSeqAckNum(100, 1).capturedAt(20000).build());
+		receiver.pick(next.localToServer().ack().data("GET").setSeqAckNum(100, 1).capturedAt(20000).build());
+		TCPConnection connection = established.poll();
+		Assert.assertSame(expired, connection);
+		Assert.assertEquals(17932, connection.getConnectionDetail().getClientPort());
+		Assert.assertEquals(TCPConnectionState.Established, connection.getState());
+		Assert.assertFalse(expired.isTruncated());
+		byte[] buffer = new byte[3];
+		Assert.assertEquals(3, connection.getClientInputStream().read(buffer));
+		Assert.assertEquals("GET", new String(buffer));
+	}
+
+	@Test
+	public void testConnectionRemovedAndExpiredIsRecycledOnce() throws Exception {
+		final PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		final TCPConnectionImpl[] victim = new TCPConnectionImpl[1];
+		// another thread removes the connection while the picking thread expires it
+		receiver.setClock(new CaptureClock() {
+			@Override
+			public long currentTimeNanos() {
+				if (victim[0] != null) {
+					receiver.removeConnection(victim[0]);
+					victim[0] = null;
+				}
+				return super.currentTimeNanos();
+			}
+		});
+		TCPPacketBuilder handshaking = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		TCPPacketBuilder first = new TCPPacketBuilder(17932, 80, "192.168.1.101", "192.168.1.1");
+		TCPPacketBuilder second = new TCPPacketBuilder(17933, 80, "192.168.1.101", "192.168.1.1");
+		receiver.pick(handshaking.localToServer().syn().setSeqAckNum(99, 0).capturedAt(1000).build());
+		receiver.pick(handshaking.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(1000).build());
+		victim[0] = receiver.getActiveConnections().iterator().next();
+		receiver.pick(first.localToServer().syn().setSeqAckNum(99, 0).capturedAt(20000).build());
+		Assert.assertNull(victim[0]);
+		receiver.pick(first.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(20000).build());
+		receiver.pick(second.localToServer().syn().setSeqAckNum(99, 0).capturedAt(20000).build());
+		receiver.pick(second.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(20000).build());
+		// both connections are active, and they don't share one recycled object
+		Assert.assertEquals(2, receiver.getActiveConnections().size());
+		Set<TCPConnectionImpl> connections = Collections.newSetFromMap(new IdentityHashMap<TCPConnectionImpl, Boolean>());
+		connections.addAll(receiver.getActiveConnections());
+		Assert.assertEquals(2, connections.size());
+		receiver.pick(first.localToServer().ack().setSeqAckNum(100, 1).capturedAt(20000).build());
+		receiver.pick(second.localToServer().ack().setSeqAckNum(100, 1).capturedAt(20000).build());
+		Assert.assertEquals(17932, established.poll().getConnectionDetail().getClientPort());
+		Assert.assertEquals(17933, established.poll().getConnectionDetail().getClientPort());
+	}
+}
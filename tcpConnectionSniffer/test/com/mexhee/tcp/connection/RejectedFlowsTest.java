@@ -0,0 +1,74 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RejectedFlowsTest {
+
+	private FlowKey key(int clientPort) {
+		return new FlowKey().setIPv4(0xc0a80165, clientPort, 0xc0a80101, 80);
+	}
+
+	@Test
+	public void testEntryIsAged() throws Exception {
+		RejectedFlows flows = new RejectedFlows(16, 10000, 1000);
+		flows.add(key(17931), 0);
+		Assert.assertTrue(flows.contains(key(17931), false, 0));
+		Assert.assertFalse(flows.contains(key(17932), false, 0));
+		// packets keep the entry alive
+		Assert.assertTrue(flows.contains(key(17931), false, 9000 * 1000000L));
+		Assert.assertTrue(flows.contains(key(17931), false, 18000 * 1000000L));
+		// a fin packet shortens its time
+		Assert.assertTrue(flows.contains(key(17931), true, 18000 * 1000000L));
+		Assert.assertTrue(flows.contains(key(17931), false, 18500 * 1000000L));
+		Assert.assertFalse(flows.contains(key(17931), false, 19500 * 1000000L));
+		Assert.assertEquals(0, flows.size());
+	}
+
+	@Test
+	public void testCapacityIsBounded() throws Exception {
+		RejectedFlows flows = new RejectedFlows(8, 10000, 1000);
+		for (int i = 0; i < 1000; i++) {
+			flows.add(key(10000 + i), i);
+		}
+		Assert.assertEquals(8, flows.size());
+		Assert.assertTrue(flows.contains(key(10999), false, 1000));
+	}
+
+	@Test
+	public void testPacketsOfRejectedConnectionAreDiscarded() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		ConnectionFilter filter = new ConnectionFilter();
+		filter.addServerFilter("192.168.1.1", 8080);
+		PacketReceiverImpl receiver = new PacketReceiverImpl(filter, established);
+		TCPPacketBuilder rejected = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		receiver.pick(rejected.localToServer().syn().setSeqAckNum(99, 0).build());
+		receiver.pick(rejected.serverToLocal().syn().ack().setSeqAckNum(0, 100).build());
+		receiver.pick(rejected.localToServer().ack().setSeqAckNum(100, 1).build());
+		receiver.pick(rejected.localToServer().ack().data("GET").setSeqAckNum(100, 1).build());
+		receiver.pick(rejected.serverToLocal().ack().data("OK").setSeqAckNum(1, 103).build());
+		// the syn is not seen, the connection is still not detected as a half way one
+		TCPPacketBuilder halfWay = new TCPPacketBuilder(17932, 80, "192.168.1.101", "192.168.1.1");
+		receiver.pick(halfWay.localToServer().ack().data("GET").setSeqAckNum(100, 1).build());
+		receiver.pick(halfWay.serverToLocal().ack().data("OK").setSeqAckNum(1, 103).build());
+		Assert.assertTrue(receiver.getActiveConnections().isEmpty());
+		Assert.assertTrue(established.isEmpty());
+	}
+
+	@Test
+	public void testHalfWayConnectionIsFilteredInEitherDirection() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		ConnectionFilter filter = new ConnectionFilter();
+		filter.addServerFilter("192.168.1.1", 80);
+		PacketReceiverImpl receiver = new PacketReceiverImpl(filter, established);
+		TCPPacketBuilder halfWay = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		// the first packet is sent by the server
+		receiver.pick(halfWay.serverToLocal().ack().data("OK").setSeqAckNum(1, 100).build());
+		receiver.pick(halfWay.localToServer().ack().data("GET").setSeqAckNum(100, 3).build());
+		Assert.assertEquals(1, receiver.getActiveConnections().size());
+		Assert.assertNotNull(established.poll());
+	}
+}
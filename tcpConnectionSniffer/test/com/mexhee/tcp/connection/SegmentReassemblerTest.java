@@ -0,0 +1,179 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mexhee.tcp.packet.TCPPacket;
+
+public class SegmentReassemblerTest {
+
+	private TCPPacketBuilder builder = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+
+	private TCPPacket data(long seq, String data) {
+		return builder.localToServer().ack().data(data).setSeqAckNum(seq, 1).build();
+	}
+
+	private String drain(SegmentReassembler reassembler) {
+		StringBuffer sb = new StringBuffer();
+		TCPPacket packet = null;
+		while ((packet = reassembler.first()) != null) {
+			reassembler.removeFirst();
+			sb.append(packet.getSequence() + ":" + (packet.isContainsData() ? new String(packet.getData()) : "-")
+					+ " ");
+		}
+		return sb.toString().trim();
+	}
+
+	@Test
+	public void testSameSequenceRetransmissionWithMoreData() {
+		SegmentReassembler reassembler = new SegmentReassembler();
+		reassembler.add(data(100, "abc"));
+		reassembler.add(data(100, "abcdef"));
+		Assert.assertEquals(2, reassembler.size());
+		Assert.assertEquals("100:abc 103:def", drain(reassembler));
+	}
+
+	@Test
+	public void testOverlappedSegmentsAreTrimmed() {
+		SegmentReassembler reassembler = new SegmentReassembler();
+		reassembler.add(data(110, "klmno"));
+		reassembler.add(data(100, "abcdefghijkl"));
+		reassembler.add(data(102, "cd"));
+		Assert.assertEquals("100:abcdefghij 110:klmno", drain(reassembler));
+	}
+
+	@Test
+	public void testCoveredSegmentsAreReplaced() {
+		SegmentReassembler reassembler = new SegmentReassembler();
+		reassembler.add(data(102, "cd"));
+		reassembler.add(data(106, "gh"));
+		reassembler.add(data(100, "abcdefghij"));
+		Assert.assertEquals(1, reassembler.size());
+		Assert.assertEquals("100:abcdefghij", drain(reassembler));
+	}
+
+	@Test
+	public void testSequenceWrapsAround() {
+		SegmentReassembler reassembler = new SegmentReassembler();
+		reassembler.add(data(2, "cd"));
+		reassembler.add(data(0xfffffffeL, "ab"));
+		reassembler.add(data(0, "xy"));
+		Assert.assertEquals("4294967294:ab 0:xy 2:cd", drain(reassembler));
+	}
+
+	@Test
+	public void testPacketsWithoutPayloadComeFirst() {
+		SegmentReassembler reassembler = new SegmentReassembler();
+		reassembler.add(data(100, "abc"));
+		reassembler.add(builder.localToServer().ack().fin().setSeqAckNum(103, 1).build());
+		reassembler.add(builder.localToServer().ack().setSeqAckNum(100, 1).build());
+		Assert.assertTrue(reassembler.hasDataPackets());
+		Assert.assertEquals("100:- 100:abc 103:-", drain(reassembler));
+		Assert.assertTrue(reassembler.isEmpty());
+	}
+
+	@Test
+	public void testRetransmissionIsNotLost() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 100).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(100, 1).build());
+		// "ghi" arrives before "def", and "abc" is retransmitted with "def"
+		receiver.pick(data(100, "abc"));
+		receiver.pick(data(106, "ghi"));
+		receiver.pick(data(100, "abcdef"));
+		receiver.pick(data(106, "ghijkl"));
+		TCPConnection connection = established.poll();
+		connection.getClientInputStream().configureBlocking(false);
+		byte[] buffer = new byte[20];
+		int size = connection.getClientInputStream().read(buffer);
+		Assert.assertEquals("abcdefghijkl", new String(buffer, 0, size));
+	}
+
+	@Test
+	public void testFinOfRetransmissionIsKept() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		TCPConnection connection = connect(receiver, established);
+		receiver.pick(data(100, "abc"));
+		// the data is retransmitted with fin, only fin is new
+		receiver.pick(builder.localToServer().ack().fin().data("abc").setSeqAckNum(100, 1).build());
+		byte[] buffer = new byte[20];
+		Assert.assertEquals(3, connection.getClientInputStream().read(buffer));
+		Assert.assertEquals("abc", new String(buffer, 0, 3));
+		Assert.assertTrue(connection.getClientInputStream().isFinished());
+	}
+
+	@Test
+	public void testStreamAcrossSequenceWrapAround() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(0xfffffffaL, 0).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 0xfffffffbL).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(0xfffffffbL, 1).build());
+		// "fgh" crosses 2^32, "ijk" is after the wrap and arrives first, "abcdefg" is a retransmission
+		receiver.pick(data(0xfffffffbL, "abcde"));
+		receiver.pick(data(3, "ijk"));
+		receiver.pick(data(0xfffffffbL, "abcdefg"));
+		receiver.pick(data(0, "fgh"));
+		TCPConnection connection = established.poll();
+		connection.getClientInputStream().configureBlocking(false);
+		byte[] buffer = new byte[20];
+		int size = connection.getClientInputStream().read(buffer);
+		Assert.assertEquals("abcdefghijk", new String(buffer, 0, size));
+	}
+
+	private TCPConnection connect(PacketReceiverImpl receiver, Queue<TCPConnection> established) throws Exception {
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 100).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(100, 1).build());
+		TCPConnection connection = established.poll();
+		connection.getClientInputStream().configureBlocking(false);
+		return connection;
+	}
+
+	@Test
+	public void testGapSkippedAfterThresholdBytes() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.setGapTolerance(0, 6);
+		TCPConnection connection = connect(receiver, established);
+		receiver.pick(data(100, "abc"));
+		// "def" is lost
+		receiver.pick(data(106, "ghi"));
+		byte[] buffer = new byte[20];
+		Assert.assertEquals(3, connection.getClientInputStream().read(buffer));
+		Assert.assertEquals(-1, connection.getClientInputStream().read(buffer));
+		receiver.pick(data(109, "jkl"));
+		Assert.assertEquals(3, connection.getClientInputStream().getGapBeforeNextByte());
+		int size = connection.getClientInputStream().read(buffer);
+		Assert.assertEquals("ghijkl", new String(buffer, 0, size));
+		receiver.pick(data(112, "mno"));
+		size = connection.getClientInputStream().read(buffer);
+		Assert.assertEquals("mno", new String(buffer, 0, size));
+		Assert.assertEquals(1, receiver.getMetrics().getSkippedGaps());
+	}
+
+	@Test
+	public void testGapSkippedAfterTimeout() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.setGapTolerance(200, 0);
+		TCPConnection connection = connect(receiver, established);
+		receiver.pick(builder.localToServer().ack().data("abc").setSeqAckNum(100, 1).capturedAt(1000).build());
+		receiver.pick(builder.localToServer().ack().data("ghi").setSeqAckNum(106, 1).capturedAt(1100).build());
+		receiver.pick(builder.serverToLocal().ack().setSeqAckNum(1, 103).capturedAt(1200).build());
+		Assert.assertEquals(0, connection.getClientInputStream().getLostBytes());
+		receiver.pick(builder.serverToLocal().ack().setSeqAckNum(1, 103).capturedAt(1300).build());
+		Assert.assertEquals(3, connection.getClientInputStream().getLostBytes());
+		byte[] buffer = new byte[20];
+		Assert.assertEquals(3, connection.getClientInputStream().read(buffer));
+		Assert.assertEquals(3, connection.getClientInputStream().getGapBeforeNextByte());
+		int size = connection.getClientInputStream().read(buffer);
+		Assert.assertEquals("ghi", new String(buffer, 0, size));
+	}
+}
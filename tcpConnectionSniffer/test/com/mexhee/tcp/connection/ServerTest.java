@@ -1,13 +1,19 @@
 package com.mexhee.tcp.connection;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import jpcap.JpcapCaptor;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.mexhee.tcp.connection.TCPConnection;
+import com.mexhee.tcp.connection.server.ConnectionHandler;
 import com.mexhee.tcp.connection.server.Server;
 
 public class ServerTest {
@@ -26,6 +32,61 @@ public class ServerTest {
 		server.shutdown();
 	}
 
+	@Test
+	public void testServe() throws Exception {
+		String filename = getFullFilename("192.168.1.101(17931)-192.168.1.1(80)_1352020113101.pcap");
+		final Server server = Server.replayFile(filename);
+		final ByteArrayOutputStream request = new ByteArrayOutputStream();
+		final AtomicReference<Thread> handlerThread = new AtomicReference<Thread>();
+		final CountDownLatch handled = new CountDownLatch(1);
+		server.serve(new ConnectionHandler() {
+			@Override
+			public void handle(TCPConnection connection) throws Exception {
+				handlerThread.set(Thread.currentThread());
+				byte[] buffer = new byte[1024];
+				int size = 0;
+				// the stream is finished when the replay ends
+				while ((size = connection.getClientInputStream().read(buffer)) > 0) {
+					request.write(buffer, 0, size);
+				}
+				handled.countDown();
+			}
+		});
+		try {
+			Assert.assertTrue("handler is not called", handled.await(10, TimeUnit.SECONDS));
+		} finally {
+			server.shutdown();
+		}
+		String content = new String(request.toByteArray(), "ISO-8859-1");
+		Assert.assertTrue(content, content.startsWith("GET /images/banner.jpg HTTP/1.1\r\nHost: 192.168.1.1\r\n"));
+		Assert.assertTrue(content, content.endsWith("\r\n\r\n"));
+		Assert.assertEquals(isVirtualThreadSupported(), isVirtual(handlerThread.get()));
+	}
+
+	/*
+	 * the same check as ServerImpl, virtual threads of a preview jvm are not
+	 * available unless preview is enabled
+	 */
+	private boolean isVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual").invoke(null);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Thread.isVirtual() is called by reflection, as ServerImpl creates
+	 * virtual threads, so that it is still compiled by those jvm without them
+	 */
+	private boolean isVirtual(Thread thread) throws Exception {
+		if (!isVirtualThreadSupported()) {
+			return false;
+		}
+		return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+	}
+
 	@Test
 	public void testBind() throws IOException, InterruptedException {
 		final Server server = Server.bind(JpcapCaptor.getDeviceList()[4]);
@@ -0,0 +1,82 @@
+package com.mexhee.tcp.connection;
+
+import java.io.File;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mexhee.io.CaptureClock;
+import com.mexhee.packet.pcap.PcapFileReader;
+import com.mexhee.tcp.packet.TCPPacket;
+
+public class ShardedPacketReceiverTest {
+
+	private String getFullFilename(String name) {
+		return new File("tcpConnectionSniffer/test/dump").getAbsolutePath() + "/" + name;
+	}
+
+	@Test
+	public void testFlowHashIsSymmetric() {
+		TCPPacketBuilder builder = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		TCPPacket request = builder.localToServer().build();
+		TCPPacket response = builder.serverToLocal().build();
+		Assert.assertEquals(ShardedPacketReceiver.flowHash(request), ShardedPacketReceiver.flowHash(response));
+	}
+
+	@Test
+	public void testReplayIntoWorkers() throws Exception {
+		Queue<TCPConnection> establishedConnections = new ConcurrentLinkedQueue<TCPConnection>();
+		ShardedPacketReceiver receiver = new ShardedPacketReceiver(new ConnectionFilter(), 3, establishedConnections);
+		receiver.start();
+		PcapFileReader reader = new PcapFileReader(getFullFilename("192.168.1.101(17931)-192.168.1.1(80)_1352020113101.pcap"));
+		TCPPacket packet = null;
+		while ((packet = reader.nextPacket()) != null) {
+			receiver.pick(packet);
+		}
+		reader.close();
+		TCPConnection connection = null;
+		synchronized (establishedConnections) {
+			while ((connection = establishedConnections.poll()) == null) {
+				establishedConnections.wait(5000);
+			}
+		}
+		receiver.shutdown();
+		// the data may be still in the rings when the connection is established
+		Assert.assertTrue(receiver.awaitTermination(5000));
+		connection.getClientInputStream().configureBlocking(false);
+		byte[] buffer = new byte[3];
+		Assert.assertEquals(3, connection.getClientInputStream().read(buffer));
+		Assert.assertEquals("GET", new String(buffer));
+	}
+
+	@Test
+	public void testIdleWorkerExpiresConnections() throws Exception {
+		Queue<TCPConnection> establishedConnections = new ConcurrentLinkedQueue<TCPConnection>();
+		ShardedPacketReceiver receiver = new ShardedPacketReceiver(new ConnectionFilter(), 2, establishedConnections);
+		CaptureClock clock = new CaptureClock();
+		for (PacketReceiverImpl worker : receiver.getReceivers()) {
+			worker.setClock(clock);
+		}
+		receiver.start();
+		TCPPacketBuilder builder = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).capturedAt(1000).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(1000).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(100, 1).capturedAt(1000).build());
+		TCPConnection connection = null;
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((connection = establishedConnections.poll()) == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertNotNull(connection);
+		// no more packets, the workers move the time by themselves
+		clock.advance((1000 + ConnectionTimeouts.TCP_CONNECTION_TIME_OUT + 2000) * 1000000L);
+		while (!connection.getClientInputStream().isFinished() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		receiver.shutdown();
+		Assert.assertTrue(connection.getClientInputStream().isFinished());
+		Assert.assertEquals(TCPConnectionState.Closed, connection.getState());
+	}
+}
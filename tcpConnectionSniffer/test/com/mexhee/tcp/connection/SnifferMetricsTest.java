@@ -0,0 +1,60 @@
+package com.mexhee.tcp.connection;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mexhee.packet.pcap.PcapFileReader;
+import com.mexhee.tcp.packet.TCPPacket;
+
+public class SnifferMetricsTest {
+
+	private String getFullFilename(String name) {
+		return new File("tcpConnectionSniffer/test/dump").getAbsolutePath() + "/" + name;
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		Queue<TCPConnection> establishedConnections = new ConcurrentLinkedQueue<TCPConnection>();
+		SnifferMetrics metrics = new SnifferMetrics();
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), establishedConnections, metrics);
+		metrics.watch(new PacketReceiverImpl[] { receiver }, establishedConnections);
+		PcapFileReader reader = new PcapFileReader(getFullFilename("192.168.1.101(17931)-192.168.1.1(80)_1352020113101.pcap"));
+		TCPPacket packet = null;
+		long packets = 0;
+		long bytes = 0;
+		while ((packet = reader.nextPacket()) != null) {
+			bytes += packet.getDataLength();
+			receiver.pick(packet);
+			packets++;
+		}
+		reader.close();
+		SnifferMetrics.Snapshot snapshot = metrics.takeSnapshot();
+		Assert.assertEquals(packets, snapshot.getPacketsProcessed());
+		Assert.assertEquals(bytes, snapshot.getBytesProcessed());
+		Assert.assertEquals(1, snapshot.getAcceptQueueDepth());
+		Assert.assertEquals(0, snapshot.getPacketsBufferFullCount());
+		int connections = 0;
+		for (Integer count : snapshot.getConnectionStateCounts().values()) {
+			connections += count;
+		}
+		Assert.assertEquals(receiver.getActiveConnections().size(), connections);
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		SnifferMetrics metrics = new SnifferMetrics();
+		metrics.packetProcessed(100);
+		metrics.register("test");
+		ObjectName name = new ObjectName("com.mexhee.tcp:type=SnifferMetrics,name=" + ObjectName.quote("test"));
+		Assert.assertEquals(100L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "BytesProcessed"));
+		metrics.unregister();
+		Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+}
@@ -0,0 +1,76 @@
+package com.mexhee.tcp.connection;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SynTableTest {
+
+	private FlowKey key(int clientPort, boolean fromClient) {
+		int client = 0xc0a80165;
+		int server = 0xc0a80101;
+		return fromClient ? new FlowKey().setIPv4(client, clientPort, server, 80) : new FlowKey().setIPv4(server, 80,
+				client, clientPort);
+	}
+
+	@Test
+	public void testSynIsAnswered() throws Exception {
+		SynTable table = new SynTable(16, 10000);
+		Assert.assertFalse(table.add(key(17931, true), 99, 0));
+		// the same direction, or a wrong ack number doesn't answer the syn
+		Assert.assertEquals(-1, table.answered(key(17931, true), 100, 0));
+		Assert.assertEquals(-1, table.answered(key(17931, false), 101, 0));
+		Assert.assertEquals(-1, table.answered(key(17932, false), 100, 0));
+		int entry = table.answered(key(17931, false), 100, 0);
+		Assert.assertEquals(99, table.getSequence(entry));
+		table.remove(entry);
+		Assert.assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testSynTimesOut() throws Exception {
+		SynTable table = new SynTable(16, 10000);
+		table.add(key(17931, true), 99, 0);
+		Assert.assertEquals(-1, table.answered(key(17931, false), 100, 10001 * 1000000L));
+		Assert.assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testCapacityIsBounded() throws Exception {
+		SynTable table = new SynTable(SynTable.WAYS, 10000);
+		for (int i = 0; i < SynTable.WAYS; i++) {
+			Assert.assertFalse(table.add(key(20000 + i, true), 99, i));
+		}
+		// the oldest syn is replaced
+		Assert.assertTrue(table.add(key(30000, true), 99, 100));
+		Assert.assertEquals(SynTable.WAYS, table.size());
+		Assert.assertEquals(-1, table.answered(key(20000, false), 100, 100));
+		Assert.assertTrue(table.answered(key(30000, false), 100, 100) >= 0);
+		// a timed out syn is replaced silently
+		Assert.assertFalse(table.add(key(30001, true), 99, 20000 * 1000000L));
+	}
+
+	@Test
+	public void testSynFloodDoesNotCreateConnections() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		receiver.setHalfOpenCapacity(64);
+		TCPPacketBuilder builder = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).build());
+		for (int port = 20000; port < 30000; port++) {
+			TCPPacketBuilder flood = new TCPPacketBuilder(port, 80, "10.0.0.1", "192.168.1.1");
+			receiver.pick(flood.localToServer().syn().setSeqAckNum(port, 0).build());
+		}
+		Assert.assertEquals(0, receiver.getActiveConnections().size());
+		// the flood may replace the syn, the retransmitted syn is kept again
+		receiver.pick(builder.localToServer().syn().setSeqAckNum(99, 0).build());
+		receiver.pick(builder.serverToLocal().syn().ack().setSeqAckNum(0, 100).build());
+		receiver.pick(builder.localToServer().ack().setSeqAckNum(100, 1).build());
+		Assert.assertEquals(1, receiver.getActiveConnections().size());
+		TCPConnection connection = established.poll();
+		Assert.assertEquals(17931, connection.getConnectionDetail().getClientPort());
+		Assert.assertEquals(TCPConnectionState.Established, connection.getState());
+	}
+}
@@ -75,6 +75,12 @@ public class TCPPacketBuilder {
 		return this;
 	}
 	
+	public TCPPacketBuilder capturedAt(long millis) {
+		packet.sec = millis / 1000;
+		packet.usec = millis % 1000 * 1000;
+		return this;
+	}
+
 	public com.mexhee.tcp.packet.TCPPacket build(){
 		return new TCPPacketImpl(packet);
 	}
@@ -0,0 +1,114 @@
+package com.mexhee.tcp.connection;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	@Test
+	public void testTimersExpireAtTheirDeadlines() throws Exception {
+		TimingWheel<Long> wheel = new TimingWheel<Long>(1);
+		Random random = new Random(7);
+		List<Long> expired = new ArrayList<Long>();
+		wheel.advance(1000, expired);
+		List<TimingWheel.Timer<Long>> timers = new ArrayList<TimingWheel.Timer<Long>>();
+		for (int i = 0; i < 5000; i++) {
+			// deadlines span all levels of the wheel
+			long deadline = 1001 + (long) (Math.pow(random.nextDouble(), 4) * 20000000L);
+			TimingWheel.Timer<Long> timer = new TimingWheel.Timer<Long>(deadline);
+			wheel.schedule(timer, deadline);
+			timers.add(timer);
+		}
+		TimingWheel.Timer<Long> cancelled = timers.get(0);
+		wheel.cancel(cancelled);
+		long now = 1000;
+		long previous = now;
+		int count = 0;
+		while (wheel.size() > 0) {
+			now += random.nextInt(5000);
+			wheel.advance(now, expired);
+			for (Long deadline : expired) {
+				Assert.assertTrue(deadline <= now);
+				Assert.assertTrue(deadline > previous);
+			}
+			count += expired.size();
+			expired.clear();
+			previous = now;
+		}
+		Assert.assertEquals(timers.size() - 1, count);
+		Assert.assertFalse(cancelled.isScheduled());
+	}
+
+	@Test
+	public void testRescheduleTimer() throws Exception {
+		TimingWheel<String> wheel = new TimingWheel<String>(10);
+		TimingWheel.Timer<String> timer = new TimingWheel.Timer<String>("a");
+		List<String> expired = new ArrayList<String>();
+		wheel.schedule(timer, 100);
+		wheel.schedule(timer, 5000);
+		Assert.assertEquals(1, wheel.size());
+		wheel.advance(1000, expired);
+		Assert.assertTrue(expired.isEmpty());
+		wheel.schedule(timer, 500);
+		// a passed deadline expires at the next tick
+		wheel.advance(1010, expired);
+		Assert.assertEquals("a", expired.get(0));
+		Assert.assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testEmptyWheelGoesBackToDeadline() throws Exception {
+		TimingWheel<String> wheel = new TimingWheel<String>(10);
+		TimingWheel.Timer<String> timer = new TimingWheel.Timer<String>("a");
+		List<String> expired = new ArrayList<String>();
+		// an empty wheel is advanced far beyond the later deadlines
+		wheel.advance(1000000, expired);
+		wheel.schedule(timer, 500);
+		wheel.advance(490, expired);
+		Assert.assertTrue(expired.isEmpty());
+		wheel.advance(500, expired);
+		Assert.assertEquals("a", expired.get(0));
+		Assert.assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testIdleConnectionIsExpired() throws Exception {
+		Queue<TCPConnection> established = new ConcurrentLinkedQueue<TCPConnection>();
+		PacketReceiverImpl receiver = new PacketReceiverImpl(new ConnectionFilter(), established);
+		TCPPacketBuilder idle = new TCPPacketBuilder(17931, 80, "192.168.1.101", "192.168.1.1");
+		TCPPacketBuilder handshaking = new TCPPacketBuilder(17932, 80, "192.168.1.101", "192.168.1.1");
+		TCPPacketBuilder active = new TCPPacketBuilder(17933, 80, "192.168.1.101", "192.168.1.1");
+		receiver.pick(idle.localToServer().syn().setSeqAckNum(99, 0).capturedAt(1000).build());
+		receiver.pick(idle.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(1000).build());
+		receiver.pick(idle.localToServer().ack().setSeqAckNum(100, 1).capturedAt(1000).build());
+		receiver.pick(handshaking.localToServer().syn().setSeqAckNum(99, 0).capturedAt(1000).build());
+		receiver.pick(handshaking.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(1000).build());
+		receiver.pick(active.localToServer().syn().setSeqAckNum(99, 0).capturedAt(1000).build());
+		receiver.pick(active.serverToLocal().syn().ack().setSeqAckNum(0, 100).capturedAt(1000).build());
+		receiver.pick(active.localToServer().ack().setSeqAckNum(100, 1).capturedAt(1000).build());
+		TCPConnection idleConnection = established.poll();
+		Assert.assertEquals(3, receiver.getActiveConnections().size());
+		// times follow the capture time rather than the wall clock
+		Assert.assertEquals(new Date(1000), idleConnection.getLastUpdated());
+		Assert.assertEquals(new Date(1000), idleConnection.getConnectionDetail().getCreationData());
+		// the half handshake connection times out first
+		long seq = 100;
+		for (long time = 1000; time <= 100000; time += 10000) {
+			receiver.pick(active.localToServer().ack().data("abc").setSeqAckNum(seq, 1).capturedAt(time).build());
+			seq += 3;
+		}
+		Assert.assertEquals(2, receiver.getActiveConnections().size());
+		receiver.pick(active.localToServer().ack().data("abc").setSeqAckNum(seq, 1).capturedAt(122000).build());
+		Assert.assertEquals(1, receiver.getActiveConnections().size());
+		// readers of the expired connection get EOF
+		Assert.assertTrue(idleConnection.getClientInputStream().isFinished());
+		Assert.assertEquals(TCPConnectionState.Closed, idleConnection.getState());
+	}
+}